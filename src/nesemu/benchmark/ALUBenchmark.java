@@ -0,0 +1,117 @@
+package nesemu.benchmark;
+
+import nesemu.hardware.bus.NESBus;
+
+/*
+ * Measures how many instructions per second MOS6502 executes in a CPU-bound loop of arithmetic, compare, shift,
+ * logic and load instructions, i.e. the instructions that update the status flags. The loop runs from RAM so no
+ * cartridge is needed, and it is reported for both the switch and the lookup table dispatch.
+ *
+ * Usage: ALUBenchmark
+ */
+public class ALUBenchmark
+{
+	private static final int INSTRUCTIONS_PER_RUN = 20000000;
+	private static final int WARMUP_RUNS = 3;
+	private static final int MEASURED_RUNS = 5;
+
+	// Where the loop is placed in RAM.
+	private static final int PROGRAM_ADDRESS = 0x0300;
+
+	// The loop. Every instruction but the jump back sets flags, and the values keep changing so that all flag
+	// outcomes occur.
+	private static final int[] PROGRAM =
+	{
+		0xA5, 0x10,			// LDA $10
+		0x69, 0x37,			// ADC #$37
+		0x85, 0x10,			// STA $10
+		0xE5, 0x11,			// SBC $11
+		0xC9, 0x80,			// CMP #$80
+		0x2A,				// ROL A
+		0x45, 0x12,			// EOR $12
+		0x85, 0x11,			// STA $11
+		0x46, 0x12,			// LSR $12
+		0x0A,				// ASL A
+		0x66, 0x13,			// ROR $13
+		0xE4, 0x13,			// CPX $13
+		0xE8,				// INX
+		0x24, 0x11,			// BIT $11
+		0xA8,				// TAY
+		0xC6, 0x14,			// DEC $14
+		0x4C, PROGRAM_ADDRESS & 0xFF, PROGRAM_ADDRESS >> 8	// JMP loop
+	};
+
+	private NESBus nes;
+
+	// Accumulates the cycles run so that the JIT can not optimize the execution away.
+	private long checksum;
+
+	public ALUBenchmark()
+	{
+		nes = new NESBus();
+	}
+
+	// Resets the system, loads the loop and selects the dispatch. Resetting creates a new CPU, so the dispatch is set
+	// afterwards. Without a cartridge, resetting does not build the memory map, so it is built here for the RAM.
+	private void reset(boolean use_switch_dispatch)
+	{
+		nes.reset();
+		nes.rebuildMemoryMap();
+		nes.cpu.use_switch_dispatch = use_switch_dispatch;
+		for (int n=0; n < PROGRAM.length; n++)
+		{
+			nes.cpuWrite(PROGRAM_ADDRESS + n, PROGRAM[n]);
+		}
+		nes.cpu.pc = PROGRAM_ADDRESS;
+	}
+
+	// Executes INSTRUCTIONS_PER_RUN instructions of the loop and returns the time taken in nanoseconds.
+	private long runInstructions(boolean use_switch_dispatch)
+	{
+		reset(use_switch_dispatch);
+
+		long cycles = 0;
+		long start = System.nanoTime();
+		for (int n=0; n < INSTRUCTIONS_PER_RUN; n++)
+		{
+			cycles += nes.cpu.step();
+		}
+		long elapsed = System.nanoTime() - start;
+		checksum += cycles + nes.cpu.a + nes.cpu.status;
+		return elapsed;
+	}
+
+	// Returns the best time of a number of runs.
+	private long measure(boolean use_switch_dispatch)
+	{
+		long best = Long.MAX_VALUE;
+		for (int n=0; n < MEASURED_RUNS; n++)
+		{
+			best = Math.min(best, runInstructions(use_switch_dispatch));
+		}
+		return best;
+	}
+
+	public void run()
+	{
+		// Warm up both dispatches first so that neither is measured while the JIT is still compiling it.
+		for (int n=0; n < WARMUP_RUNS; n++)
+		{
+			runInstructions(false);
+			runInstructions(true);
+		}
+
+		double lookup_ips = INSTRUCTIONS_PER_RUN / (measure(false) / 1000000000.0);
+		double switch_ips = INSTRUCTIONS_PER_RUN / (measure(true) / 1000000000.0);
+
+		System.out.println(
+			String.format("ALU loop   lookup table: %8.1f M instructions/s   switch: %8.1f M instructions/s",
+				lookup_ips / 1000000.0, switch_ips / 1000000.0));
+		System.out.println("(checksum " + checksum + ")");
+	}
+
+	public static void main(String args[]) throws Exception
+	{
+		new ALUBenchmark().run();
+	}
+}
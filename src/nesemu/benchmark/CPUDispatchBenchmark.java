@@ -0,0 +1,117 @@
+package nesemu.benchmark;
+
+import nesemu.hardware.bus.NESBus;
+import nesemu.hardware.cartridge.Cartridge;
+import nesemu.hardware.video.RP2C02;
+
+/*
+ * Compares the two ways MOS6502 can execute instructions: the switch over the opcode (use_switch_dispatch) and the
+ * lookup table of addressing mode and operation objects. It reports how many instructions per second the CPU alone
+ * executes, starting from the state of a running game, and how many frames per second the whole system emulates.
+ *
+ * Usage: CPUDispatchBenchmark <rom file>
+ */
+public class CPUDispatchBenchmark
+{
+	private static final int INSTRUCTIONS_PER_RUN = 20000000;
+	private static final int FRAMES_PER_RUN = 120;
+	private static final int WARMUP_RUNS = 3;
+	private static final int MEASURED_RUNS = 5;
+
+	private String rom_file;
+	private NESBus nes;
+
+	// Accumulates the cycles run so that the JIT can not optimize the execution away.
+	private long checksum;
+
+	public CPUDispatchBenchmark(String rom_file) throws Exception
+	{
+		this.rom_file = rom_file;
+		nes = new NESBus();
+		nes.insertCartridge(new Cartridge(rom_file));
+	}
+
+	// Resets the system and selects the dispatch. Resetting creates a new CPU, so the dispatch is set afterwards.
+	private void reset(boolean use_switch_dispatch)
+	{
+		nes.reset();
+		nes.cpu.use_switch_dispatch = use_switch_dispatch;
+	}
+
+	// Runs the game for a second so that the CPU is executing its main loop, then executes INSTRUCTIONS_PER_RUN
+	// instructions on the CPU alone and returns the time taken in nanoseconds.
+	private long runInstructions(boolean use_switch_dispatch)
+	{
+		reset(use_switch_dispatch);
+		nes.runClocks(60L * RP2C02.EMULATED_FRAME_CLOCKS);
+
+		long cycles = 0;
+		long start = System.nanoTime();
+		for (int n=0; n < INSTRUCTIONS_PER_RUN; n++)
+		{
+			cycles += nes.cpu.step();
+		}
+		long elapsed = System.nanoTime() - start;
+		checksum += cycles;
+		return elapsed;
+	}
+
+	// Emulates FRAMES_PER_RUN frames of the whole system and returns the time taken in nanoseconds.
+	private long runFrames(boolean use_switch_dispatch)
+	{
+		reset(use_switch_dispatch);
+
+		long start = System.nanoTime();
+		nes.runClocks((long)FRAMES_PER_RUN * RP2C02.EMULATED_FRAME_CLOCKS);
+		long elapsed = System.nanoTime() - start;
+		checksum += nes.cpu.pc;
+		return elapsed;
+	}
+
+	// Returns the best time of a number of runs.
+	private long measure(boolean use_switch_dispatch, boolean whole_system)
+	{
+		long best = Long.MAX_VALUE;
+		for (int n=0; n < MEASURED_RUNS; n++)
+		{
+			best = Math.min(best, whole_system ? runFrames(use_switch_dispatch) : runInstructions(use_switch_dispatch));
+		}
+		return best;
+	}
+
+	public void run()
+	{
+		// Warm up both dispatches first so that neither is measured while the JIT is still compiling it.
+		for (int n=0; n < WARMUP_RUNS; n++)
+		{
+			runInstructions(false);
+			runInstructions(true);
+			runFrames(false);
+			runFrames(true);
+		}
+
+		double lookup_ips = INSTRUCTIONS_PER_RUN / (measure(false, false) / 1000000000.0);
+		double switch_ips = INSTRUCTIONS_PER_RUN / (measure(true, false) / 1000000000.0);
+		double lookup_fps = FRAMES_PER_RUN / (measure(false, true) / 1000000000.0);
+		double switch_fps = FRAMES_PER_RUN / (measure(true, true) / 1000000000.0);
+
+		System.out.println("ROM: " + rom_file);
+		System.out.println(
+			String.format("CPU only       lookup table: %8.1f M instructions/s   switch: %8.1f M instructions/s   speedup: %.2fx",
+				lookup_ips / 1000000.0, switch_ips / 1000000.0, switch_ips / lookup_ips));
+		System.out.println(
+			String.format("Whole system   lookup table: %8.1f frames/s           switch: %8.1f frames/s           speedup: %.2fx",
+				lookup_fps, switch_fps, switch_fps / lookup_fps));
+		System.out.println("(checksum " + checksum + ")");
+	}
+
+	public static void main(String args[]) throws Exception
+	{
+		if (args.length < 1)
+		{
+			System.out.println("Usage: CPUDispatchBenchmark <rom file>");
+			return;
+		}
+		new CPUDispatchBenchmark(args[0]).run();
+	}
+}
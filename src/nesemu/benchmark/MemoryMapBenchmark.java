@@ -0,0 +1,128 @@
+package nesemu.benchmark;
+
+import java.util.Random;
+
+import nesemu.hardware.bus.NESBus;
+import nesemu.hardware.cartridge.Cartridge;
+
+/*
+ * Measures how many CPU bus reads per second can be performed through the memory map (NESBus.cpuRead) compared to
+ * decoding the full address on each read (NESBus.cpuReadDecoded), for RAM, PRG ROM and PPU register pages, as well
+ * as a mix of the three which is closer to what the CPU does while running a game.
+ * 
+ * Usage: MemoryMapBenchmark <rom file>
+ */
+public class MemoryMapBenchmark
+{
+	private static final int READS_PER_RUN = 50000000;
+	private static final int ADDRESSES = 4096;
+	private static final int WARMUP_RUNS = 3;
+	private static final int MEASURED_RUNS = 5;
+	
+	private NESBus nes;
+	
+	// Accumulates the values read so that the JIT can not optimize the reads away.
+	private int checksum;
+	
+	public MemoryMapBenchmark(String rom_file) throws Exception
+	{
+		nes = new NESBus();
+		nes.insertCartridge(new Cartridge(rom_file));
+		nes.reset();
+	}
+	
+	// Random addresses in a range. Random addresses stop the branch predictor from learning the access pattern.
+	private static int[] randomAddresses(/*unsigned 16bit*/ int first_addr, int range_size, long seed)
+	{
+		Random random = new Random(seed);
+		int[] addresses = new int[ADDRESSES];
+		for (int n=0; n < ADDRESSES; n++)
+		{
+			addresses[n] = first_addr + random.nextInt(range_size);
+		}
+		return addresses;
+	}
+	
+	// Reads READS_PER_RUN times from the addresses and returns the time taken in nanoseconds.
+	private long runMemoryMap(int[] addresses)
+	{
+		int sum = 0;
+		long start = System.nanoTime();
+		for (int n=0; n < READS_PER_RUN; n++)
+		{
+			sum += nes.cpuRead(addresses[n & (ADDRESSES - 1)], false);
+		}
+		long elapsed = System.nanoTime() - start;
+		checksum += sum;
+		return elapsed;
+	}
+	
+	private long runDecoded(int[] addresses)
+	{
+		int sum = 0;
+		long start = System.nanoTime();
+		for (int n=0; n < READS_PER_RUN; n++)
+		{
+			sum += nes.cpuReadDecoded(addresses[n & (ADDRESSES - 1)], false);
+		}
+		long elapsed = System.nanoTime() - start;
+		checksum += sum;
+		return elapsed;
+	}
+	
+	// Returns the best reads per second of a number of runs.
+	private double measure(int[] addresses, boolean use_memory_map)
+	{
+		long best = Long.MAX_VALUE;
+		for (int n=0; n < MEASURED_RUNS; n++)
+		{
+			best = Math.min(best, use_memory_map ? runMemoryMap(addresses) : runDecoded(addresses));
+		}
+		return READS_PER_RUN / (best / 1000000000.0);
+	}
+	
+	private void report(String name, int[] addresses)
+	{
+		double decoded = measure(addresses, false);
+		double mapped = measure(addresses, true);
+		System.out.println(
+			String.format("%-14s decoded: %8.1f M reads/s   memory map: %8.1f M reads/s   speedup: %.2fx", 
+				name, decoded / 1000000.0, mapped / 1000000.0, mapped / decoded));
+	}
+	
+	public void run()
+	{
+		int[] ram = randomAddresses(0x0000, 0x2000, 1);
+		int[] rom = randomAddresses(0x8000, 0x8000, 2);
+		int[] ppu = randomAddresses(0x2000, 0x2000, 3);
+		int[] mixed = new int[ADDRESSES];
+		for (int n=0; n < ADDRESSES; n++)
+		{
+			mixed[n] = (n % 3 == 0) ? ram[n] : (n % 3 == 1) ? rom[n] : ppu[n];
+		}
+		
+		// Warm up both paths with every kind of address first, otherwise the JIT specializes each path for 
+		// whichever range it happens to see first, which is not what happens while running a game.
+		for (int n=0; n < WARMUP_RUNS; n++)
+		{
+			runMemoryMap(mixed);
+			runDecoded(mixed);
+		}
+		
+		report("RAM", ram);
+		report("PRG ROM", rom);
+		report("PPU registers", ppu);
+		report("Mixed", mixed);
+		System.out.println("(checksum " + checksum + ")");
+	}
+	
+	public static void main(String args[]) throws Exception
+	{
+		if (args.length < 1)
+		{
+			System.out.println("Usage: MemoryMapBenchmark <rom file>");
+			return;
+		}
+		new MemoryMapBenchmark(args[0]).run();
+	}
+}
@@ -30,10 +30,12 @@ public class ADebugger
 	
 	public int getDisassembledInstructionIndex(int instruction_location)
 	{
-		int[] mapped_addr_by_ref = new int[1];
-		int[] data_by_ref = new int[1];
-		mapper.cpuMapRead(instruction_location, mapped_addr_by_ref, data_by_ref);
-		Integer index = (Integer)disassembledInstructionsIndexes.get(mapped_addr_by_ref[0]);
+		int mapped_addr = mapper.cpuMapRead(instruction_location);
+		if (mapped_addr == AMapper.UNMAPPED)
+		{
+			mapped_addr = instruction_location;
+		}
+		Integer index = (Integer)disassembledInstructionsIndexes.get(mapped_addr);
 		if (index == null)
 		{
 			return -1;
@@ -11,7 +11,6 @@ import javax.swing.JLabel;
 import javax.swing.JPanel;
 
 import nesemu.engine.Launcher;
-import nesemu.hardware.audio.RP2A03;
 
 public class APUGUIDebugger extends GUIDebugger
 {
@@ -33,18 +32,19 @@ public class APUGUIDebugger extends GUIDebugger
 	private JLabel pulse1VibratoLabel;
 	private JLabel pulse2VibratoLabel;
 	
+	private APUProbeRecorder probe_recorder = new APUProbeRecorder();
 	private int debug_samples_to_keep;
-	private RP2A03.DebugSamples pulse1_samples;
+	private APUProbeRecorder.SampleRing pulse1_samples;
 	private int pulse1_sample_position;
-	private RP2A03.DebugSamples pulse2_samples;
+	private APUProbeRecorder.SampleRing pulse2_samples;
 	private int pulse2_sample_position;
-	private RP2A03.DebugSamples triangle_samples;
+	private APUProbeRecorder.SampleRing triangle_samples;
 	private int triangle_sample_position;
-	private RP2A03.DebugSamples noise_samples;
+	private APUProbeRecorder.SampleRing noise_samples;
 	private int noise_sample_position;
-	private RP2A03.DebugSamples dmc_samples;
+	private APUProbeRecorder.SampleRing dmc_samples;
 	private int dmc_sample_position;
-	private RP2A03.DebugSamples overall_samples;
+	private APUProbeRecorder.SampleRing overall_samples;
 	private int overall_sample_position;
 	
 	private boolean pause_updates = false;
@@ -54,7 +54,8 @@ public class APUGUIDebugger extends GUIDebugger
 	{
 		super(nes_emu_runner);
 		nes_emu_runner.addDebugger(this);
-		debug_samples_to_keep = nes.apu.getDebugSamplesToKeep();
+		debug_samples_to_keep = APUProbeRecorder.SAMPLES_TO_KEEP;
+		nes.setAPUProbe(probe_recorder);
 	}
 	
 	public void openDebuggerWindow()
@@ -98,21 +99,18 @@ public class APUGUIDebugger extends GUIDebugger
 	{
 		if (!pause_updates)
 		{
-			synchronized(nes.apu)
-			{
-				pulse1_samples = nes.apu.getPulse1Debug().getCopy();
-				pulse2_samples = nes.apu.getPulse2Debug().getCopy();
-				triangle_samples = nes.apu.getTriangleDebug().getCopy();
-				noise_samples = nes.apu.getNoiseDebug().getCopy();
-				dmc_samples = nes.apu.getDMCDebug().getCopy();
-				overall_samples = nes.apu.getOverallDebug().getCopy();
-			}
-			pulse1_sample_position = (pulse1_samples.last_debug_sample_position + 1)%debug_samples_to_keep;
-			pulse2_sample_position = (pulse2_samples.last_debug_sample_position + 1)%debug_samples_to_keep;
-			triangle_sample_position = (triangle_samples.last_debug_sample_position + 1)%debug_samples_to_keep;
-			noise_sample_position = (noise_samples.last_debug_sample_position + 1)%debug_samples_to_keep;
-			dmc_sample_position = (dmc_samples.last_debug_sample_position + 1)%debug_samples_to_keep;
-			overall_sample_position = (overall_samples.last_debug_sample_position + 1)%debug_samples_to_keep;
+			pulse1_samples = probe_recorder.getPulse1Copy();
+			pulse2_samples = probe_recorder.getPulse2Copy();
+			triangle_samples = probe_recorder.getTriangleCopy();
+			noise_samples = probe_recorder.getNoiseCopy();
+			dmc_samples = probe_recorder.getDMCCopy();
+			overall_samples = probe_recorder.getOutputCopy();
+			pulse1_sample_position = (pulse1_samples.position + 1)%debug_samples_to_keep;
+			pulse2_sample_position = (pulse2_samples.position + 1)%debug_samples_to_keep;
+			triangle_sample_position = (triangle_samples.position + 1)%debug_samples_to_keep;
+			noise_sample_position = (noise_samples.position + 1)%debug_samples_to_keep;
+			dmc_sample_position = (dmc_samples.position + 1)%debug_samples_to_keep;
+			overall_sample_position = (overall_samples.position + 1)%debug_samples_to_keep;
 			
 			if (nes.apu.pulse1GetVibrato())
 			{
@@ -296,8 +294,8 @@ public class APUGUIDebugger extends GUIDebugger
 				{
 					int x1 = counter;
 					int x2 = counter;
-					int y1 = (int)(12+50-pulse1_samples.debug_samples[n]*40);
-					int y2 = (int)(12+50-pulse1_samples.debug_samples[(n+1) % debug_samples_to_keep]*40);
+					int y1 = (int)(12+50-pulse1_samples.samples[n]*40);
+					int y2 = (int)(12+50-pulse1_samples.samples[(n+1) % debug_samples_to_keep]*40);
 					if (y1 == y2)
 					{
 						x2++;
@@ -322,8 +320,8 @@ public class APUGUIDebugger extends GUIDebugger
 				{
 					int x1 = 100+counter;
 					int x2 = 100+counter;
-					int y1 = (int)(12+50-pulse2_samples.debug_samples[n]*40);
-					int y2 = (int)(12+50-pulse2_samples.debug_samples[(n+1) % debug_samples_to_keep]*40);
+					int y1 = (int)(12+50-pulse2_samples.samples[n]*40);
+					int y2 = (int)(12+50-pulse2_samples.samples[(n+1) % debug_samples_to_keep]*40);
 					if (y1 == y2)
 					{
 						x2++;
@@ -348,8 +346,8 @@ public class APUGUIDebugger extends GUIDebugger
 				{
 					int x1 = 200+counter;
 					int x2 = 200+counter;
-					int y1 = (int)(12+50-triangle_samples.debug_samples[n]*40);
-					int y2 = (int)(12+50-triangle_samples.debug_samples[(n+1) % debug_samples_to_keep]*40);
+					int y1 = (int)(12+50-triangle_samples.samples[n]*40);
+					int y2 = (int)(12+50-triangle_samples.samples[(n+1) % debug_samples_to_keep]*40);
 					if (y1 == y2)
 					{
 						x2++;
@@ -374,8 +372,8 @@ public class APUGUIDebugger extends GUIDebugger
 				{
 					int x1 = 300+counter;
 					int x2 = 300+counter;
-					int y1 = (int)(12+50-noise_samples.debug_samples[n]*40);
-					int y2 = (int)(12+50-noise_samples.debug_samples[(n+1) % debug_samples_to_keep]*40);
+					int y1 = (int)(12+50-noise_samples.samples[n]*40);
+					int y2 = (int)(12+50-noise_samples.samples[(n+1) % debug_samples_to_keep]*40);
 					if (y1 == y2)
 					{
 						x2++;
@@ -400,8 +398,8 @@ public class APUGUIDebugger extends GUIDebugger
 				{
 					int x1 = 400+counter;
 					int x2 = 400+counter;
-					int y1 = (int)(12+50-dmc_samples.debug_samples[n]*40);
-					int y2 = (int)(12+50-dmc_samples.debug_samples[(n+1) % debug_samples_to_keep]*40);
+					int y1 = (int)(12+50-dmc_samples.samples[n]*40);
+					int y2 = (int)(12+50-dmc_samples.samples[(n+1) % debug_samples_to_keep]*40);
 					if (y1 == y2)
 					{
 						x2++;
@@ -426,8 +424,8 @@ public class APUGUIDebugger extends GUIDebugger
 				{
 					int x1 = 500+counter;
 					int x2 = 500+counter+1;
-					int y1 = (int)(12+50-overall_samples.debug_samples[n]*40);
-					int y2 = (int)(12+50-overall_samples.debug_samples[(n+1) % debug_samples_to_keep]*40);
+					int y1 = (int)(12+50-overall_samples.samples[n]*40);
+					int y2 = (int)(12+50-overall_samples.samples[(n+1) % debug_samples_to_keep]*40);
 					g.drawLine(x1, y1, x2, y2);
 					n++;
 					n = n % debug_samples_to_keep;
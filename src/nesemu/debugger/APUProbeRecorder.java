@@ -0,0 +1,113 @@
+package nesemu.debugger;
+
+import nesemu.hardware.audio.APUProbe;
+
+/*
+ * Keeps the last few levels of each APU channel and of the output, for the APU debugger to draw. The emulation thread
+ * records into one ring per channel and the debugger copies the rings without either side taking a lock.
+ */
+public class APUProbeRecorder implements APUProbe
+{
+	public static final int SAMPLES_TO_KEEP = 90;
+	
+	// Only every so many levels are kept, so that the few kept cover several periods of a note. The pulse channels
+	// keep half as many as the others, as they only change every other CPU clock.
+	private static final int CLOCKS_PER_SAMPLE = 30;
+	private static final int PULSE_CLOCKS_PER_SAMPLE = 60;
+	private static final int OUTPUT_SAMPLES_PER_SAMPLE = 30;
+	
+	private SampleRing pulse1 = new SampleRing();
+	private SampleRing pulse2 = new SampleRing();
+	private SampleRing triangle = new SampleRing();
+	private SampleRing noise = new SampleRing();
+	private SampleRing dmc = new SampleRing();
+	private SampleRing output = new SampleRing();
+	
+	private int clock_counter = 0;
+	private int output_counter = 0;
+	
+	public void channelLevels(int pulse1_level, int pulse2_level, int triangle_level, int noise_level, int dmc_level)
+	{
+		if (clock_counter % PULSE_CLOCKS_PER_SAMPLE == 0)
+		{
+			pulse1.add((pulse1_level - 7.5)/7.5);
+			pulse2.add((pulse2_level - 7.5)/7.5);
+		}
+		if (clock_counter % CLOCKS_PER_SAMPLE == 0)
+		{
+			triangle.add((triangle_level - 7.5)/7.5);
+			noise.add((noise_level - 7.5)/7.5);
+			dmc.add((dmc_level - 63.5)/63.5);
+		}
+		clock_counter++;
+		clock_counter %= PULSE_CLOCKS_PER_SAMPLE;
+	}
+	
+	public void outputSample(int sample)
+	{
+		if (output_counter == 0)
+		{
+			output.add(sample / 32767.0);
+		}
+		output_counter++;
+		output_counter %= OUTPUT_SAMPLES_PER_SAMPLE;
+	}
+	
+	// The levels, between -1 and 1, as copies that the emulation does not change any more.
+	public SampleRing getPulse1Copy()
+	{
+		return pulse1.getCopy();
+	}
+	
+	public SampleRing getPulse2Copy()
+	{
+		return pulse2.getCopy();
+	}
+	
+	public SampleRing getTriangleCopy()
+	{
+		return triangle.getCopy();
+	}
+	
+	public SampleRing getNoiseCopy()
+	{
+		return noise.getCopy();
+	}
+	
+	public SampleRing getDMCCopy()
+	{
+		return dmc.getCopy();
+	}
+	
+	public SampleRing getOutputCopy()
+	{
+		return output.getCopy();
+	}
+	
+	/*
+	 * The last SAMPLES_TO_KEEP levels, with position pointing at the oldest one. Only the emulation thread adds to a
+	 * ring, and it publishes the new position with a volatile write after the level itself, so a copy made from any
+	 * thread holds every level up to the position it read. Levels added while the copy is being made may also show up
+	 * in it, which at worst makes one column of the drawing newer than the rest.
+	 */
+	public static class SampleRing
+	{
+		public double[] samples = new double[SAMPLES_TO_KEEP];
+		public volatile int position;
+		
+		private void add(double sample)
+		{
+			int n = position;
+			samples[n] = sample;
+			position = (n + 1) % SAMPLES_TO_KEEP;
+		}
+		
+		private SampleRing getCopy()
+		{
+			SampleRing copy = new SampleRing();
+			copy.position = position;
+			System.arraycopy(samples, 0, copy.samples, 0, SAMPLES_TO_KEEP);
+			return copy;
+		}
+	}
+}
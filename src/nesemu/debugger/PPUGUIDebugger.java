@@ -12,6 +12,7 @@ import javax.swing.JLabel;
 import javax.swing.JPanel;
 
 import nesemu.engine.Launcher;
+import nesemu.hardware.video.RP2C02;
 import nesemu.util.Convert;
 
 public class PPUGUIDebugger extends GUIDebugger
@@ -20,9 +21,13 @@ public class PPUGUIDebugger extends GUIDebugger
 	
 	private JLabel paletteLabel;
 	private JLabel framerateLabel;
+	private JLabel emulatedFramerateLabel;
 	private JLabel skippedFramesLabel;
 	private JLabel repeatedFramesLabel;
 	private JLabel totalFramesLabel;
+	private JLabel rendererLabel;
+	private JLabel vramAddrLabel;
+	private JLabel tramAddrLabel;
 	
 	private JLabel[] nametable1_label;
 	private JLabel[] nametable2_label;
@@ -79,6 +84,12 @@ public class PPUGUIDebugger extends GUIDebugger
 		framerateLabel = addLabel("Frame rate:           ", 265, 2*font_size);
 		skippedFramesLabel = addLabel("Skipped frames:           ", 265, 3*font_size);
 		repeatedFramesLabel = addLabel("Repeated frames:           ", 265, 4*font_size);
+		rendererLabel = addLabel("Renderer:                        ", 265, 5*font_size);
+		addLabel("R = Scanline/Dot Renderer", 265, 6*font_size);
+		addLabel("C = Compare Renderers", 265, 7*font_size);
+		vramAddrLabel = addLabel("V:                                  ", 265, 8*font_size);
+		tramAddrLabel = addLabel("T:                                  ", 265, 9*font_size);
+		emulatedFramerateLabel = addLabel("Emulated frame rate:           ", 265, 10*font_size);
 		
 		for (int n=0; n < 32; n++)
 		{
@@ -114,8 +125,24 @@ public class PPUGUIDebugger extends GUIDebugger
 		totalFramesLabel.setText("Total frames: "+nes_emu_runner.video_processor.current_frame_number_video_processor);
 		float framerate = (float)Math.round(nes_emu_runner.video_processor.current_frame_rate * 100) / 100;
 		framerateLabel.setText("Frame rate: "+framerate);
+		float emulated_framerate = (float)Math.round(nes_emu_runner.video_processor.emulated_frame_rate * 100) / 100;
+		emulatedFramerateLabel.setText("Emulated frame rate: "+emulated_framerate);
 		skippedFramesLabel.setText("Skipped frames: "+nes_emu_runner.video_processor.skipped_frames);
 		repeatedFramesLabel.setText("Repeated frames: "+nes_emu_runner.video_processor.repeated_frames);
+		if (!nes.ppu.isScanlineRendererEnabled())
+		{
+			rendererLabel.setText("Renderer: dot");
+		}
+		else if (nes.ppu.isScanlineRendererChecked())
+		{
+			rendererLabel.setText("Renderer: compared, mismatches " + nes.ppu.getScanlineMismatches());
+		}
+		else
+		{
+			rendererLabel.setText("Renderer: scanline");
+		}
+		vramAddrLabel.setText(getLoopyText("V", nes.ppu.getVramAddr()));
+		tramAddrLabel.setText(getLoopyText("T", nes.ppu.getTramAddr()));
 		
 		patterns1 = nes.ppu.GetPatternTable(0, nSelectedPalette).draw();
 		patterns2 = nes.ppu.GetPatternTable(1, nSelectedPalette).draw();
@@ -186,6 +213,13 @@ public class PPUGUIDebugger extends GUIDebugger
 		debug_panel.repaint();
 	}
 	
+	private String getLoopyText(String name, RP2C02.LOOPY_REGISTER loopy)
+	{
+		return name + ": $" + Convert.getHexStringFromUnsigned16BitInt(loopy.reg()) +
+			" X:" + loopy.COARSE_X + " Y:" + loopy.COARSE_Y +
+			" NT:" + (loopy.NAMETABLE_Y * 2 + loopy.NAMETABLE_X) + " FY:" + loopy.FINE_Y;
+	}
+	
 	public void NESEmuRunnerFrameDrawn()
 	{
 		if (shouldUpdateDebugger())
@@ -229,6 +263,14 @@ public class PPUGUIDebugger extends GUIDebugger
 	        		nSelectedPalette++;
 	        		nSelectedPalette &= 0x07;
 	        	}
+	        	else if (key_pressed == KeyEvent.VK_R)
+	        	{
+	        		nes.setScanlineRendererEnabled(!nes.ppu.isScanlineRendererEnabled());
+	        	}
+	        	else if (key_pressed == KeyEvent.VK_C)
+	        	{
+	        		nes.setScanlineRendererChecked(!nes.ppu.isScanlineRendererChecked());
+	        	}
 	        }
 
 	        @Override
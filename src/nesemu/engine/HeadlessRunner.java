@@ -0,0 +1,204 @@
+package nesemu.engine;
+
+import java.io.IOException;
+
+import nesemu.engine.audio.AudioSink;
+import nesemu.engine.audio.WaveFileAudioSink;
+import nesemu.hardware.bus.NESBus;
+import nesemu.hardware.cartridge.Cartridge;
+import nesemu.hardware.controller.ScriptedInputDevice;
+import nesemu.hardware.video.NullFrameSink;
+import nesemu.hardware.video.RP2C02;
+
+/*
+ * Runs the emulator without a window, sound or keyboard, e.g. on a build server. It emulates a number of frames as
+ * fast as possible, with the controllers driven by an input script (see ScriptedInputDevice), and reports how many
+ * frames per second it emulated. The sound can be recorded to a WAV file. The PPU draws dot by dot unless -scanline
+ * selects the scanline renderer, and -check-scanline compares every scanline it draws with the dot renderer. As nothing
+ * shows the frames, the PPU skips drawing their pixels, except when comparing the renderers.
+ *
+ * Usage: HeadlessRunner <rom file> <frames> [<input script>] [-recompiler] [-scanline] [-check-scanline] [-wav <file>]
+ */
+public class HeadlessRunner
+{
+	// The frame rate of a real NTSC NES.
+	private static final double NTSC_FRAME_RATE = RP2C02.NTSC_FREQUENCY * 1000000.0 / RP2C02.PPU_FRAME_CLOCKS;
+
+	private static final int SOUND_BUFFER_SIZE = 1024;
+
+	private NESBus nes;
+	private ScriptedInputDevice input_device;
+	private int frames_to_run;
+
+	// The number of frames the PPU completed in the last run.
+	private int frames_drawn;
+
+	// Where the sound goes, or null if it is not wanted.
+	private AudioSink sound_sink;
+	private short[] sound_samples = new short[SOUND_BUFFER_SIZE];
+	private byte[] sound_buffer = new byte[SOUND_BUFFER_SIZE * 2];
+
+	public HeadlessRunner(String rom_file, int frames_to_run, ScriptedInputDevice input_device) throws IOException
+	{
+		this.frames_to_run = frames_to_run;
+		this.input_device = input_device;
+		nes = new NESBus();
+		nes.insertCartridge(new Cartridge(rom_file));
+	}
+
+	public NESBus getNES()
+	{
+		return nes;
+	}
+
+	public void setSoundSink(AudioSink sound_sink)
+	{
+		this.sound_sink = sound_sink;
+	}
+
+	// Powers the system on, runs the frames and returns the time taken in nanoseconds.
+	public long run() throws Exception
+	{
+		nes.powerOn();
+		nes.reset();
+		input_device.reset();
+		frames_drawn = 0;
+		if (sound_sink != null)
+		{
+			nes.setBandLimitedSampleRate(SoundProcessor.SAMPLE_RATE);
+			sound_sink.open(SoundProcessor.SAMPLE_RATE, SoundProcessor.CHANNELS);
+		}
+
+		long start = System.nanoTime();
+		for (int frame = 0; frame < frames_to_run; frame++)
+		{
+			input_device.setFrame(frame);
+			nes.controller[0] = input_device.getController1Input();
+			nes.controller[1] = input_device.getController2Input();
+			nes.runClocks(RP2C02.EMULATED_FRAME_CLOCKS);
+			if (sound_sink != null)
+			{
+				writeFrameSound();
+			}
+
+			if (nes.ppu.frame_complete)
+			{
+				nes.ppu.frame_complete = false;
+				frames_drawn++;
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+
+		if (sound_sink != null)
+		{
+			sound_sink.close();
+		}
+		return elapsed;
+	}
+
+	// Sends the APU's band-limited samples produced during the frame to the sound sink.
+	private void writeFrameSound()
+	{
+		int samples;
+		while ((samples = nes.apu.readSamples(sound_samples, 0, SOUND_BUFFER_SIZE)) > 0)
+		{
+			for (int n=0; n < samples; n++)
+			{
+				sound_buffer[n * 2] = (byte)(sound_samples[n] & 0xFF);
+				sound_buffer[n * 2 + 1] = (byte)((sound_samples[n] >> 8) & 0xFF);
+			}
+			sound_sink.write(sound_buffer, 0, samples * 2);
+		}
+	}
+
+	public int getFramesDrawn()
+	{
+		return frames_drawn;
+	}
+
+	public static void main(String args[]) throws Exception
+	{
+		if (args.length < 2)
+		{
+			System.out.println("Usage: HeadlessRunner <rom file> <frames> [<input script>] [-recompiler] [-scanline] [-check-scanline] [-wav <file>]");
+			return;
+		}
+
+		// Nothing here needs a display, make sure nothing tries to open one.
+		System.setProperty("java.awt.headless", "true");
+
+		String rom_file = args[0];
+		int frames = Integer.parseInt(args[1]);
+		String script_file = null;
+		String wav_file = null;
+		boolean use_recompiler = false;
+		boolean use_scanline_renderer = false;
+		boolean check_scanline_renderer = false;
+		for (int n=2; n < args.length; n++)
+		{
+			if (args[n].equals("-recompiler"))
+			{
+				use_recompiler = true;
+			}
+			else if (args[n].equals("-scanline"))
+			{
+				use_scanline_renderer = true;
+			}
+			else if (args[n].equals("-check-scanline"))
+			{
+				use_scanline_renderer = true;
+				check_scanline_renderer = true;
+			}
+			else if (args[n].equals("-wav") && n + 1 < args.length)
+			{
+				wav_file = args[++n];
+			}
+			else
+			{
+				script_file = args[n];
+			}
+		}
+
+		ScriptedInputDevice input_device = (script_file == null) ? new ScriptedInputDevice() :
+			new ScriptedInputDevice(script_file);
+		HeadlessRunner runner = new HeadlessRunner(rom_file, frames, input_device);
+		runner.getNES().setRecompilerEnabled(use_recompiler);
+		runner.getNES().setScanlineRendererEnabled(use_scanline_renderer);
+		runner.getNES().setScanlineRendererChecked(check_scanline_renderer);
+		if (!check_scanline_renderer)
+		{
+			runner.getNES().setFrameSink(new NullFrameSink());
+		}
+		if (wav_file != null)
+		{
+			runner.setSoundSink(new WaveFileAudioSink(wav_file));
+		}
+		long elapsed = runner.run();
+
+		double seconds = elapsed / 1000000000.0;
+		double frame_rate = runner.getFramesDrawn() / seconds;
+		NESBus nes = runner.getNES();
+		long cpu_cycles = (long)frames * RP2C02.EMULATED_FRAME_CLOCKS / 3;
+		System.out.println("ROM: " + rom_file);
+		System.out.println(String.format("Emulated %d frames in %.3f s: %.1f frames/s, %.2fx real time",
+			runner.getFramesDrawn(), seconds, frame_rate, frame_rate / NTSC_FRAME_RATE));
+		System.out.println(String.format("CPU cycles skipped in idle loops: %d (%.1f%%)",
+			nes.getSkippedIdleLoopCycles(), 100.0 * nes.getSkippedIdleLoopCycles() / cpu_cycles));
+		if (wav_file != null)
+		{
+			long samples = (long)(frames * SoundProcessor.SAMPLE_RATE / NTSC_FRAME_RATE);
+			System.out.println(String.format("APU mixer evaluations: %d (%.2f per output sample)",
+				nes.apu.getMixerEvaluations(), (double)nes.apu.getMixerEvaluations() / samples));
+		}
+		if (check_scanline_renderer)
+		{
+			System.out.println("Scanlines on which the scanline and dot renderers disagree: " +
+				nes.ppu.getScanlineMismatches());
+		}
+		if (use_recompiler)
+		{
+			System.out.println("Blocks compiled: " + nes.getRecompiler().blocks_compiled + ", invalidated: " +
+				nes.getRecompiler().blocks_invalidated);
+		}
+	}
+}
@@ -5,6 +5,7 @@ import java.awt.FileDialog;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import javax.swing.JButton;
 import javax.swing.JFrame;
@@ -41,6 +42,13 @@ public class Launcher
 	public SoundProcessor sound_processor;
 	public VideoProcessor video_processor;
 	
+	// The speeds the speed button goes through, as multiples of the real NES.
+	private static final int[] SPEEDS = { 1, 2, 4, SoundProcessor.SPEED_UNLIMITED };
+	private int speed_index = 0;
+	
+	// The state kept by the save state button, or null when there is none for the cartridge inserted.
+	private ByteBuffer saved_state = null;
+	
 	public Launcher(NESBus nes, ACartridge cartridge)
 	{
 		this(nes, true);
@@ -164,6 +172,34 @@ public class Launcher
 		}
 	}
 	
+	// Keeps the state of the machine, to go back to with loadState().
+	public void saveState()
+	{
+		synchronized (execution_lock)
+		{
+			if (saved_state == null)
+			{
+				saved_state = ByteBuffer.allocate(NESBus.MAX_SAVE_STATE_SIZE);
+			}
+			saved_state.clear();
+			nes.saveState(saved_state);
+			saved_state.flip();
+		}
+	}
+	
+	// Puts the machine back into the state kept by saveState(), if there is one.
+	public void loadState()
+	{
+		synchronized (execution_lock)
+		{
+			if (saved_state != null)
+			{
+				nes.loadState(saved_state);
+				saved_state.rewind();
+			}
+		}
+	}
+	
 	public void initializeSound() throws Exception
 	{
 		sound_processor = new SoundProcessor(nes, input_device, execution_lock);
@@ -176,6 +212,19 @@ public class Launcher
 		video_processor.start();
 	}
 	
+	// Sets the speed of the emulation, e.g. 2 to fast-forward at twice the real speed, or SoundProcessor.SPEED_UNLIMITED
+	// to run as fast as possible.
+	public void setSpeed(int speed)
+	{
+		video_processor.setSpeed(speed);
+		sound_processor.setSpeed(speed);
+	}
+	
+	private static String getSpeedText(int speed)
+	{
+		return (speed == SoundProcessor.SPEED_UNLIMITED) ? "Speed: Max" : "Speed: " + speed + "x";
+	}
+	
 	public void initializeInputDevice()
 	{
 		input_device = new KeyboardInputDevice();
@@ -246,6 +295,10 @@ public class Launcher
 		JButton power_off_button = new JButton("Power Off");
 		power_off_button.setEnabled(false);
 		JButton reset_button = new JButton("Reset");
+		JButton speed_button = new JButton(getSpeedText(SPEEDS[speed_index]));
+		JButton save_state_button = new JButton("Save State");
+		JButton load_state_button = new JButton("Load State");
+		load_state_button.setEnabled(false);
 		
 		load_cartridge_button.addActionListener(new ActionListener() 
 		{
@@ -266,6 +319,10 @@ public class Launcher
 		    			{
 		    				ACartridge cartridge = new Cartridge(file_name);
 		    				nes.insertCartridge(cartridge);
+		    				
+		    				// A state only fits the cartridge it was saved with.
+		    				saved_state = null;
+		    				load_state_button.setEnabled(false);
 			    			if (cpudebug != null)
 			    			{
 			    				cpudebug.disassembleProgram();
@@ -335,10 +392,43 @@ public class Launcher
 		    }
 		});
 		
+		speed_button.addActionListener(new ActionListener() 
+		{
+		    @Override
+		    public void actionPerformed(ActionEvent e)
+		    {
+		    	speed_index = (speed_index + 1) % SPEEDS.length;
+		    	setSpeed(SPEEDS[speed_index]);
+		    	speed_button.setText(getSpeedText(SPEEDS[speed_index]));
+		    }
+		});
+		
+		save_state_button.addActionListener(new ActionListener() 
+		{
+		    @Override
+		    public void actionPerformed(ActionEvent e)
+		    {
+		    	saveState();
+		    	load_state_button.setEnabled(true);
+		    }
+		});
+		
+		load_state_button.addActionListener(new ActionListener() 
+		{
+		    @Override
+		    public void actionPerformed(ActionEvent e)
+		    {
+		    	loadState();
+		    }
+		});
+		
 		JPanel controls_panel = new JPanel();
 		controls_panel.add(power_on_button);
 		controls_panel.add(power_off_button);
 		controls_panel.add(reset_button);
+		controls_panel.add(speed_button);
+		controls_panel.add(save_state_button);
+		controls_panel.add(load_state_button);
 		
 		main_frame.add(load_cartridge_button, BorderLayout.NORTH);
 		main_frame.add(controls_panel, BorderLayout.SOUTH);
@@ -359,8 +449,10 @@ public class Launcher
 		openMainWindow();
 		
 		initializeInputDevice();
-		initializeSound();
+		// The video processor connects to the PPU's frames, which has to happen before the sound processor starts
+		// running the emulation.
 		initializeVideo();
+		initializeSound();
 		
 		initializeDebugging();
 	}
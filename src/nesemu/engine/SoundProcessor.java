@@ -1,21 +1,27 @@
 package nesemu.engine;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
-
-import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.DataLine;
-import javax.sound.sampled.SourceDataLine;
-
+import nesemu.engine.audio.AudioOutputThread;
+import nesemu.engine.audio.AudioRingBuffer;
+import nesemu.engine.audio.AudioSink;
+import nesemu.engine.audio.DynamicRateController;
+import nesemu.engine.audio.LineAudioSink;
+import nesemu.engine.audio.NullAudioSink;
 import nesemu.hardware.bus.NESBus;
 import nesemu.hardware.controller.AInputDevice;
 
 /* 
  * The sound processor thread runs the emulation sufficiently long to produce a sound sample. It then sends this sound
- * sample to the sound buffer. This process is repeated until the buffer is full, after which the sound is played. Whilst
- * the sound is played, the emulation is run again to fill the buffer. The buffer level is retrieved from the Java
- * sound libraries and is used as the basis for running the emulation or sleeping.
+ * sample to the sound ring. The emulation is run at exactly the speed of the real NES, the same speed the video
+ * processor shows the frames at, sleeping whenever it is ahead. Only at the start it runs ahead a bit to fill the
+ * sound buffers. The sound device plays at its own clock, so to keep the sound buffers from slowly filling up or
+ * running out, the dynamic rate controller stretches or shrinks the sample period by a fraction of a percent.
+ * 
+ * When fast-forwarding, the emulation is paced at a multiple of the real speed instead, and the sample period is made
+ * that many times longer, so the sound keeps flowing at the same rate and is played faster and higher. Without a speed
+ * cap the emulation runs as fast as it can and the sound is dropped.
+ * 
+ * A separate audio output thread moves the sound from the ring to the audio sink, so the emulation never waits for
+ * the sound device, and the ring is lock-free so the two threads never wait for each other either.
  * 
  * The sound processor thread also gets input from the input device and will set the controller input of the emulation
  * accordingly.
@@ -26,32 +32,50 @@ public class SoundProcessor extends Thread
 	private AInputDevice input;
 	private Object execution_lock;
 	
-	private double current_sound_sample;
-	private double volume = MAX_VOLUME;
+	// The volume as a fixed-point fraction with 15 fractional bits. At MAX_VOLUME the samples are left as they are.
+	private int volume = MAX_VOLUME;
 	
 	private boolean sound_enabled = true;
-	private SourceDataLine line;
-	private long line_id;
-	private int bytes_written_to_line;
-	private int total_bytes_written_to_line;
+	private AudioSink sink;
+	private AudioRingBuffer ring;
+	private AudioOutputThread output_thread;
 	
-	private static final int INTERNAL_SOUND_BUFFER_SIZE = 1024;
-	private static final int LINE_OUT_BUFFER_SIZE =  INTERNAL_SOUND_BUFFER_SIZE * 20;
-	private byte[] internal_sound_buffer = new byte[INTERNAL_SOUND_BUFFER_SIZE];
-	private int internal_sound_buffer_position = 0;
+	// The internal buffer holds samples on their way to the ring.
+	private static final int INTERNAL_SOUND_BUFFER_SIZE = 512;
+	// The number of samples run for each time the execution lock is taken.
+	private static final int SAMPLES_PER_RUN = 64;
+	// The ring is kept filled up to RING_TARGET_SAMPLES and the sink up to LINE_OUT_BUFFER_SIZE bytes, which together
+	// make up the latency. The line buffer leaves room above that so that writing never has to wait.
+	private static final int RING_TARGET_SAMPLES = 1024;
+	private static final int LINE_OUT_BUFFER_SIZE = 6 * 1024;
+	private static final int LINE_BUFFER_SIZE = LINE_OUT_BUFFER_SIZE * 2;
+	// The samples waiting in the ring and the sink together that the rate controller aims for.
+	private static final int TARGET_BUFFERED_SAMPLES = RING_TARGET_SAMPLES + LINE_OUT_BUFFER_SIZE / 2;
+	// If the emulation falls behind by more than this, it does not try to catch up. If catching up overfills the sound
+	// buffers by more than MAX_BUFFERED_SAMPLES, the emulation waits for the excess to be played instead of leaving the
+	// rate controller to slowly work it off.
+	private static final long MAX_LAG_NANOS = 250000000L;
+	private static final int MAX_BUFFERED_SAMPLES = TARGET_BUFFERED_SAMPLES * 3 / 2;
+	private short[] internal_sound_buffer = new short[INTERNAL_SOUND_BUFFER_SIZE];
 	
 	private double audio_sample_length_millis = (1 / (double)SAMPLE_RATE) * 1000;
 	
-	// Variables to track where the emulation is in terms of audio time.
-	private double audio_time_per_system_sample;
+	// The length of a NES clock in seconds, to track where the emulation is in terms of audio time.
 	private double audio_time_per_nes_clock;
-	private double audio_time;
 	
-	private Method nWrite = null;
-	private Method nGetBytePosition = null;
+	// Variables to run the emulation at the speed of the real NES.
+	private DynamicRateController rate_controller = new DynamicRateController(TARGET_BUFFERED_SAMPLES);
+	private long nes_clocks_run;
+	private long pace_start_nanos;
+	
+	// Monitoring: the number of times the emulation had to wait for room in the ring.
+	private int ring_overruns;
 	
-	// Debug variable
-	private boolean fullspeed = false;
+	// The speed as a multiple of the real NES, or SPEED_UNLIMITED. The emulation picks up a change the next time round
+	// its loop, and paced_speed is the speed the current pacing was started with.
+	public static final int SPEED_UNLIMITED = 0;
+	private volatile int speed = 1;
+	private int paced_speed = 1;
 	
 	public static final int SAMPLE_RATE = 44100;
 	public static final int BIT_DEPTH = 16;
@@ -59,10 +83,17 @@ public class SoundProcessor extends Thread
 	public static final int MAX_VOLUME = 32767;
 
 	public SoundProcessor(NESBus nes, AInputDevice input, Object execution_lock) throws Exception 
+	{
+		this(nes, input, execution_lock, new LineAudioSink(LINE_BUFFER_SIZE));
+	}
+	
+	public SoundProcessor(NESBus nes, AInputDevice input, Object execution_lock, AudioSink sink) throws Exception 
 	{
 		this.nes = nes;
 		this.input = input;
 		this.execution_lock = execution_lock;
+		this.sink = sink;
+		ring = new AudioRingBuffer(RING_TARGET_SAMPLES * 4);
 		
 		if (!sound_enabled) volume = 0;
 		setSampleFrequency(SAMPLE_RATE);
@@ -70,103 +101,161 @@ public class SoundProcessor extends Thread
 		openSoundOutput();
 	}
 	
+	// Opens the sink and starts the thread that feeds it from the ring.
 	public void openSoundOutput() throws Exception
 	{
-		// Open the Java sound library and get a sound "line" object.
-		AudioFormat format = new AudioFormat(SAMPLE_RATE, BIT_DEPTH, CHANNELS, true, false);
-		DataLine.Info info = 
-			new DataLine.Info(SourceDataLine.class, format, LINE_OUT_BUFFER_SIZE * 5);
-		if (!AudioSystem.isLineSupported(info))
+		try
+		{
+			sink.open(SAMPLE_RATE, CHANNELS);
+		}
+		catch (Exception e)
 		{
-			throw new Exception("Sound format not supported.");
+			if (!(sink instanceof LineAudioSink))
+			{
+				throw e;
+			}
+			
+			// There is no usable sound device. Carry on without sound, at normal speed.
+			System.out.println("No sound output, running without sound: " + e.getMessage());
+			sink = new NullAudioSink(LINE_BUFFER_SIZE);
+			sink.open(SAMPLE_RATE, CHANNELS);
 		}
-	    line = (SourceDataLine) AudioSystem.getLine(info);		    
-	    line.open(format);
-	    
-	    // Get the nWrite and nGetBytePosition private native methods via reflection. This is needed because the
-	    // Java sound library is crap and direct access is needed to the DirectSound drivers.
-	    // The big problem with this of course is that it makes it Windows specific, but I have not found a workaround
-	    // for this yet.
-	    Class direct_sound_implementation_class = Class.forName("com.sun.media.sound.DirectAudioDevice");
-	    Method[] methods = direct_sound_implementation_class.getDeclaredMethods();
-	    for (int n=0; n < methods.length; n++)
-	    {
-	    	if (methods[n].getName().equals("nWrite"))
-	    	{
-	    		nWrite = methods[n];
-	    		nWrite.setAccessible(true);
-	    	}
-	    	
-	    	if (methods[n].getName().equals("nGetBytePosition"))
-	    	{
-	    		nGetBytePosition = methods[n];
-	    		nGetBytePosition.setAccessible(true);
-	    	}
-	    }
-	    
-	    // A line ID is needed to call the DirectSound driver methods retrieved above. Unfortunately this is also
-	    // private in Java so we need to use reflection to get this as well.
-	    Class directdl_sound_implementation_class = Class.forName("com.sun.media.sound.DirectAudioDevice$DirectDL");
-	    Field line_id_field = directdl_sound_implementation_class.getDeclaredField("id");
-	    line_id_field.setAccessible(true);
-	    Long obj = (Long)line_id_field.get(line);
-	    line_id = obj.longValue();
-	    
-	    line.start();
+		output_thread = new AudioOutputThread(ring, sink, LINE_OUT_BUFFER_SIZE);
+		output_thread.start();
+		
+		rate_controller.reset();
+		startPacing();
 	}
 	
-	public void setSampleFrequency(int sample_rate)
+	// Makes the emulation continue from its current point at real speed, after first running far enough ahead to fill
+	// the sound buffers up to the target.
+	private void startPacing()
 	{
-		audio_time_per_system_sample = 1.0 / (double)sample_rate;
-		audio_time_per_nes_clock = (1.0 / (double)5369318.0); // PPU Clock frequency
+		int missing_samples = TARGET_BUFFERED_SAMPLES - getBufferedSamples();
+		pace_start_nanos =
+			System.nanoTime() - getPacedNanos() - (long)(missing_samples * audio_sample_length_millis * 1000000);
 	}
 	
-	// Runs the emulation as long as a sample period. For example, if the sound sample rate is 44100 hertz, then
-	// the emulation will be run for 1/44100 seconds.
-	// The sound sample at that point is then returned for playback.
-	// During this process the input device's state is also provided to the emulation.
-	public double runToNextSoundSample()
+	// The real time the emulation should have taken to get to where it is, at the current speed.
+	private long getPacedNanos()
 	{
-		synchronized (execution_lock)
+		return (paced_speed == SPEED_UNLIMITED) ? 0 : getEmulatedNanos() / paced_speed;
+	}
+	
+	// The time the emulation has run for, in real NES time.
+	private long getEmulatedNanos()
+	{
+		return (long)(nes_clocks_run * audio_time_per_nes_clock * 1000000000);
+	}
+	
+	// The number of samples produced but not played yet.
+	private int getBufferedSamples()
+	{
+		return ring.size() + ((output_thread != null) ? output_thread.getBufferedSamples() : 0);
+	}
+	
+	// Stops feeding the sink, closes it and throws away the sound not yet sent to it.
+	public void closeSoundOutput() throws InterruptedException
+	{
+		if (output_thread != null)
+		{
+			output_thread.shutdown();
+			output_thread = null;
+		}
+		sink.close();
+		ring.clear();
+		clearInternalSoundBuffer();
+	}
+	
+	// Writes the first samples of the internal buffer to the ring, waiting for room in the ring if needed.
+	private void writeInternalSoundBuffer(int length) throws InterruptedException
+	{
+		int total_samples_written = 0;
+		while (total_samples_written < length)
 		{
-			while (audio_time < audio_time_per_system_sample)
+			int samples_written = ring.write(internal_sound_buffer, total_samples_written, length - total_samples_written);
+			if (samples_written == 0)
 			{
-				nes.clock();
-				nes.controller[0] = input.getController1Input();
-				nes.controller[1] = input.getController2Input();
-				audio_time += audio_time_per_nes_clock;
-			};
-			audio_time -= audio_time_per_system_sample;
-			return nes.apu.getOutputSample();
+				ring_overruns++;
+				Thread.sleep(1);
+			}
+			total_samples_written += samples_written;
 		}
 	}
 	
-	// Runs to the next sample as explained above, modifies the sample based on the chosen volume and returns it.
-	public int getAudioSample()
+	// The time from a sample being produced to it being played, in milliseconds.
+	public double getLatencyMillis()
 	{
-		current_sound_sample = runToNextSoundSample();
-		current_sound_sample *= volume;
-		return (int)current_sound_sample;
+		return getBufferedSamples() * audio_sample_length_millis;
 	}
 	
-	// Debug method that can be used to run the emulation at full speed to see what framerate can be achieved.
-	public void runFullspeed()
+	public DynamicRateController getRateController()
 	{
-		while (true)
+		return rate_controller;
+	}
+	
+	// The number of times the sound device ran out of sound.
+	public int getAudioUnderruns()
+	{
+		return (output_thread != null) ? output_thread.getUnderruns() : 0;
+	}
+	
+	// The number of times the emulation had to wait because the sound buffers were full.
+	public int getRingOverruns()
+	{
+		return ring_overruns;
+	}
+	
+	// Sets the speed of the emulation as a multiple of the real NES, e.g. 2 or 4 to fast-forward, or SPEED_UNLIMITED.
+	public void setSpeed(int speed)
+	{
+		this.speed = Math.max(SPEED_UNLIMITED, speed);
+	}
+	
+	public int getSpeed()
+	{
+		return speed;
+	}
+	
+	public void setSampleFrequency(int sample_rate)
+	{
+		audio_time_per_nes_clock = (1.0 / (double)5369318.0); // PPU Clock frequency
+		nes.setBandLimitedSampleRate(sample_rate);
+	}
+	
+	// Runs the emulation for a number of sample periods, taking the execution lock once for all of them, and stores the
+	// sound samples with the chosen volume in the given buffer. Rather than sampling the APU output after each sample
+	// period, the emulation is run for all of them in one go and the APU's band-limited samples are read.
+	public void runToNextSoundSamples(short[] samples, int count)
+	{
+		synchronized (execution_lock)
 		{
-			getAudioSample();
+			nes.controller[0] = input.getController1Input();
+			nes.controller[1] = input.getController2Input();
+			
+			int samples_read = 0;
+			while (samples_read < count)
+			{
+				// The APU is clocked once every 3 PPU clocks.
+				long clocks = 3L * nes.apu.getClocksNeeded(count - samples_read);
+				nes.runClocks(clocks);
+				nes_clocks_run += clocks;
+				samples_read += nes.apu.readSamples(samples, samples_read, count - samples_read);
+			}
+			
+			if (volume != MAX_VOLUME)
+			{
+				for (int n=0; n < count; n++)
+				{
+					samples[n] = (short)((samples[n] * volume) >> 15);
+				}
+			}
 		}
 	}
 	
 	// Runs the emulation normally.
 	public void runNormally() throws Exception
 	{
-		// Temporary variables
-		int audio_sample;
-		byte byte1;
-		byte byte2;
-		long position;
-		
 		boolean last_nes_power_state = false;
 		
 		while (true)
@@ -178,8 +267,7 @@ public class SoundProcessor extends Thread
 				synchronized (execution_lock)
 				{
 					// Disable the sound during to avoid clicks and pops.
-					line.close();
-					clearInternalSoundBuffer();
+					closeSoundOutput();
 					
 					// If we changed from an off state to an on state then power on the NES.
 					if (nes.is_powered_on)
@@ -187,9 +275,9 @@ public class SoundProcessor extends Thread
 						// Run the NES a bit to force Java to do its JIT (Just in Time compilation), but do this
 						// without sound and video. Doing this will result in a faster run when we enable the
 						// NES again, which avoids sound clicks and pops.
-						for (int n=0; n < 100000; n++)
+						for (int n=0; n < 100000; n += SAMPLES_PER_RUN)
 						{
-							if (nes.is_powered_on) getAudioSample();
+							if (nes.is_powered_on) runToNextSoundSamples(internal_sound_buffer, SAMPLES_PER_RUN);
 						}
 						
 						if (nes.is_powered_on)
@@ -211,59 +299,39 @@ public class SoundProcessor extends Thread
 				}
 			}
 			
-			if (nes.is_powered_on)
+			if (nes.is_powered_on && speed != paced_speed)
+			{
+				// The speed changed. Carry on from here at the new speed, with the sound buffers back at the target.
+				paced_speed = speed;
+				rate_controller.reset();
+				startPacing();
+			}
+			
+			if (nes.is_powered_on && paced_speed == SPEED_UNLIMITED)
+			{
+				// Run as fast as possible. The sound is thrown away, as there is no way to play it at this speed.
+				last_nes_power_state = true;
+				runToNextSoundSamples(internal_sound_buffer, SAMPLES_PER_RUN);
+			}
+			else if (nes.is_powered_on)
 			{
 				last_nes_power_state = true;
-				//long position = total_bytes_sent - (line.getLongFramePosition() << 1);
-				// Get the current byte position in the line's buffer.
-				position = -((Long)(nGetBytePosition.invoke(null, new Object[] {line_id, true, 0}))).longValue();
+				long lag_nanos = System.nanoTime() - pace_start_nanos - getPacedNanos();
 	
-				if (position < LINE_OUT_BUFFER_SIZE)
+				if (lag_nanos > MAX_LAG_NANOS || (lag_nanos >= 0 && getBufferedSamples() > MAX_BUFFERED_SAMPLES))
 				{
-					// If we are getting dangerously close to running out of line buffer, get some more samples so that we 
-					// can buffer more.
-					audio_sample = getAudioSample();
-					
-					// Add the sample to an internal buffer first, we don't want to make unnecessary method calls, rather
-					// buffer a bit internally and then blast the buffer to the line.
-					byte1 = (byte)(audio_sample & 0xFF);
-					byte2 = (byte)((audio_sample & 0xFF00) >> 8);
-					internal_sound_buffer[internal_sound_buffer_position] = byte1;
-					internal_sound_buffer_position++;
-					internal_sound_buffer[internal_sound_buffer_position] = byte2;
-					internal_sound_buffer_position++;
-	
-					// Wait for the internal buffer to be full before blasting it to the line buffer.
-					if (internal_sound_buffer_position == INTERNAL_SOUND_BUFFER_SIZE)
-					{
-						total_bytes_written_to_line = 0;
-						
-						// Blast the internal buffer to the line buffer.
-						while (total_bytes_written_to_line < INTERNAL_SOUND_BUFFER_SIZE)
-						{
-							bytes_written_to_line = 
-								((Integer)
-									(
-										nWrite.invoke
-										(
-											null, 
-											new Object[] 
-											{
-												line_id, 
-												internal_sound_buffer,
-												total_bytes_written_to_line,
-												internal_sound_buffer_position - total_bytes_written_to_line,
-												0,
-												1.0f,
-												1.0f
-											}
-										)
-									)
-								).intValue();
-							total_bytes_written_to_line += bytes_written_to_line;
-						}
-						internal_sound_buffer_position = 0;
-					}
+					// The emulation fell far behind, e.g. because the machine was busy, or it caught up and overfilled
+					// the sound buffers. Carry on from here with the sound buffers back at the target.
+					startPacing();
+				}
+				else if (lag_nanos >= 0)
+				{
+					// If the emulation is behind real time, run it for a few more samples, with the sample period
+					// adjusted for the sound waiting to be played and the speed. The output thread moves them on to
+					// the sink.
+					nes.setBandLimitedSampleRate(SAMPLE_RATE / (paced_speed * rate_controller.update(getBufferedSamples())));
+					runToNextSoundSamples(internal_sound_buffer, SAMPLES_PER_RUN);
+					writeInternalSoundBuffer(SAMPLES_PER_RUN);
 				}
 				else
 				{
@@ -283,32 +351,7 @@ public class SoundProcessor extends Thread
 				// If the NES is off we will simulate an old TV screen's "hiss".
 				last_nes_power_state = false;
 				randomizeInternalSoundBuffer();
-				total_bytes_written_to_line = 0;
-				
-				// Blast the internal buffer to the line buffer.
-				while (total_bytes_written_to_line < INTERNAL_SOUND_BUFFER_SIZE)
-				{
-					bytes_written_to_line = 
-						((Integer)
-							(
-								nWrite.invoke
-								(
-									null, 
-									new Object[] 
-									{
-										line_id, 
-										internal_sound_buffer,
-										total_bytes_written_to_line,
-										INTERNAL_SOUND_BUFFER_SIZE,
-										0,
-										1.0f,
-										1.0f
-									}
-								)
-							)
-						).intValue();
-					total_bytes_written_to_line += bytes_written_to_line;
-				}
+				writeInternalSoundBuffer(INTERNAL_SOUND_BUFFER_SIZE);
 				Thread.sleep((long)(audio_sample_length_millis * INTERNAL_SOUND_BUFFER_SIZE / 2));
 			}
 		}
@@ -328,7 +371,7 @@ public class SoundProcessor extends Thread
 		// Initialize variables
 		for (int n=0; n < INTERNAL_SOUND_BUFFER_SIZE; n++)
 		{
-			internal_sound_buffer[n] = (byte)(Math.random() * 8 - 4);
+			internal_sound_buffer[n] = (short)(((int)(Math.random() * 8 - 4) << 8) | ((int)(Math.random() * 8 - 4) & 0xFF));
 		}
 	}
 	
@@ -338,14 +381,7 @@ public class SoundProcessor extends Thread
 		
 		try
 		{
-			if (fullspeed)
-			{
-				runFullspeed();
-			}
-			else
-			{
-				runNormally();
-			}
+			runNormally();
 		}
 		catch (Exception e)
 		{
@@ -355,7 +391,7 @@ public class SoundProcessor extends Thread
 	}
 	
 	// Debug methods
-	public byte[] getInternalSoundBuffer()
+	public short[] getInternalSoundBuffer()
 	{
 		return internal_sound_buffer;
 	}
@@ -15,16 +15,17 @@ import nesemu.hardware.bus.NESBus;
 import nesemu.hardware.controller.AInputDevice;
 import nesemu.hardware.video.RP2C02;
 import nesemu.hardware.video.RP2C02.Frame;
+import nesemu.hardware.video.TripleFrameBuffer;
 
 /*
  * The video processor thread aims to draw the frames of the emulation at a constant rate of X frames per second where
  * X is usually 60 (for NTSC).
  * 
  * Note that the video processor thread runs independently of the actual emulation. The emulation stores frames as it
- * executes and the video processor thread draws these frames at the correct time. If this is not done the emulation
- * will speed up and slow down slightly since the emulation is run according to the sound buffer i.e. if the sound
- * buffer is getting low the emulation is run quickly to catch up. It is during these "quick catchup" times that the
- * framerate will then not be at the desirable speed and therefore this video processor thread is required.
+ * executes and the video processor thread draws these frames at the correct time. The sound processor runs the
+ * emulation at the same rate, with the sound kept in step by dynamic rate control, so normally every frame is drawn
+ * exactly once. Only when the emulation stalls do frames have to be skipped or repeated. When fast-forwarding, the PPU
+ * only draws every so many frames, as the others could not be shown anyway.
  * 
  * Doing it this way also reflects how an actual NES works i.e. the APU and PPU run independently of each other.
  */
@@ -32,6 +33,9 @@ public class VideoProcessor extends Thread
 {
 	private NESBus nes;
 	private Object execution_lock;
+	
+	// The frames of the emulation. The PPU hands over each frame as it completes it, and the newest one is drawn.
+	private TripleFrameBuffer frames = new TripleFrameBuffer();
 
 	// The current frame rate being achieved and associate variables.
 	public int current_frame_number_video_processor;
@@ -41,10 +45,19 @@ public class VideoProcessor extends Thread
 	
 	// Since the video processor and emulation runs independently of each other, they may drift out of sync from time
 	// to time. To compensate for this frames have to be skipped (when the emulation is running too quickly) or 
-	// repeated (when the emulation is running too slowly). The variables below keep track of this.
+	// repeated (when the emulation is running too slowly). The variables below keep track of this, for monitoring.
 	public int skipped_frames = 0;
 	public int repeated_frames = 0;
 	
+	// The rate at which the emulation completes frames, which is a multiple of the target frame rate when
+	// fast-forwarding, and the frame number and time it was last measured at.
+	public double emulated_frame_rate = 0.0;
+	private int last_emulated_frame_number = 0;
+	private long last_emulated_sample_time_nanos;
+	
+	// The speed of the emulation, see SoundProcessor.setSpeed().
+	private volatile int speed = 1;
+	
 	// The actual window that output will be rendered on.
 	private TVScreenFrame tv_screen_frame;
 	// The graphics context of the window that output will be rendered on.
@@ -63,6 +76,7 @@ public class VideoProcessor extends Thread
 	{
 		this.nes = nes;
 		this.execution_lock = execution_lock;
+		nes.setFrameSink(frames);
 		
 		tv_screen_frame = new TVScreenFrame();
 		tv_screen_frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -92,6 +106,42 @@ public class VideoProcessor extends Thread
 		return current_frame_rate;
 	}
 	
+	// Measures the rate at which the emulation completes frames, from the number of the newest frame. Without a speed
+	// cap, this also decides how many frames the PPU can skip drawing so that about TARGET_FRAME_RATE are drawn.
+	private void calculateEmulatedFrameRate(int frame_number)
+	{
+		long time_elapsed_nanos = System.nanoTime() - last_emulated_sample_time_nanos;
+		if (time_elapsed_nanos >= ONE_SECOND_NANOS)
+		{
+			// After a reset the frame numbers start again.
+			if (frame_number >= last_emulated_frame_number)
+			{
+				emulated_frame_rate =
+					(frame_number - last_emulated_frame_number) / (time_elapsed_nanos / ONE_SECOND_NANOS);
+			}
+			// The speed is read once and the interval is always set from it. If setSpeed() runs in between and its
+			// interval is overwritten with one for the old speed, the next measurement puts it right.
+			int current_speed = speed;
+			if (current_speed == SoundProcessor.SPEED_UNLIMITED)
+			{
+				frames.setFrameInterval((int)Math.ceil(emulated_frame_rate / TARGET_FRAME_RATE));
+			}
+			else
+			{
+				frames.setFrameInterval(Math.max(1, current_speed));
+			}
+			last_emulated_sample_time_nanos = System.nanoTime();
+			last_emulated_frame_number = frame_number;
+		}
+	}
+	
+	// Follows a change of the speed of the emulation: at N times the real speed only every Nth frame is drawn.
+	public void setSpeed(int speed)
+	{
+		this.speed = speed;
+		frames.setFrameInterval(Math.max(1, speed));
+	}
+	
 	public void run()
 	{
 		setPriority(MAX_PRIORITY);
@@ -111,10 +161,11 @@ public class VideoProcessor extends Thread
 		
 		// Initialize the current frame variable.
 		current_frame_number_video_processor = 0;
-		Frame[] current_frame;
-		current_frame = new Frame[1];
-		current_frame[0] = new Frame();
-		current_frame[0].frame = new BufferedImage(256, 240, BufferedImage.TYPE_INT_RGB);
+		BufferedImage screen = new BufferedImage(256, 240, BufferedImage.TYPE_INT_RGB);
+		Frame current_frame;
+		
+		// The number of the last frame of the emulation that was drawn, to tell skipped and repeated frames.
+		int last_frame_number = -1;
 		
 		// Calculate the time between frames assuming that a frame can be drawn in 0 time.
 		double time_between_frames_nanos = (1 / TARGET_FRAME_RATE) * ONE_SECOND_NANOS;
@@ -128,10 +179,6 @@ public class VideoProcessor extends Thread
 		// to this.
 		double next_target_time_nanos;
 		
-		// Variables used by reference to store the current frame number of the APU as 
-		int[] current_frame_number_apu = new int[1]; 
-		boolean[] frame_retrieved = new boolean[1];
-		
 		// Whether the NES emulator was on or not.
 		boolean last_nes_power_state = false;
 		
@@ -144,11 +191,10 @@ public class VideoProcessor extends Thread
 				{
 					if (nes.is_powered_on)
 					{
-						current_frame[0].frame = new BufferedImage(256, 240, BufferedImage.TYPE_INT_RGB);
 						for (int x=0; x < 256; x++)
 							for (int y=0; y < 240; y++)
-								current_frame[0].frame.setRGB(x, y, RP2C02.NES_GRAY);
-						graphics.drawImage(current_frame[0].frame, 0, 0, 512, 480, 0, 0, 256, 240, null);
+								screen.setRGB(x, y, RP2C02.NES_GRAY);
+						graphics.drawImage(screen, 0, 0, 512, 480, 0, 0, 256, 240, null);
 						synchronized (execution_lock)
 						{
 							if (nes.is_starting_up)
@@ -156,6 +202,7 @@ public class VideoProcessor extends Thread
 						}
 						next_target_time_nanos = System.nanoTime()+time_between_frames_nanos;
 						current_frame_number_video_processor = 0;
+						last_frame_number = -1;
 					}
 				}
 				if (nes.is_powered_on)
@@ -173,24 +220,22 @@ public class VideoProcessor extends Thread
 					}
 					
 					// Now get and draw the finished frame, hopefully this takes less than 25% of the sleep time.
-					synchronized (nes.ppu)
+					// The newest frame is always drawn. When the emulation has not completed a frame since the last
+					// draw the same frame is drawn again, and any frames it completed in between are never drawn.
+					// Frames the PPU was told not to draw do not count as skipped.
+					current_frame = frames.getNewestFrame();
+					int frame_interval = frames.getFrameInterval();
+					if (current_frame.frame_number == last_frame_number)
 					{
-						nes.ppu.getFrame(current_frame_number_video_processor, current_frame, frame_retrieved, current_frame_number_apu);
-						if (!frame_retrieved[0])
-						{
-							current_frame_number_video_processor = current_frame_number_apu[0] - 1;
-							repeated_frames++;
-						}
-						else
-						{
-							if (current_frame_number_video_processor < current_frame_number_apu[0] - 2)
-							{
-								current_frame_number_video_processor++;
-								skipped_frames++;
-							}
-						}
+						repeated_frames++;
+					}
+					else if (last_frame_number >= 0 && current_frame.frame_number > last_frame_number + frame_interval)
+					{
+						skipped_frames += (current_frame.frame_number - last_frame_number) / frame_interval - 1;
 					}
-					graphics.drawImage(current_frame[0].frame, 0, 0, 512, 480, 0, 0, 256, 240, null);
+					last_frame_number = current_frame.frame_number;
+					calculateEmulatedFrameRate(last_frame_number);
+					graphics.drawImage(current_frame.frame, 0, 0, 512, 480, 0, 0, 256, 240, null);
 					if (should_calculate_framerate) calculateCurrentFrameRate();
 					current_frame_number_video_processor++;
 
@@ -203,8 +248,8 @@ public class VideoProcessor extends Thread
 					last_nes_power_state = false;
 					for (int x=0; x < 256; x++)
 						for (int y=0; y < 240; y++)
-							current_frame[0].frame.setRGB(x, y, Math.random() > 0.5 ? Color.BLACK.getRGB() : Color.WHITE.getRGB());
-					graphics.drawImage(current_frame[0].frame, 0, 0, 512, 480, 0, 0, 256, 240, null);
+							screen.setRGB(x, y, Math.random() > 0.5 ? Color.BLACK.getRGB() : Color.WHITE.getRGB());
+					graphics.drawImage(screen, 0, 0, 512, 480, 0, 0, 256, 240, null);
 				}
 			}
 		}
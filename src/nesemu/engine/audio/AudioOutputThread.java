@@ -0,0 +1,92 @@
+package nesemu.engine.audio;
+
+/*
+ * The consumer side of the audio ring: moves samples from the ring to the sink whenever the sink has less than its
+ * target amount of sound waiting to be played. It runs on its own thread so that the emulation never waits for the
+ * sound device and the sound device is never starved while the emulation holds the execution lock.
+ */
+public class AudioOutputThread extends Thread
+{
+	private static final int CHUNK_SAMPLES = 512;
+
+	private AudioRingBuffer ring;
+	private AudioSink sink;
+	private int target_buffered_bytes;
+	private byte[] chunk = new byte[CHUNK_SAMPLES * 2];
+
+	private volatile boolean running = true;
+
+	// Monitoring: the samples in the sink at the last look, and the number of times the sink ran dry.
+	private volatile int buffered_samples;
+	private volatile int underruns;
+	private boolean has_written;
+
+	public AudioOutputThread(AudioRingBuffer ring, AudioSink sink, int target_buffered_bytes)
+	{
+		super("Audio output");
+		this.ring = ring;
+		this.sink = sink;
+		this.target_buffered_bytes = target_buffered_bytes;
+		setDaemon(true);
+	}
+
+	public void run()
+	{
+		setPriority(MAX_PRIORITY);
+		try
+		{
+			while (running)
+			{
+				int buffered_bytes = sink.getBufferedBytes();
+				buffered_samples = buffered_bytes / 2;
+				int room = Math.min(target_buffered_bytes - buffered_bytes, sink.available());
+				int samples = (room > 0) ? ring.readBytes(chunk, 0, Math.min(room / 2, CHUNK_SAMPLES)) : 0;
+				if (samples == 0)
+				{
+					if (buffered_bytes == 0 && has_written)
+					{
+						underruns++;
+						has_written = false;
+					}
+					// Either the sink has enough sound or the emulation has not produced any more. Wait a bit.
+					Thread.sleep(1);
+					continue;
+				}
+
+				int total_bytes_written = 0;
+				while (total_bytes_written < samples * 2 && running)
+				{
+					int bytes_written = sink.write(chunk, total_bytes_written, samples * 2 - total_bytes_written);
+					if (bytes_written == 0)
+					{
+						Thread.sleep(1);
+					}
+					total_bytes_written += bytes_written;
+				}
+				has_written = true;
+			}
+		}
+		catch (InterruptedException e)
+		{
+		}
+	}
+
+	// The number of samples in the sink that have not been played yet.
+	public int getBufferedSamples()
+	{
+		return buffered_samples;
+	}
+
+	// The number of times the sink had played everything and there was nothing in the ring to give it.
+	public int getUnderruns()
+	{
+		return underruns;
+	}
+
+	// Stops the thread and waits for it to finish, after which the ring and the sink are free to be used elsewhere.
+	public void shutdown() throws InterruptedException
+	{
+		running = false;
+		join();
+	}
+}
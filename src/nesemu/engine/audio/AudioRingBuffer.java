@@ -0,0 +1,103 @@
+package nesemu.engine.audio;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * A ring of 16 bit PCM samples between one producer thread, the emulation, and one consumer thread, the audio output.
+ * Neither side ever takes a lock or waits for the other: each side only moves its own position forward, and publishes
+ * it with an ordered write after the samples themselves are in place, so the other side never sees a position before
+ * the samples it covers.
+ */
+public class AudioRingBuffer
+{
+	private short[] samples;
+	private int capacity;
+	private int mask;
+
+	// The number of samples ever written and read. Only the producer moves the write position and only the consumer
+	// moves the read position.
+	private AtomicLong write_position = new AtomicLong();
+	private AtomicLong read_position = new AtomicLong();
+
+	// Each side's last seen position of the other side. The other side's position is only read again when this one
+	// says the ring is full (producer) or empty (consumer), which saves most of the reads of the shared positions.
+	private long producer_read_position;
+	private long consumer_write_position;
+
+	// The capacity is rounded up to a power of 2, so that positions wrap with a mask.
+	public AudioRingBuffer(int capacity)
+	{
+		this.capacity = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+		mask = this.capacity - 1;
+		samples = new short[this.capacity];
+	}
+
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	// The number of samples waiting to be read. From any thread, this is a snapshot that may already be out of date.
+	public int size()
+	{
+		long read = read_position.get();
+		return (int)(write_position.get() - read);
+	}
+
+	// Producer only. Writes up to length samples and returns the number written, which is less than length if the ring
+	// fills up.
+	public int write(short[] buffer, int offset, int length)
+	{
+		long write = write_position.get();
+		if (write + length - producer_read_position > capacity)
+		{
+			producer_read_position = read_position.get();
+		}
+		int count = Math.min(length, capacity - (int)(write - producer_read_position));
+		if (count <= 0)
+		{
+			return 0;
+		}
+
+		int start = (int)write & mask;
+		int first_part = Math.min(count, capacity - start);
+		System.arraycopy(buffer, offset, samples, start, first_part);
+		System.arraycopy(buffer, offset + first_part, samples, 0, count - first_part);
+		write_position.lazySet(write + count);
+		return count;
+	}
+
+	// Consumer only. Reads up to max_samples samples into the buffer as 16 bit signed little endian PCM, and returns
+	// the number of samples read.
+	public int readBytes(byte[] buffer, int offset, int max_samples)
+	{
+		long read = read_position.get();
+		if (read + max_samples > consumer_write_position)
+		{
+			consumer_write_position = write_position.get();
+		}
+		int count = Math.min(max_samples, (int)(consumer_write_position - read));
+		if (count <= 0)
+		{
+			return 0;
+		}
+
+		for (int n=0; n < count; n++)
+		{
+			int sample = samples[(int)(read + n) & mask];
+			buffer[offset++] = (byte)(sample & 0xFF);
+			buffer[offset++] = (byte)((sample >> 8) & 0xFF);
+		}
+		read_position.lazySet(read + count);
+		return count;
+	}
+
+	// Empties the ring. Only to be called while neither the producer nor the consumer is using it.
+	public void clear()
+	{
+		write_position.set(0);
+		read_position.set(0);
+		producer_read_position = 0;
+		consumer_write_position = 0;
+	}
+}
@@ -0,0 +1,23 @@
+package nesemu.engine.audio;
+
+/*
+ * Where the sound processor sends the sound it produces: 16 bit signed little endian PCM. The sound processor uses the
+ * number of bytes still waiting to be played to decide whether to run the emulation or to sleep, so the sink decides
+ * how fast the emulation runs.
+ */
+public interface AudioSink
+{
+	// Opens the sink for sound of the given sample rate and number of channels.
+	public void open(int sample_rate, int channels) throws Exception;
+
+	public void close();
+
+	// The number of bytes that can be written without blocking.
+	public int available();
+
+	// The number of bytes written that have not been played yet.
+	public int getBufferedBytes();
+
+	// Writes up to length bytes from the buffer and returns the number of bytes written.
+	public int write(byte[] buffer, int offset, int length);
+}
@@ -0,0 +1,82 @@
+package nesemu.engine.audio;
+
+/*
+ * Keeps the sound waiting to be played at a steady level while the emulation runs at exactly the frame rate of the
+ * display. The sound device plays at its own clock, which is never exactly the system clock the display is timed on,
+ * so with a fixed sample period the waiting sound would slowly grow or run out. Instead, the sample period is made
+ * slightly longer when there is more sound waiting than the target, so fewer samples are produced, and slightly shorter
+ * when there is less. The change is at most MAX_ADJUSTMENT, far too small to hear as a change in pitch.
+ */
+public class DynamicRateController
+{
+	// The most the sample period is changed by: 0.5%, i.e. less than a tenth of a semitone.
+	public static final double MAX_ADJUSTMENT = 0.005;
+
+	// The level, as a fraction of the target away from the target, at which the full adjustment is made. Below that, the
+	// adjustment is in proportion.
+	private static final double FULL_ADJUSTMENT_ERROR = 0.25;
+
+	// How quickly the measured level follows the actual level. The level moves in steps as the sound is passed on in
+	// chunks, and the adjustment should follow the drift rather than these steps.
+	private static final double SMOOTHING = 0.01;
+
+	private int target_samples;
+	private double smoothed_samples;
+	private double adjustment;
+
+	// Monitoring: the lowest and highest level seen since the last reset.
+	private int min_samples;
+	private int max_samples;
+
+	public DynamicRateController(int target_samples)
+	{
+		this.target_samples = target_samples;
+		reset();
+	}
+
+	public void reset()
+	{
+		smoothed_samples = target_samples;
+		adjustment = 0;
+		min_samples = Integer.MAX_VALUE;
+		max_samples = 0;
+	}
+
+	// Takes the number of samples waiting to be played and returns the factor to multiply the sample period with.
+	public double update(int samples)
+	{
+		min_samples = Math.min(min_samples, samples);
+		max_samples = Math.max(max_samples, samples);
+		smoothed_samples += (samples - smoothed_samples) * SMOOTHING;
+
+		double error = (smoothed_samples - target_samples) / target_samples;
+		adjustment = Math.max(-MAX_ADJUSTMENT, Math.min(MAX_ADJUSTMENT, error / FULL_ADJUSTMENT_ERROR * MAX_ADJUSTMENT));
+		return 1.0 + adjustment;
+	}
+
+	public int getTargetSamples()
+	{
+		return target_samples;
+	}
+
+	// The current change of the sample period, e.g. 0.001 for 0.1% longer.
+	public double getAdjustment()
+	{
+		return adjustment;
+	}
+
+	public double getSmoothedSamples()
+	{
+		return smoothed_samples;
+	}
+
+	public int getMinSamples()
+	{
+		return min_samples;
+	}
+
+	public int getMaxSamples()
+	{
+		return max_samples;
+	}
+}
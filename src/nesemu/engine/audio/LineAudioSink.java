@@ -0,0 +1,63 @@
+package nesemu.engine.audio;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.SourceDataLine;
+
+/*
+ * Plays the sound through a Java sound SourceDataLine. The line is opened with a buffer of a fixed size and the number
+ * of bytes waiting to be played is worked out from available(), so no access to the private parts of a particular
+ * sound implementation is needed and it works on any platform with a sound device.
+ */
+public class LineAudioSink implements AudioSink
+{
+	private SourceDataLine line;
+	private int buffer_size;
+
+	// The buffer size of the line in bytes. This bounds the latency: sound written now is heard at most this many
+	// bytes later.
+	public LineAudioSink(int buffer_size)
+	{
+		this.buffer_size = buffer_size;
+	}
+
+	public void open(int sample_rate, int channels) throws Exception
+	{
+		AudioFormat format = new AudioFormat(sample_rate, 16, channels, true, false);
+		DataLine.Info info = new DataLine.Info(SourceDataLine.class, format, buffer_size);
+		if (!AudioSystem.isLineSupported(info))
+		{
+			throw new Exception("Sound format not supported.");
+		}
+		line = (SourceDataLine) AudioSystem.getLine(info);
+		line.open(format, buffer_size);
+		line.start();
+	}
+
+	public void close()
+	{
+		if (line != null)
+		{
+			line.close();
+			line = null;
+		}
+	}
+
+	public int available()
+	{
+		return line.available();
+	}
+
+	public int getBufferedBytes()
+	{
+		return line.getBufferSize() - line.available();
+	}
+
+	// Only writes what fits in the line buffer, so that this never blocks.
+	public int write(byte[] buffer, int offset, int length)
+	{
+		int available = line.available();
+		return line.write(buffer, offset, Math.min(length, available - (available % 2)));
+	}
+}
@@ -0,0 +1,57 @@
+package nesemu.engine.audio;
+
+/*
+ * Throws the sound away, but takes it at the rate a sound device would play it. This keeps the emulation running at
+ * normal speed on a machine without a sound device.
+ */
+public class NullAudioSink implements AudioSink
+{
+	private int buffer_size;
+	private int bytes_per_second;
+
+	// The bytes written and the time at which the buffer last became empty, from which the bytes "played" follow.
+	private long bytes_written;
+	private long start_time;
+
+	public NullAudioSink(int buffer_size)
+	{
+		this.buffer_size = buffer_size;
+	}
+
+	public void open(int sample_rate, int channels)
+	{
+		bytes_per_second = sample_rate * channels * 2;
+		bytes_written = 0;
+		start_time = System.nanoTime();
+	}
+
+	public void close()
+	{
+	}
+
+	public int available()
+	{
+		return buffer_size - getBufferedBytes();
+	}
+
+	public int getBufferedBytes()
+	{
+		long bytes_played = (System.nanoTime() - start_time) * bytes_per_second / 1000000000L;
+		if (bytes_played >= bytes_written)
+		{
+			// The buffer ran empty. Start counting again from now, as a sound device would stay silent until
+			// more sound arrives rather than play the missed time later.
+			bytes_written = 0;
+			start_time = System.nanoTime();
+			return 0;
+		}
+		return (int)(bytes_written - bytes_played);
+	}
+
+	public int write(byte[] buffer, int offset, int length)
+	{
+		int written = Math.min(length, available());
+		bytes_written += written;
+		return written;
+	}
+}
@@ -0,0 +1,112 @@
+package nesemu.engine.audio;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/*
+ * Writes the sound to a WAV file. The file takes everything immediately, so the emulation runs as fast as it can, which
+ * suits headless runs that record the sound for checking later.
+ */
+public class WaveFileAudioSink implements AudioSink
+{
+	private static final int HEADER_SIZE = 44;
+
+	private String file_name;
+	private RandomAccessFile file;
+	private int data_size;
+
+	public WaveFileAudioSink(String file_name)
+	{
+		this.file_name = file_name;
+	}
+
+	public void open(int sample_rate, int channels) throws IOException
+	{
+		file = new RandomAccessFile(file_name, "rw");
+		file.setLength(0);
+		data_size = 0;
+
+		// The sizes are filled in when the file is closed.
+		byte[] header = new byte[HEADER_SIZE];
+		putString(header, 0, "RIFF");
+		putString(header, 8, "WAVE");
+		putString(header, 12, "fmt ");
+		putInt(header, 16, 16);							// Format chunk size
+		putShort(header, 20, 1);						// PCM
+		putShort(header, 22, channels);
+		putInt(header, 24, sample_rate);
+		putInt(header, 28, sample_rate * channels * 2);	// Bytes per second
+		putShort(header, 32, channels * 2);				// Bytes per sample frame
+		putShort(header, 34, 16);						// Bits per sample
+		putString(header, 36, "data");
+		file.write(header);
+	}
+
+	public void close()
+	{
+		if (file == null)
+		{
+			return;
+		}
+		try
+		{
+			byte[] size = new byte[4];
+			putInt(size, 0, HEADER_SIZE - 8 + data_size);
+			file.seek(4);
+			file.write(size);
+			putInt(size, 0, data_size);
+			file.seek(40);
+			file.write(size);
+			file.close();
+		}
+		catch (IOException e)
+		{
+			System.out.println("File error: " + e.getMessage());
+		}
+		file = null;
+	}
+
+	public int available()
+	{
+		return Integer.MAX_VALUE;
+	}
+
+	public int getBufferedBytes()
+	{
+		return 0;
+	}
+
+	public int write(byte[] buffer, int offset, int length)
+	{
+		try
+		{
+			file.write(buffer, offset, length);
+			data_size += length;
+		}
+		catch (IOException e)
+		{
+			System.out.println("File error: " + e.getMessage());
+		}
+		return length;
+	}
+
+	private static void putString(byte[] buffer, int offset, String s)
+	{
+		for (int n=0; n < s.length(); n++)
+		{
+			buffer[offset + n] = (byte)s.charAt(n);
+		}
+	}
+
+	private static void putShort(byte[] buffer, int offset, int value)
+	{
+		buffer[offset] = (byte)(value & 0xFF);
+		buffer[offset + 1] = (byte)((value >> 8) & 0xFF);
+	}
+
+	private static void putInt(byte[] buffer, int offset, int value)
+	{
+		putShort(buffer, offset, value & 0xFFFF);
+		putShort(buffer, offset + 2, (value >> 16) & 0xFFFF);
+	}
+}
@@ -0,0 +1,15 @@
+package nesemu.hardware.audio;
+
+/*
+ * Watches the APU for a debugger. The APU calls the probe from the emulation thread while it runs, so a probe should
+ * only record what it is told and leave anything slow, such as drawing, to its own thread. See RP2A03.setProbe().
+ */
+public interface APUProbe
+{
+	// Called every CPU clock with the level of each channel: 0 to 15 for the pulse, triangle and noise channels and
+	// 0 to 127 for the DMC channel. Muting a channel does not change its level here.
+	public void channelLevels(int pulse1, int pulse2, int triangle, int noise, int dmc);
+
+	// Called for every sample of the mixed output, as a 16 bit signed PCM value.
+	public void outputSample(int sample);
+}
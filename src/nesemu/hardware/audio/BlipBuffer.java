@@ -0,0 +1,183 @@
+package nesemu.hardware.audio;
+
+import java.util.Arrays;
+
+/*
+ * Turns a signal given as a series of steps, i.e. changes of amplitude at given clock cycles, into output samples at
+ * any sample rate without aliasing. Each step is added as a band-limited step: the impulse of a windowed sinc, placed
+ * at the exact fraction of a sample where the step happens, is added to the samples around it. Reading the samples
+ * integrates the impulses back into steps. Nothing has to be done for the clock cycles in which the signal does not
+ * change, so the cost is per step rather than per sample.
+ *
+ * The signal is produced in frames: steps are added with clock cycles counted from the start of the current frame,
+ * then endFrame() makes the samples of the frame available for reading.
+ */
+public class BlipBuffer
+{
+	// Times are kept in samples, as fixed point numbers with TIME_BITS bits of fraction.
+	private static final int TIME_BITS = 32;
+
+	// The impulse is stored for PHASE_COUNT fractions of a sample, and spreads over WIDTH samples.
+	private static final int PHASE_BITS = 6;
+	private static final int PHASE_COUNT = 1 << PHASE_BITS;
+	private static final int HALF_WIDTH = 8;
+	private static final int WIDTH = HALF_WIDTH * 2;
+
+	// The taps of each phase of the impulse add up to 1 << KERNEL_BITS.
+	private static final int KERNEL_BITS = 12;
+
+	// The cut-off frequency of the impulse, as a fraction of half the sample rate.
+	private static final double CUTOFF = 0.9;
+
+	// Integrating leaks 1/2^BASS_SHIFT of the sum per sample, which filters out DC and frequencies below about 14Hz
+	// at 44.1KHz, as the capacitors at the NES's audio output do.
+	private static final int BASS_SHIFT = 9;
+
+	private static final int[][] KERNEL = createKernel();
+
+	private int[] buffer;
+	private int capacity;
+
+	// The number of samples per clock cycle, as a fixed point number.
+	private long factor;
+
+	// The time at which the current frame started, counted from the first sample in the buffer.
+	private long offset;
+
+	// The sum of the impulses read so far, i.e. the current amplitude in 1 << KERNEL_BITS units.
+	private long integrator;
+
+	// Creates a buffer that holds at most capacity samples that have not been read yet.
+	public BlipBuffer(int capacity)
+	{
+		this.capacity = capacity;
+		buffer = new int[capacity + WIDTH];
+		setRates(1, 1);
+	}
+
+	// Sets the clock rate the steps are timed in and the sample rate to produce, both in Hz. The ratio may be changed
+	// at any time, e.g. to adjust the sample rate slightly to a sound device.
+	public void setRates(double clock_rate, double sample_rate)
+	{
+		factor = (long)Math.ceil(sample_rate / clock_rate * (1L << TIME_BITS));
+	}
+
+	public void clear()
+	{
+		offset = 0;
+		integrator = 0;
+		Arrays.fill(buffer, 0);
+	}
+
+	// Adds a change of the amplitude of delta at the given clock cycle of the current frame.
+	public void addDelta(int clock, int delta)
+	{
+		long time = offset + clock * factor;
+		int position = (int)(time >>> TIME_BITS);
+		int[] impulse = KERNEL[(int)(time >>> (TIME_BITS - PHASE_BITS)) & (PHASE_COUNT - 1)];
+		for (int n=0; n < WIDTH; n++)
+		{
+			buffer[position + n] += impulse[n] * delta;
+		}
+	}
+
+	// Ends the current frame after the given number of clock cycles. The next frame starts at that clock cycle.
+	public void endFrame(int clocks)
+	{
+		offset += clocks * factor;
+	}
+
+	// The number of clock cycles the current frame has to be long for the given number of samples to be available.
+	public int getClocksNeeded(int samples)
+	{
+		long needed = ((long)samples << TIME_BITS) - offset;
+		return (needed <= 0) ? 0 : (int)((needed + factor - 1) / factor);
+	}
+
+	// The number of clock cycles a frame can last at most before the buffer is full.
+	public int getMaxFrameClocks()
+	{
+		return (int)((((long)capacity << TIME_BITS) - offset) / factor);
+	}
+
+	public int getSamplesAvailable()
+	{
+		return (int)(offset >>> TIME_BITS);
+	}
+
+	// Reads up to count samples, as 16 bit values, into the given array and returns the number read. Samples can only
+	// be read at the end of a frame, before any steps are added to the next one.
+	public int readSamples(short[] samples, int start, int count)
+	{
+		count = Math.min(count, getSamplesAvailable());
+		long sum = integrator;
+		for (int n=0; n < count; n++)
+		{
+			sum += buffer[n];
+			int sample = (int)(sum >> KERNEL_BITS);
+			samples[start + n] = (short)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+			sum -= sum >> BASS_SHIFT;
+		}
+		integrator = sum;
+		removeImpulses(count);
+		return count;
+	}
+
+	// Throws away up to count samples, as if they were read.
+	public void removeSamples(int count)
+	{
+		count = Math.min(count, getSamplesAvailable());
+		long sum = integrator;
+		for (int n=0; n < count; n++)
+		{
+			sum += buffer[n];
+			sum -= sum >> BASS_SHIFT;
+		}
+		integrator = sum;
+		removeImpulses(count);
+	}
+
+	// Moves the impulses of the samples not read yet to the front.
+	private void removeImpulses(int count)
+	{
+		int remaining = getSamplesAvailable() - count + WIDTH;
+		System.arraycopy(buffer, count, buffer, 0, remaining);
+		Arrays.fill(buffer, remaining, remaining + count, 0);
+		offset -= (long)count << TIME_BITS;
+	}
+
+	// Builds the band-limited impulse for each phase: a sinc windowed by a Blackman window, with the taps of each phase
+	// scaled to add up to exactly 1 << KERNEL_BITS so that a step always ends at exactly its amplitude.
+	private static int[][] createKernel()
+	{
+		int[][] kernel = new int[PHASE_COUNT][WIDTH];
+		for (int phase=0; phase < PHASE_COUNT; phase++)
+		{
+			double[] taps = new double[WIDTH];
+			double total = 0;
+			for (int n=0; n < WIDTH; n++)
+			{
+				double x = (n - HALF_WIDTH + 1) - (double)phase / PHASE_COUNT;
+				double sinc = (x == 0) ? 1.0 : Math.sin(Math.PI * CUTOFF * x) / (Math.PI * CUTOFF * x);
+				double window = (Math.abs(x) >= HALF_WIDTH) ? 0.0 :
+					0.42 + 0.5 * Math.cos(Math.PI * x / HALF_WIDTH) + 0.08 * Math.cos(2 * Math.PI * x / HALF_WIDTH);
+				taps[n] = sinc * window;
+				total += taps[n];
+			}
+
+			int sum = 0;
+			int largest = 0;
+			for (int n=0; n < WIDTH; n++)
+			{
+				kernel[phase][n] = (int)Math.round(taps[n] / total * (1 << KERNEL_BITS));
+				sum += kernel[phase][n];
+				if (kernel[phase][n] > kernel[phase][largest])
+				{
+					largest = n;
+				}
+			}
+			kernel[phase][largest] += (1 << KERNEL_BITS) - sum;
+		}
+		return kernel;
+	}
+}
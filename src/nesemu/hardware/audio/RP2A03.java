@@ -3,6 +3,7 @@ package nesemu.hardware.audio;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import nesemu.hardware.bus.NESBus;
 
@@ -16,7 +17,6 @@ public class RP2A03
 	private LengthCounter pulse1_length_counter;
 	private Sweeper pulse1_sweep;
 	// Debugging variables
-	private DebugSamples pulse_1_debug = new DebugSamples();
 	private boolean pulse_1_muted = false;
 	private boolean pulse_1_vibrato = false;
 	private boolean pulse_1_previously_wrote_low_byte = false;
@@ -29,7 +29,6 @@ public class RP2A03
 	private LengthCounter pulse2_length_counter;
 	private Sweeper pulse2_sweep;
 	// Debugging variables
-	private DebugSamples pulse_2_debug = new DebugSamples();
 	private boolean pulse_2_muted = false;
 	private boolean pulse_2_vibrato = false;
 	private boolean pulse_2_previously_wrote_low_byte = false;
@@ -41,7 +40,6 @@ public class RP2A03
 	private LinearCounter triangle_linear_counter;
 	private LengthCounter triangle_length_counter;
 	// Debugging variables
-	private DebugSamples triangle_debug = new DebugSamples();
 	private boolean triangle_muted = false;
 	
 	// Noise Channel
@@ -51,7 +49,6 @@ public class RP2A03
 	private Envelope noise_envelope;
 	private LengthCounter noise_length_counter;
 	// Debugging variables
-	private DebugSamples noise_debug = new DebugSamples();
 	private boolean noise_muted = false;
 	
 	// DMC Channel
@@ -65,16 +62,44 @@ public class RP2A03
 	private DMCMemoryReader dmc_memory_reader;
 	private DMCSequencer dmc_sequencer;
 	// Debugging variables
-	private DebugSamples dmc_debug = new DebugSamples();
 	private boolean dmc_muted = false;
 	
-	// Debugging variables
-	private DebugSamples overall_debug = new DebugSamples();
+	// The probe that is told the channel levels and the output, or null when nobody is watching.
+	private APUProbe probe;
+	
+	// Band-limited output. The levels are those of the channels when they were last mixed, and blip_level is the mixed
+	// level then. blip_clock counts the CPU clocks since the samples were last read.
+	private BlipBuffer blip_buffer;
+	private int blip_clock;
+	private int blip_max_clocks;
+	private int blip_level;
+	private int blip_pulse1_level;
+	private int blip_pulse2_level;
+	private int blip_triangle_level;
+	private int blip_noise_level;
+	private int blip_dmc_level;
+	private long mixer_evaluations;
+	
+	// The band-limited samples that can wait to be read.
+	private static final int BLIP_BUFFER_SIZE = 8192;
+	
+	private static final double CPU_FREQUENCY = NESBus.MASTER_NTSC_FREQUENCY * 1000000.0 / 12.0;
 	
 	// The table that the length counters will load values from.
 	private static final /*unsigned 8bit*/ int dmc_frequency_table[] =
 			{ 428, 380, 340, 320, 286, 254, 226, 214, 190, 160, 142, 128, 106, 84, 72, 54};
 	
+	// The level a mixer output of 1 has in 16 bit PCM. The output swings around the middle, so it becomes -32767 to
+	// 32767 as it does for getOutputSample().
+	private static final int PCM_FULL_SCALE = 2 * 32767;
+	
+	// The tables of the non-linear mixer, with the mixed level for the pulse channels by pulse1 + pulse2, and for the
+	// triangle, noise and DMC channels by 3 * triangle + 2 * noise + DMC. Also as 16 bit PCM values.
+	private static final double pulse_table[] = createPulseTable();
+	private static final double tnd_table[] = createTNDTable();
+	private static final int pulse_pcm_table[] = createPCMTable(pulse_table);
+	private static final int tnd_pcm_table[] = createPCMTable(tnd_table);
+	
 	// The table that the length counters will load values from.
 	private static final /*unsigned 8bit*/ int length_table[] =
 			{  10, 254, 20,  2, 40,  4, 80,  6,
@@ -108,6 +133,11 @@ public class RP2A03
 	
 	private boolean interrupt_inhibit = false;
 	
+	// True while the channel levels are what clocking the APU would set them to, given the current state of the
+	// channels. Register writes and frame counter steps change that state, and the pulse and noise levels are only
+	// worked out again on the next even CPU clock. Until then, the APU can not skip clocks.
+	private boolean levels_up_to_date = false;
+	
 	private NESBus bus;
 	
 	// The length of each step of the sequencer for the 4-step or 5 step modes. This governs the length of a sound note.
@@ -123,7 +153,6 @@ public class RP2A03
 	private static int _025N_DUTY_CYCLE = 0b10011111;
 	
 	// Debugging variables
-	private static final int DEBUG_SAMPLES_TO_KEEP = 90;
 	// Debug file that can be used to write sound samples to.
 	private FileOutputStream fos;
 	private int current_note = 0;
@@ -171,9 +200,6 @@ public class RP2A03
 		
 		// Mix the channels together using the NES non-linear mixing method.
 		
-		double pulse_out;
-		double tnd_out;
-		
 //		pulse_1_muted = true;
 //		pulse_2_muted = true;
 //		triangle_muted = true;
@@ -186,25 +212,8 @@ public class RP2A03
 		if (noise_muted) noise_sample = 0;
 		if (dmc_muted) dmc_sample = 0;
 		
-		// Mix the 2 pulse channels
-		pulse_out = 0;
-		if (pulse1_sample + pulse2_sample != 0)
-		{
-			pulse_out = 95.88 / ((8128.0 / (pulse1_sample + pulse2_sample)) + 100.0);
-		}
-		
-		// Mix the 3 remaining channels
-		tnd_out = 0;
-		if (triangle_sample + noise_sample + dmc_sample != 0)
-		{
-			tnd_out = 
-				159.79 / 
-					(
-						(1.0 / 
-						(triangle_sample/8227.0 + noise_sample/12241.0 + dmc_sample/22638.0)) 
-						+ 100.0
-					);
-		}
+		// Mix the channels together
+		double mixed = mix(pulse1_sample, pulse2_sample, triangle_sample, noise_sample, dmc_sample);
 		
 //		if (record_sound)
 //		{
@@ -221,26 +230,184 @@ public class RP2A03
 //			}
 //		}
 		
-		// Mix the channels together
-		double return_value = 2*(pulse_out + tnd_out)-1;
+		// Center the output around 0
+		double return_value = 2*mixed-1;
 		
 		// Set the volume
 		return_value = return_value / 1.0;
 		
-		// Debugging code start
-		synchronized(this)
+		if (probe != null)
 		{
-			overall_debug.addSample(return_value);
+			probe.outputSample((int)(return_value * 32767));
 		}
-		// Debugging code end
 		
 		return return_value;
 //		return 0;
 	}
 	
+	// Mixes the channel levels using the NES non-linear mixing method, giving a level between 0 and 1.
+	private static double mix(int pulse1_sample, int pulse2_sample, int triangle_sample, int noise_sample, int dmc_sample)
+	{
+		return pulse_table[pulse1_sample + pulse2_sample] + tnd_table[3 * triangle_sample + 2 * noise_sample + dmc_sample];
+	}
+	
+	// The same as mix(), but giving the level as a 16 bit PCM value, between 0 and PCM_FULL_SCALE.
+	private static int mixPCM(int pulse1_sample, int pulse2_sample, int triangle_sample, int noise_sample, int dmc_sample)
+	{
+		return pulse_pcm_table[pulse1_sample + pulse2_sample] +
+			tnd_pcm_table[3 * triangle_sample + 2 * noise_sample + dmc_sample];
+	}
+	
+	// Builds the table of the mixed level of the 2 pulse channels, by the sum of their levels.
+	private static double[] createPulseTable()
+	{
+		double[] table = new double[31];
+		for (int n=1; n < table.length; n++)
+		{
+			table[n] = 95.88 / ((8128.0 / n) + 100.0);
+		}
+		return table;
+	}
+	
+	// Builds the table of the mixed level of the triangle, noise and DMC channels, by 3 * triangle + 2 * noise + DMC.
+	// The exact mix depends on each of the three levels, but this approximation is within a few percent of it.
+	private static double[] createTNDTable()
+	{
+		double[] table = new double[203];
+		for (int n=1; n < table.length; n++)
+		{
+			table[n] = 163.67 / ((24329.0 / n) + 100.0);
+		}
+		return table;
+	}
+	
+	// Converts a table of levels between 0 and 1 to 16 bit PCM values.
+	private static int[] createPCMTable(double[] table)
+	{
+		int[] pcm_table = new int[table.length];
+		for (int n=0; n < table.length; n++)
+		{
+			pcm_table[n] = (int)Math.round(table[n] * PCM_FULL_SCALE);
+		}
+		return pcm_table;
+	}
+	
+	// The output as a 16 bit signed PCM value, i.e. getOutputSample() * 32767, but without any floating point.
+	public int getOutputSamplePCM()
+	{
+		// After 2A03 reset, the sound channels are unavailable for playback during the
+		// first 2048 CPU clocks.
+		if (cpu_clock_counter < 2048)
+		{
+			return 0;
+		}
+		
+		int pulse1_level = pulse_1_muted ? 0 : pulse1_sample;
+		int pulse2_level = pulse_2_muted ? 0 : pulse2_sample;
+		int triangle_level = triangle_muted ? 0 : triangle_sample;
+		int noise_level = noise_muted ? 0 : noise_sample;
+		int dmc_level = dmc_muted ? 0 : dmc_sample;
+		int sample = mixPCM(pulse1_level, pulse2_level, triangle_level, noise_level, dmc_level) - PCM_FULL_SCALE / 2;
+		if (probe != null)
+		{
+			probe.outputSample(sample);
+		}
+		return sample;
+	}
+	
+	// Makes the APU produce band-limited samples at the given sample rate, to be read with readSamples(). Instead of
+	// sampling the mixer output at the sample rate, the channels are only mixed when one of them changes, and the
+	// change of the mixed level is added to a blip buffer as a band-limited step. This does not alias and takes far
+	// fewer mixer evaluations. The rate may be changed at any time.
+	public void setBandLimitedSampleRate(double sample_rate)
+	{
+		if (blip_buffer == null)
+		{
+			blip_buffer = new BlipBuffer(BLIP_BUFFER_SIZE);
+		}
+		blip_buffer.setRates(CPU_FREQUENCY, sample_rate);
+		blip_max_clocks = blip_buffer.getMaxFrameClocks();
+	}
+	
+	// The number of CPU clocks the APU still has to be clocked for before the given number of band-limited samples
+	// can be read.
+	public int getClocksNeeded(int samples)
+	{
+		return Math.max(0, blip_buffer.getClocksNeeded(samples) - blip_clock);
+	}
+	
+	// Reads up to count band-limited samples produced so far, as 16 bit values, and returns the number read.
+	public int readSamples(short[] samples, int start, int count)
+	{
+		blip_buffer.endFrame(blip_clock);
+		blip_clock = 0;
+		int samples_read = blip_buffer.readSamples(samples, start, count);
+		blip_max_clocks = blip_buffer.getMaxFrameClocks();
+		if (probe != null)
+		{
+			for (int n=0; n < samples_read; n++)
+			{
+				probe.outputSample(samples[start + n]);
+			}
+		}
+		return samples_read;
+	}
+	
+	// The number of times the channels were mixed for the band-limited output.
+	public long getMixerEvaluations()
+	{
+		return mixer_evaluations;
+	}
+	
+	// Adds a step to the band-limited output if one of the channel levels changed in this clock.
+	private void updateBandLimitedOutput()
+	{
+		int pulse1_level = pulse_1_muted ? 0 : pulse1_sample;
+		int pulse2_level = pulse_2_muted ? 0 : pulse2_sample;
+		int triangle_level = triangle_muted ? 0 : triangle_sample;
+		int noise_level = noise_muted ? 0 : noise_sample;
+		int dmc_level = dmc_muted ? 0 : dmc_sample;
+		
+		if (pulse1_level != blip_pulse1_level || pulse2_level != blip_pulse2_level ||
+			triangle_level != blip_triangle_level || noise_level != blip_noise_level || dmc_level != blip_dmc_level ||
+			cpu_clock_counter == 2048)
+		{
+			blip_pulse1_level = pulse1_level;
+			blip_pulse2_level = pulse2_level;
+			blip_triangle_level = triangle_level;
+			blip_noise_level = noise_level;
+			blip_dmc_level = dmc_level;
+			
+			// After 2A03 reset, the sound channels are unavailable for playback during the first 2048 CPU clocks.
+			int level = 0;
+			if (cpu_clock_counter >= 2048)
+			{
+				level = mixPCM(pulse1_level, pulse2_level, triangle_level, noise_level, dmc_level);
+			}
+			mixer_evaluations++;
+			
+			if (level != blip_level)
+			{
+				blip_buffer.addDelta(blip_clock, level - blip_level);
+				blip_level = level;
+			}
+		}
+		
+		blip_clock++;
+		if (blip_clock >= blip_max_clocks)
+		{
+			// Nobody is reading the samples and the buffer is full. Throw them away.
+			blip_buffer.endFrame(blip_clock);
+			blip_clock = 0;
+			blip_buffer.removeSamples(blip_buffer.getSamplesAvailable());
+			blip_max_clocks = blip_buffer.getMaxFrameClocks();
+		}
+	}
+	
 	// Communication with Main Bus
 	public void cpuWrite(/*unsigned 16bit*/ int addr, /*unsigned 8bit*/ int data)
 	{		
+		levels_up_to_date = false;
 		switch (addr)
 		{
 		case 0x04000:
@@ -631,6 +798,7 @@ public class RP2A03
 		// Quarter frame "beats" adjust the volume envelope and triangle linear length counter.
 		if (quarter_frame_clock)
 		{
+			levels_up_to_date = false;
 			pulse1_envelope.clock();
 			pulse2_envelope.clock();
 			noise_envelope.clock();
@@ -665,6 +833,7 @@ public class RP2A03
 				// beginning of the 5-step sequence
 				if (should_clock_5_step_initial)
 				{
+					levels_up_to_date = false;
 					pulse1_envelope.clock();
 					pulse2_envelope.clock();
 					noise_envelope.clock();
@@ -706,12 +875,6 @@ public class RP2A03
 							(pulse1_sequencer.output == 1) ? pulse1_envelope.output : 0;
 				}
 			}
-			// Debugging code start
-			synchronized(this)
-			{
-				pulse_1_debug.addSample((pulse1_sample - 7.5)/7.5);
-			}
-			// Debugging code end
 			
 			// Update Pulse2 Channel ================================
 			pulse2_sequencer.clock(pulse2_enabled);
@@ -733,13 +896,6 @@ public class RP2A03
 				}
 			}
 			
-			// Debugging code start
-			synchronized(this)
-			{
-				pulse_2_debug.addSample((pulse2_sample - 7.5)/7.5);
-			}
-			// Debugging code end
-			
 			// Update Noise Channel ================================
 			noise_sequencer.clock(noise_enabled);
 			if (noise_length_counter.length_counter > 0)
@@ -751,12 +907,6 @@ public class RP2A03
 			{
 				noise_sample = 0;
 			}
-			// Debugging code start
-			synchronized(this)
-			{
-				noise_debug.addSample((noise_sample - 7.5)/7.5);
-			}
-			// Debugging code end
 			
 			// Update Noise Channel ================================
 			noise_sequencer.clock(noise_enabled);
@@ -769,12 +919,6 @@ public class RP2A03
 			{
 				noise_sample = 0;
 			}
-			// Debugging code start
-			synchronized(this)
-			{
-				noise_debug.addSample((noise_sample - 7.5)/7.5);
-			}
-			// Debugging code end
 
 			if (!pulse1_enabled) pulse1_sample = 0;
 			if (!pulse2_enabled) pulse2_sample = 0;
@@ -792,26 +936,174 @@ public class RP2A03
 				triangle_sample = triangle_sequencer.output;
 			}
 		}
-		// Debugging code start
-		synchronized(this)
-		{
-			triangle_debug.addSample((triangle_sample - 7.5)/7.5);
-		}
-		// Debugging code end
 		
 		// Update DMC Channel ================================
 		dmc_sequencer.clock();
 		dmc_sample = dmc_sequencer.output;
-		// Debugging code start
-		synchronized(this)
+		
+		if (blip_buffer != null)
+		{
+			updateBandLimitedOutput();
+		}
+		
+		if (probe != null)
+		{
+			probe.channelLevels(pulse1_sample, pulse2_sample, triangle_sample, noise_sample, dmc_sample);
+		}
+		
+		if (cpu_clock_counter % 2 == 0)
 		{
-			dmc_debug.addSample((dmc_sample - 63.5)/63.5);
+			levels_up_to_date = true;
 		}
-		// Debugging code end
 
 		cpu_clock_counter++;
 	}
 	
+	// Clocks the APU for a number of CPU clocks, with the same result as calling clock() that many times. Most clocks
+	// change nothing but timers, so instead of clocking the APU through them, it works out the next clock on which a
+	// channel level may change or the frame counter steps, skips straight to it and only clocks that one. With a
+	// probe, every clock is reported, so then the APU is clocked every time.
+	public void runClocks(int clocks)
+	{
+		while (clocks > 0)
+		{
+			if (levels_up_to_date && !should_reset_frame_counter && probe == null)
+			{
+				int clocks_to_skip = Math.min(clocksUntilNextEvent(), clocks);
+				if (clocks_to_skip > 0)
+				{
+					skipClocks(clocks_to_skip);
+					clocks -= clocks_to_skip;
+					continue;
+				}
+			}
+			clock();
+			clocks--;
+		}
+	}
+	
+	// The number of CPU clocks before the next one that has to be clocked: one on which a channel that is playing
+	// steps its waveform, the frame counter steps, the sound becomes available after reset or the band-limited output
+	// fills up.
+	private int clocksUntilNextEvent()
+	{
+		// The sweep units work out whether they mute their channel at the start of each clock. This does not change
+		// until the channel's period does, so it is the same for all the clocks skipped.
+		pulse1_sweep.track();
+		pulse2_sweep.track();
+		
+		int clocks = clocksUntilFrameCounterStep();
+		if (cpu_clock_counter <= 2048)
+		{
+			clocks = Math.min(clocks, 2048 - cpu_clock_counter);
+		}
+		if (blip_buffer != null)
+		{
+			clocks = Math.min(clocks, blip_max_clocks - blip_clock - 1);
+		}
+		
+		// The pulse and noise sequencers are clocked on even CPU clocks only, the noise sequencer twice.
+		int first_even_clock = cpu_clock_counter % 2;
+		if (pulse1_enabled && pulse1_sequencer.period != 0 && !isPulseSilent(pulse1_sequencer, pulse1_length_counter,
+			pulse1_sweep, pulse1_sample))
+		{
+			clocks = Math.min(clocks, first_even_clock + 2 * pulse1_sequencer.clocksUntilTimerExpires());
+		}
+		if (pulse2_enabled && pulse2_sequencer.period != 0 && !isPulseSilent(pulse2_sequencer, pulse2_length_counter,
+			pulse2_sweep, pulse2_sample))
+		{
+			clocks = Math.min(clocks, first_even_clock + 2 * pulse2_sequencer.clocksUntilTimerExpires());
+		}
+		if (noise_enabled && noise_length_counter.length_counter > 0)
+		{
+			clocks = Math.min(clocks, first_even_clock + 2 * (noise_sequencer.clocksUntilTimerExpires() / 2));
+		}
+		
+		// The triangle level only follows the sequencer when the period is at least 2.
+		if (isTriangleActive() && triangle_sequencer.period >= 2)
+		{
+			clocks = Math.min(clocks, triangle_sequencer.clocksUntilTimerExpires());
+		}
+		if (dmc_sequencer.play_sample)
+		{
+			clocks = Math.min(clocks, dmc_sequencer.clocksUntilTimerExpires());
+		}
+		return clocks;
+	}
+	
+	// The number of CPU clocks before the one on which the frame counter reaches its next step.
+	private int clocksUntilFrameCounterStep()
+	{
+		int last_step = sequencer_mode_is_4_step ? STEP4_SEQUENCER_STEPS : STEP5_SEQUENCER_STEPS;
+		if (frame_counter <= STEP1_SEQUENCER_STEPS)
+		{
+			return STEP1_SEQUENCER_STEPS - frame_counter;
+		}
+		if (frame_counter <= STEP2_SEQUENCER_STEPS)
+		{
+			return STEP2_SEQUENCER_STEPS - frame_counter;
+		}
+		if (frame_counter <= STEP3_SEQUENCER_STEPS)
+		{
+			return STEP3_SEQUENCER_STEPS - frame_counter;
+		}
+		if (frame_counter <= last_step)
+		{
+			return last_step - frame_counter;
+		}
+		// The sequence was switched to 4 steps after the 4th step went by. The frame counter never steps again.
+		return Integer.MAX_VALUE;
+	}
+	
+	// Whether a pulse channel stays silent however its sequencer steps: a channel that is not playing stops at the
+	// end of its waveform and then outputs 0 until it plays again.
+	private static boolean isPulseSilent(PulseSequencer sequencer, LengthCounter length_counter, Sweeper sweep,
+		int sample)
+	{
+		return (sample == 0) && !(sequencer.period >= 8 && length_counter.length_counter > 0 && !sweep.mute);
+	}
+	
+	private boolean isTriangleActive()
+	{
+		return triangle_length_counter.length_counter > 0 && triangle_linear_counter.length_counter > 0;
+	}
+	
+	// Clocks the APU through a number of CPU clocks on which no channel level changes and the frame counter does not
+	// step, so only the timers and counters move on.
+	private void skipClocks(int clocks)
+	{
+		int even_clocks = (clocks + 1 - cpu_clock_counter % 2) / 2;
+		if (pulse1_enabled)
+		{
+			pulse1_sequencer.skip(even_clocks);
+		}
+		if (pulse2_enabled)
+		{
+			pulse2_sequencer.skip(even_clocks);
+		}
+		if (noise_enabled)
+		{
+			noise_sequencer.skip(2 * even_clocks);
+		}
+		if (isTriangleActive())
+		{
+			triangle_sequencer.skip(clocks);
+		}
+		dmc_sequencer.skip(clocks);
+		
+		if (even_clocks > 0)
+		{
+			even_cpu_cycle_has_occurred = true;
+		}
+		frame_counter += clocks;
+		cpu_cycle += clocks;
+		cpu_clock_counter += clocks;
+		if (blip_buffer != null)
+		{
+			blip_clock += clocks;
+		}
+	}
+	
 	public void reset()
 	{
 		cpu_clock_counter = 0;
@@ -854,6 +1146,128 @@ public class RP2A03
 		dmc_sequencer = new DMCSequencer(dmc_memory_reader);
 	}
 	
+	// Writes the state of the frame counter and the channels into the buffer, see NESBus.saveState(). The band-limited
+	// output is not part of the machine and is left as it is, so after loading it simply steps to the loaded levels.
+	public void saveState(ByteBuffer buffer)
+	{
+		buffer.putInt(frame_counter);
+		buffer.putInt(cpu_clock_counter);
+		buffer.putInt(cpu_cycle);
+		buffer.put((byte)(sequencer_mode_is_4_step ? 1 : 0));
+		buffer.put((byte)(should_reset_frame_counter ? 1 : 0));
+		buffer.put((byte)(even_cpu_cycle_has_occurred ? 1 : 0));
+		buffer.put((byte)(should_clock_5_step_initial ? 1 : 0));
+		buffer.put((byte)(interrupt_inhibit ? 1 : 0));
+		buffer.put((byte)(levels_up_to_date ? 1 : 0));
+		
+		buffer.put((byte)(pulse1_enabled ? 1 : 0));
+		buffer.putInt(pulse1_sample);
+		pulse1_sequencer.saveState(buffer);
+		pulse1_envelope.saveState(buffer);
+		pulse1_length_counter.saveState(buffer);
+		pulse1_sweep.saveState(buffer);
+		
+		buffer.put((byte)(pulse2_enabled ? 1 : 0));
+		buffer.putInt(pulse2_sample);
+		pulse2_sequencer.saveState(buffer);
+		pulse2_envelope.saveState(buffer);
+		pulse2_length_counter.saveState(buffer);
+		pulse2_sweep.saveState(buffer);
+		
+		buffer.put((byte)(triangle_enabled ? 1 : 0));
+		buffer.putInt(triangle_sample);
+		triangle_sequencer.saveState(buffer);
+		triangle_linear_counter.saveState(buffer);
+		triangle_length_counter.saveState(buffer);
+		
+		buffer.put((byte)(noise_enabled ? 1 : 0));
+		buffer.putInt(noise_sample);
+		noise_sequencer.saveState(buffer);
+		noise_envelope.saveState(buffer);
+		noise_length_counter.saveState(buffer);
+		
+		buffer.put((byte)(dmc_enabled ? 1 : 0));
+		buffer.put((byte)(dmc_irq_enabled ? 1 : 0));
+		buffer.put((byte)(dmc_loop ? 1 : 0));
+		buffer.putInt(dmc_sample);
+		buffer.putInt(dmc_rate);
+		buffer.putInt(dmc_sample_address);
+		buffer.putInt(dmc_sample_length);
+		dmc_memory_reader.saveState(buffer);
+		dmc_sequencer.saveState(buffer);
+	}
+	
+	// Reads back the state written by saveState().
+	public void loadState(ByteBuffer buffer)
+	{
+		frame_counter = buffer.getInt();
+		cpu_clock_counter = buffer.getInt();
+		cpu_cycle = buffer.getInt();
+		sequencer_mode_is_4_step = buffer.get() != 0;
+		should_reset_frame_counter = buffer.get() != 0;
+		even_cpu_cycle_has_occurred = buffer.get() != 0;
+		should_clock_5_step_initial = buffer.get() != 0;
+		interrupt_inhibit = buffer.get() != 0;
+		levels_up_to_date = buffer.get() != 0;
+		
+		pulse1_enabled = buffer.get() != 0;
+		pulse1_sample = buffer.getInt();
+		pulse1_sequencer.loadState(buffer);
+		pulse1_envelope.loadState(buffer);
+		pulse1_length_counter.loadState(buffer);
+		pulse1_sweep.loadState(buffer);
+		
+		pulse2_enabled = buffer.get() != 0;
+		pulse2_sample = buffer.getInt();
+		pulse2_sequencer.loadState(buffer);
+		pulse2_envelope.loadState(buffer);
+		pulse2_length_counter.loadState(buffer);
+		pulse2_sweep.loadState(buffer);
+		
+		triangle_enabled = buffer.get() != 0;
+		triangle_sample = buffer.getInt();
+		triangle_sequencer.loadState(buffer);
+		triangle_linear_counter.loadState(buffer);
+		triangle_length_counter.loadState(buffer);
+		
+		noise_enabled = buffer.get() != 0;
+		noise_sample = buffer.getInt();
+		noise_sequencer.loadState(buffer);
+		noise_envelope.loadState(buffer);
+		noise_length_counter.loadState(buffer);
+		
+		dmc_enabled = buffer.get() != 0;
+		dmc_irq_enabled = buffer.get() != 0;
+		dmc_loop = buffer.get() != 0;
+		dmc_sample = buffer.getInt();
+		dmc_rate = buffer.getInt();
+		dmc_sample_address = buffer.getInt();
+		dmc_sample_length = buffer.getInt();
+		dmc_memory_reader.loadState(buffer);
+		dmc_sequencer.loadState(buffer);
+		
+		// The band-limited output is not part of the state. Its samples not read yet were made before the load, and its
+		// levels would make the first step after the load jump from the old mix to the new one, which clicks. So it
+		// starts again from the loaded levels.
+		blip_pulse1_level = pulse_1_muted ? 0 : pulse1_sample;
+		blip_pulse2_level = pulse_2_muted ? 0 : pulse2_sample;
+		blip_triangle_level = triangle_muted ? 0 : triangle_sample;
+		blip_noise_level = noise_muted ? 0 : noise_sample;
+		blip_dmc_level = dmc_muted ? 0 : dmc_sample;
+		blip_level = 0;
+		if (cpu_clock_counter >= 2048)
+		{
+			blip_level = mixPCM(blip_pulse1_level, blip_pulse2_level, blip_triangle_level, blip_noise_level,
+				blip_dmc_level);
+		}
+		if (blip_buffer != null)
+		{
+			blip_buffer.clear();
+			blip_clock = 0;
+			blip_max_clocks = blip_buffer.getMaxFrameClocks();
+		}
+	}
+	
 	private static class Sequencer
 	{
 		// The value currently in the shift register.
@@ -911,11 +1325,63 @@ public class RP2A03
 				if (timer == -1)
 				{
 					timer = period;
-					output = outputSampleAndRotateShiftRegister();
+					timerExpired();
 				}
 			}
 			return output;
 		}
+		
+		// What the sequencer does each time the timer runs out.
+		protected void timerExpired()
+		{
+			output = outputSampleAndRotateShiftRegister();
+		}
+		
+		// The number of clocks before the one on which the timer runs out.
+		public int clocksUntilTimerExpires()
+		{
+			return timer;
+		}
+		
+		// Clocks the sequencer a number of times at once, exactly as that many calls of clock(true) would.
+		public void skip(int clocks)
+		{
+			int expiries = skipTimer(clocks);
+			for (int n=0; n < expiries; n++)
+			{
+				timerExpired();
+			}
+		}
+		
+		// Counts the timer down by a number of clocks, reloading it each time it runs out, and returns the number of
+		// times it ran out.
+		protected int skipTimer(int clocks)
+		{
+			if (clocks <= timer)
+			{
+				timer -= clocks;
+				return 0;
+			}
+			clocks -= timer + 1;
+			timer = period - clocks % (period + 1);
+			return 1 + clocks / (period + 1);
+		}
+		
+		public void saveState(ByteBuffer buffer)
+		{
+			buffer.putInt(shift_register);
+			buffer.putInt(timer);
+			buffer.putInt(period);
+			buffer.putInt(output);
+		}
+		
+		public void loadState(ByteBuffer buffer)
+		{
+			shift_register = buffer.getInt();
+			timer = buffer.getInt();
+			period = buffer.getInt();
+			output = buffer.getInt();
+		}
 	}
 	
 	private static class PulseSequencer extends Sequencer
@@ -951,31 +1417,49 @@ public class RP2A03
 			return return_value;
 		}
 		
-		// Clock the sequencer. Note this method is slightly different to the generic one because we don't want to
-		// change the shift register if the waveform is still playing, so use a temporary variable first and then
-		// change it when the waveform has finished playing.
-		public /*unsigned 8bit*/ int clock(boolean enable)
+		// Note this method is slightly different to the generic one because we don't want to change the shift register
+		// if the waveform is still playing, so use a temporary variable first and then change it when the waveform has
+		// finished playing.
+		protected void timerExpired()
 		{
-			if (enable)
+			if (period != 0)
 			{
-				timer--;
-				if (timer == -1)
+				if (atStartOfWaveform())
 				{
-					timer = period;
-					if (period != 0)
-					{
-						if (atStartOfWaveform())
-						{
-							// Reload the shift register waveform value only when the previous one has finished playing.
-							shift_register = shift_register_load_value;
-						}
-						output = outputSampleAndRotateShiftRegister();
-						waveform_step++;
-						waveform_step %= 8;
-					}
+					// Reload the shift register waveform value only when the previous one has finished playing.
+					shift_register = shift_register_load_value;
 				}
+				output = outputSampleAndRotateShiftRegister();
+				waveform_step++;
+				waveform_step %= 8;
 			}
-			return output;
+		}
+		
+		public void skip(int clocks)
+		{
+			if (period == 0)
+			{
+				// Nothing happens when the timer runs out.
+				skipTimer(clocks);
+			}
+			else
+			{
+				super.skip(clocks);
+			}
+		}
+		
+		public void saveState(ByteBuffer buffer)
+		{
+			super.saveState(buffer);
+			buffer.putInt(waveform_step);
+			buffer.putInt(shift_register_load_value);
+		}
+		
+		public void loadState(ByteBuffer buffer)
+		{
+			super.loadState(buffer);
+			waveform_step = buffer.getInt();
+			shift_register_load_value = buffer.getInt();
 		}
 	}
 	
@@ -1019,6 +1503,18 @@ public class RP2A03
 			
 			return return_value;
 		}
+		
+		public void saveState(ByteBuffer buffer)
+		{
+			super.saveState(buffer);
+			buffer.put((byte)(is_mode_flag_set ? 1 : 0));
+		}
+		
+		public void loadState(ByteBuffer buffer)
+		{
+			super.loadState(buffer);
+			is_mode_flag_set = buffer.get() != 0;
+		}
 	}
 	
 	private static class TriangleSequencer extends Sequencer
@@ -1037,6 +1533,29 @@ public class RP2A03
 			sequence_step %= 32;
 			return return_value;
 		}
+		
+		// Steps through the triangle wave all at once, as it can be stepped every clock.
+		public void skip(int clocks)
+		{
+			int expiries = skipTimer(clocks);
+			if (expiries > 0)
+			{
+				sequence_step = (sequence_step + expiries - 1) % 32;
+				output = outputSampleAndRotateShiftRegister();
+			}
+		}
+		
+		public void saveState(ByteBuffer buffer)
+		{
+			super.saveState(buffer);
+			buffer.putInt(sequence_step);
+		}
+		
+		public void loadState(ByteBuffer buffer)
+		{
+			super.loadState(buffer);
+			sequence_step = buffer.getInt();
+		}
 	}
 	
 	private static class DMCSequencer extends Sequencer
@@ -1072,52 +1591,80 @@ public class RP2A03
 		// Clock the sequencer.
 		public /*unsigned 8bit*/ int clock()
 		{
-			timer--;
-			if (timer == -1)
+			return clock(true);
+		}
+		
+		protected void timerExpired()
+		{
+			if (play_sample)
 			{
-				timer = period;
-				if (play_sample)
+				if (bits_remaining == 0)
 				{
-					if (bits_remaining == 0)
+					bits_remaining = 8;
+					
+					if (dmc_memory_reader.bytes_remaining == 0)
+					{
+						play_sample = false;
+					}
+					else
 					{
-						bits_remaining = 8;
-						
-						if (dmc_memory_reader.bytes_remaining == 0)
+						shift_register = dmc_memory_reader.getSampleBuffer();
+						if (shift_register == 0)
 						{
-							play_sample = false;
+							silence = true;
 						}
 						else
 						{
-							shift_register = dmc_memory_reader.getSampleBuffer();
-							if (shift_register == 0)
-							{
-								silence = true;
-							}
-							else
-							{
-								silence = false;
-							}
+							silence = false;
 						}
 					}
-					int delta = outputSampleAndRotateShiftRegister();
-					if (delta == 1)
+				}
+				int delta = outputSampleAndRotateShiftRegister();
+				if (delta == 1)
+				{
+					if (output <= 125)
 					{
-						if (output <= 125)
-						{
-							output += 2;
-						}
+						output += 2;
 					}
-					else
+				}
+				else
+				{
+					if (output >= 2)
 					{
-						if (output >= 2)
-						{
-							output -= 2;
-						}
+						output -= 2;
 					}
-					bits_remaining--;
 				}
+				bits_remaining--;
 			}
-			return output;
+		}
+		
+		public void skip(int clocks)
+		{
+			if (!play_sample)
+			{
+				// Nothing happens when the timer runs out.
+				skipTimer(clocks);
+			}
+			else
+			{
+				super.skip(clocks);
+			}
+		}
+		
+		public void saveState(ByteBuffer buffer)
+		{
+			super.saveState(buffer);
+			buffer.putInt(bits_remaining);
+			buffer.put((byte)(silence ? 1 : 0));
+			buffer.put((byte)(play_sample ? 1 : 0));
+		}
+		
+		public void loadState(ByteBuffer buffer)
+		{
+			super.loadState(buffer);
+			bits_remaining = buffer.getInt();
+			silence = buffer.get() != 0;
+			play_sample = buffer.get() != 0;
 		}
 	}
 	
@@ -1151,6 +1698,18 @@ public class RP2A03
 				return 0;
 			}
 		}
+		
+		public void saveState(ByteBuffer buffer)
+		{
+			buffer.putInt(address_counter);
+			buffer.putInt(bytes_remaining);
+		}
+		
+		public void loadState(ByteBuffer buffer)
+		{
+			address_counter = buffer.getInt();
+			bytes_remaining = buffer.getInt();
+		}
 	}
 	
 	private static class Envelope
@@ -1218,6 +1777,30 @@ public class RP2A03
 				output = decay_level_counter;
 			}
 		}
+		
+		private void saveState(ByteBuffer buffer)
+		{
+			buffer.put((byte)(start ? 1 : 0));
+			buffer.put((byte)(constant_volume ? 1 : 0));
+			buffer.putInt(divider_count);
+			buffer.putInt(volume);
+			buffer.putInt(period);
+			buffer.putInt(output);
+			buffer.putInt(decay_level_counter);
+			buffer.put((byte)(loop ? 1 : 0));
+		}
+		
+		private void loadState(ByteBuffer buffer)
+		{
+			start = buffer.get() != 0;
+			constant_volume = buffer.get() != 0;
+			divider_count = buffer.getInt();
+			volume = buffer.getInt();
+			period = buffer.getInt();
+			output = buffer.getInt();
+			decay_level_counter = buffer.getInt();
+			loop = buffer.get() != 0;
+		}
 	};
 	
 	private static class LengthCounter
@@ -1234,6 +1817,18 @@ public class RP2A03
 					length_counter--;
 			return length_counter;
 		}
+		
+		private void saveState(ByteBuffer buffer)
+		{
+			buffer.putInt(length_counter);
+			buffer.put((byte)(halt ? 1 : 0));
+		}
+		
+		private void loadState(ByteBuffer buffer)
+		{
+			length_counter = buffer.getInt();
+			halt = buffer.get() != 0;
+		}
 	};
 	
 	private static class LinearCounter
@@ -1272,6 +1867,22 @@ public class RP2A03
 			
 			return length_counter;
 		}
+		
+		private void saveState(ByteBuffer buffer)
+		{
+			buffer.putInt(length_counter);
+			buffer.putInt(reload_value);
+			buffer.put((byte)(reload ? 1 : 0));
+			buffer.put((byte)(control ? 1 : 0));
+		}
+		
+		private void loadState(ByteBuffer buffer)
+		{
+			length_counter = buffer.getInt();
+			reload_value = buffer.getInt();
+			reload = buffer.get() != 0;
+			control = buffer.get() != 0;
+		}
 	};
 	
 	private static class Sweeper
@@ -1349,67 +1960,70 @@ public class RP2A03
 				mute = (sequencer_to_track.period < 8) || (sequencer_to_track.period > 0x7FF);
 			}
 		}
+		
+		// The sequencer tracked saves its own state.
+		private void saveState(ByteBuffer buffer)
+		{
+			buffer.put((byte)(enabled ? 1 : 0));
+			buffer.put((byte)(negate ? 1 : 0));
+			buffer.put((byte)(reload ? 1 : 0));
+			buffer.putInt(shift);
+			buffer.putInt(divider_counter);
+			buffer.putInt(divider_period);
+			buffer.putInt(change);
+			buffer.put((byte)(mute ? 1 : 0));
+		}
+		
+		private void loadState(ByteBuffer buffer)
+		{
+			enabled = buffer.get() != 0;
+			negate = buffer.get() != 0;
+			reload = buffer.get() != 0;
+			shift = buffer.getInt();
+			divider_counter = buffer.getInt();
+			divider_period = buffer.getInt();
+			change = buffer.getInt();
+			mute = buffer.get() != 0;
+		}
 	};
 	
 	// Debugging methods
-	public DebugSamples getPulse1Debug()
-	{
-		return pulse_1_debug;
-	}
 	
-	public DebugSamples getPulse2Debug()
+	// Makes the APU tell the probe the channel levels every CPU clock and every output sample, or stops it when the
+	// probe is null. Without a probe, this costs one check per clock.
+	public void setProbe(APUProbe probe)
 	{
-		return pulse_2_debug;
-	}
-	
-	public DebugSamples getTriangleDebug()
-	{
-		return triangle_debug;
-	}
-	
-	public DebugSamples getNoiseDebug()
-	{
-		return noise_debug;
-	}
-	
-	public DebugSamples getDMCDebug()
-	{
-		return dmc_debug;
-	}
-	
-	public DebugSamples getOverallDebug()
-	{
-		return overall_debug;
-	}
-	
-	public int getDebugSamplesToKeep()
-	{
-		return DEBUG_SAMPLES_TO_KEEP;
+		this.probe = probe;
 	}
 	
 	public void setPulse1Muted(boolean is_muted)
 	{
 		pulse_1_muted = is_muted;
+		levels_up_to_date = false;
 	}
 	
 	public void setPulse2Muted(boolean is_muted)
 	{
 		pulse_2_muted = is_muted;
+		levels_up_to_date = false;
 	}
 	
 	public void setTriangleMuted(boolean is_muted)
 	{
 		triangle_muted = is_muted;
+		levels_up_to_date = false;
 	}
 	
 	public void setNoiseMuted(boolean is_muted)
 	{
 		noise_muted = is_muted;
+		levels_up_to_date = false;
 	}
 	
 	public void setDMCMuted(boolean is_muted)
 	{
 		dmc_muted = is_muted;
+		levels_up_to_date = false;
 	}
 	
 	public void setInverted(boolean is_inverted)
@@ -1426,39 +2040,5 @@ public class RP2A03
 	{
 		return pulse_2_vibrato;
 	}
-	
-	public static class DebugSamples
-	{
-		private int total_sample_count = 0;
-		public int last_debug_sample_position;
-		public double[] debug_samples = new double[DEBUG_SAMPLES_TO_KEEP];
-		
-		public void addSample(double sample)
-		{
-			if (total_sample_count % 30 == 0)
-			{
-				debug_samples[last_debug_sample_position] = sample;
-				incLastDebugSamplePosition();
-			}
-			total_sample_count++;
-		}
-		
-		private void incLastDebugSamplePosition()
-		{
-			last_debug_sample_position++;
-			last_debug_sample_position %= DEBUG_SAMPLES_TO_KEEP;
-		}
-		
-		public DebugSamples getCopy()
-		{
-			DebugSamples return_value = new DebugSamples();
-			for (int n=0; n < DEBUG_SAMPLES_TO_KEEP; n++)
-			{
-				return_value.debug_samples[n] = debug_samples[n];
-			}
-			return_value.last_debug_sample_position = last_debug_sample_position;
-			return return_value;
-		}
-	}
 
 }
@@ -1,8 +1,14 @@
 package nesemu.hardware.bus;
 
+import java.nio.ByteBuffer;
+
+import nesemu.hardware.audio.APUProbe;
 import nesemu.hardware.audio.RP2A03;
 import nesemu.hardware.cartridge.ACartridge;
+import nesemu.hardware.cpu.CompiledBlock;
 import nesemu.hardware.cpu.MOS6502;
+import nesemu.hardware.cpu.Recompiler;
+import nesemu.hardware.video.FrameSink;
 import nesemu.hardware.video.RP2C02;
 
 public class NESBus
@@ -47,14 +53,79 @@ public class NESBus
 	public boolean dma_dummy;
 	// A flag to indicate that a DMA transfer is happening.
 	public boolean dma_transfer;
+	// The CPU is suspended during a DMA transfer. If the instruction that started the transfer still had cycles left,
+	// these pass once the transfer is complete.
+	private int dma_suspended_cpu_cycles;
 	
 	// A count of how many clocks have passed
 	private long system_clock_counter = 0;
 	
+	// The CPU runs freely and the PPU and APU are only "caught up" to the current system clock when something could
+	// observe them: a register access, a cartridge write, the end of a DMA transfer, the vertical blank NMI and the
+	// end of a run. These are the next system clocks on which each device is due to be clocked.
+	private long cpu_clock_counter = 0;
+	private long ppu_clock_counter = 0;
+	private long apu_clock_counter = 0;
+	
+	// The system clock on which the PPU enters the vertical blanking period, which is the only time it can raise
+	// an NMI.
+	private long vertical_blank_clock = 0;
+	
+	// Whether the last time the CPU was clocked it executed an instruction. Used when stepping through instructions.
+	private boolean cpu_executed_instruction = false;
+	
+	// The CPU cycles that passed without executing the iterations of idle loops, since the last reset.
+	private long skipped_idle_loop_cycles = 0;
+	
+	// The CPU address space is split into 256 pages of 256 bytes. Pages backed by a plain array, i.e. RAM and
+	// PRG ROM, are looked up directly in these tables so that a read or write is a single array index. PPU register
+	// pages are dispatched on their page type and everything else falls back to the full address decode.
+	// The tables are rebuilt whenever the cartridge reports that its mapping changed, e.g. after a bank switch.
+	private /*unsigned 8bit*/ int[][] read_page_memory = new int[256][];
+	private int[] read_page_offset = new int[256];
+	private /*unsigned 8bit*/ int[][] write_page_memory = new int[256][];
+	private int[] write_page_offset = new int[256];
+	private int[] page_type = new int[256];
+	
+	private static final int PAGE_DECODE = 0;
+	private static final int PAGE_PPU = 1;
+	
+	// Compiles hot code in PRG ROM into JVM classes, or null when the CPU only interprets instructions.
+	private Recompiler recompiler = null;
+	private boolean recompiler_enabled = false;
+	
+	// The sample rate of the APU's band-limited output, or 0 when it is not wanted.
+	private double band_limited_sample_rate = 0;
+	
+	// The probe watching the APU for a debugger, or null.
+	private APUProbe apu_probe = null;
+	
+	// Where the PPU sends its frames, or null for the PPU's own.
+	private FrameSink frame_sink = null;
+	
+	// How the PPU draws the visible scanlines, see RP2C02.runClocks().
+	private boolean scanline_renderer_enabled = false;
+	private boolean scanline_renderer_checked = false;
+	
 	// Variables tracking if the NES is on or off.
 	public boolean is_powered_on = false;
 	public boolean is_starting_up = false;
 	
+	// Save states start with these, so that data that is not a save state, or is one of another version of the 
+	// format, is refused rather than loaded.
+	private static final int SAVE_STATE_MAGIC = 0x4E455353; // "NESS"
+	private static final int SAVE_STATE_VERSION = 1;
+	// The header: the magic number, the version, the mapper and the number of PRG and CHR banks of the cartridge the
+	// state was saved with, and the size of the rest of the state.
+	private static final int SAVE_STATE_HEADER_SIZE = 24;
+	
+	// The state of the machine from before a load, to go back to if the loaded state turns out to be damaged.
+	private ByteBuffer load_backup;
+	
+	// The most bytes a save state of any of the supported cartridges takes, with up to 32KB of writable program memory
+	// and 8KB of CHR RAM.
+	public static final int MAX_SAVE_STATE_SIZE = 65536;
+	
 	// 236.25 MHz  11 per NTSC definition
 	public static final double MASTER_NTSC_FREQUENCY = 236.25 / 11.0; //mHz 
 	
@@ -67,6 +138,43 @@ public class NESBus
 	// Writing to and reading from the bus.
 	public void cpuWrite(/*unsigned 16bit*/ int addr, /*unsigned 8bit*/ int data)
 	{
+		// The CPU address bus is 16 bits wide.
+		addr &= 0xFFFF;
+		int page = addr >> 8;
+		/*unsigned 8bit*/ int[] memory = write_page_memory[page];
+		if (memory != null)
+		{
+			memory[write_page_offset[page] + (addr & 0xFF)] = data;
+		}
+		else if (page_type[page] == PAGE_PPU)
+		{
+			catchUpPPU(system_clock_counter);
+			ppu.cpuWrite(addr & 0x0007, data);
+		}
+		else
+		{
+			cpuWriteDecoded(addr, data);
+			
+			// A write the cartridge sees may have switched banks, of PRG ROM for the CPU or of CHR memory for the PPU.
+			if (cartridge.cpuMappingChanged())
+			{
+				rebuildMemoryMap();
+			}
+			if (cartridge.ppuMappingChanged())
+			{
+				ppu.mappingChanged();
+			}
+		}
+	}
+	
+	// Writes to the bus by decoding the full address, bypassing the memory map.
+	public void cpuWriteDecoded(/*unsigned 16bit*/ int addr, /*unsigned 8bit*/ int data)
+	{
+		// Besides the PPU and APU registers, this can be a write to the cartridge which could switch banks. Neither 
+		// the PPU nor the APU, which reads DMC samples from the cartridge, must see that early.
+		catchUpPPU(system_clock_counter);
+		catchUpAPU(system_clock_counter);
+		
 		if (cartridge.cpuWrite(addr, data))
 		{
 			// The cartridge "sees all" and has the ability to veto
@@ -74,6 +182,13 @@ public class NESBus
 			// This allows the cartridge to map any address to some
 			// other data, including the ability to divert transactions
 			// with other physical devices.
+
+			// Some mappers let the program write to its own PRG memory,
+			// which compiled blocks have their instruction bytes copied from.
+			if (recompiler != null && isReadMemoryPage(addr >> 8))
+			{
+				recompiler.invalidatePage(addr >> 8);
+			}
 		}
 		else if (addr >= 0x0000 && addr <= 0x1FFF)
 		{
@@ -121,39 +236,65 @@ public class NESBus
 	
 	public /*unsigned 8bit*/ int cpuRead(/*unsigned 16bit*/ int addr, boolean bReadOnly)
 	{
-		/*unsigned 8bit*/ int[] data = new int[1];
-		if (cartridge.cpuRead(addr, data))
+		// This is called for every opcode fetch, operand read and DMA byte, so it must be quick and must not allocate.
+		addr &= 0xFFFF;
+		int page = addr >> 8;
+		/*unsigned 8bit*/ int[] memory = read_page_memory[page];
+		if (memory != null)
+		{
+			return memory[read_page_offset[page] + (addr & 0xFF)];
+		}
+		else if (page_type[page] == PAGE_PPU)
+		{
+			catchUpPPU(system_clock_counter);
+			return ppu.cpuRead(addr & 0x0007, bReadOnly);
+		}
+		return cpuReadDecoded(addr, bReadOnly);
+	}
+	
+	// Reads from the bus by decoding the full address, bypassing the memory map.
+	public /*unsigned 8bit*/ int cpuReadDecoded(/*unsigned 16bit*/ int addr, boolean bReadOnly)
+	{
+		/*unsigned 8bit*/ int data = cartridge.cpuRead(addr);
+		if (data != ACartridge.UNMAPPED)
 		{
 			// Cartridge Address Range
 		}
 		else if (addr >= 0x0000 && addr <= 0x1FFF)
 		{
 			// System RAM address range, mirrored every 2048.
-			data[0] = wram[addr & 0x07FF];
+			data = wram[addr & 0x07FF];
 		}
 		else if (addr >= 0x2000 && addr <= 0x3FFF)
 		{
 			// PPU address range, mirrored every 8.
-			data[0] = ppu.cpuRead(addr & 0x0007, bReadOnly);
+			catchUpPPU(system_clock_counter);
+			data = ppu.cpuRead(addr & 0x0007, bReadOnly);
 		}
 		else if ((addr >= 0x4000 && addr <= 0x4013) || (addr == 0x4015))
 		{
 			// APU address range. Note that when reading address 4017 reads controller 2 and does not read from the APU.
-			data[0] = apu.cpuRead(addr);
+			catchUpAPU(system_clock_counter);
+			data = apu.cpuRead(addr);
 		}
 		else if (addr == 0x4016)
 		{
 			// Controller 1 address range.
-			data[0] = (controller_state[0] & 0x80) > 0 ? 1 : 0;
+			data = (controller_state[0] & 0x80) > 0 ? 1 : 0;
 			controller_state[0] <<= 1;
 		}
 		else if (addr == 0x4017)
 		{
 			// Controller 2 address range.
-			data[0] = (controller_state[1] & 0x80) > 0 ? 1 : 0;
+			data = (controller_state[1] & 0x80) > 0 ? 1 : 0;
 			controller_state[1] <<= 1;
 		}
-		return data[0];
+		else
+		{
+			// Nothing responds to this address.
+			data = 0x00;
+		}
+		return data;
 	}
 	
 	public void insertCartridge(ACartridge cartridge)
@@ -161,6 +302,122 @@ public class NESBus
 		// Connects cartridge to both main bus and CPU bus.
 		this.cartridge = cartridge;
 		ppu.ConnectCartridge(cartridge);
+		rebuildMemoryMap();
+	}
+	
+	// Rebuilds the page tables from the current mapping of the cartridge.
+	public void rebuildMemoryMap()
+	{
+		for (int page = 0; page < 256; page++)
+		{
+			/*unsigned 8bit*/ int[] old_read_memory = read_page_memory[page];
+			int old_read_offset = read_page_offset[page];
+			/*unsigned 8bit*/ int[] old_write_memory = write_page_memory[page];
+			
+			read_page_memory[page] = null;
+			read_page_offset[page] = 0;
+			write_page_memory[page] = null;
+			write_page_offset[page] = 0;
+			page_type[page] = PAGE_DECODE;
+			
+			// The cartridge sees all, so only pages it leaves alone can go to the on-board devices.
+			int cartridge_offset = (cartridge == null) ? ACartridge.UNMAPPED : cartridge.cpuMapPage(page);
+			if (cartridge_offset == ACartridge.UNMAPPED)
+			{
+				if (page <= 0x1F)
+				{
+					// System RAM, mirrored every 2048.
+					read_page_memory[page] = wram;
+					read_page_offset[page] = (page & 0x07) << 8;
+					write_page_memory[page] = wram;
+					write_page_offset[page] = (page & 0x07) << 8;
+				}
+				else if (page <= 0x3F)
+				{
+					page_type[page] = PAGE_PPU;
+				}
+			}
+			else if (cartridge_offset != ACartridge.PARTIALLY_MAPPED)
+			{
+				// Only reads go directly to program memory, writes may be mapper register writes.
+				read_page_memory[page] = cartridge.getProgram();
+				read_page_offset[page] = cartridge_offset;
+			}
+			
+			if (recompiler != null)
+			{
+				if ((old_read_memory != null && read_page_memory[page] == null) ||
+					(old_write_memory != null && write_page_memory[page] == null))
+				{
+					// Compiled code may access the page as memory, which it no longer is.
+					recompiler.invalidateAll();
+				}
+				else if (old_read_memory != read_page_memory[page] || old_read_offset != read_page_offset[page])
+				{
+					// Another bank, so the code compiled from the page is no longer there.
+					recompiler.invalidatePage(page);
+				}
+			}
+		}
+	}
+	
+	// Whether CPU reads of a page go straight to RAM or PRG ROM, without side effects.
+	public boolean isReadMemoryPage(int page)
+	{
+		return read_page_memory[page] != null;
+	}
+	
+	// Whether CPU writes to a page go straight to RAM, without side effects.
+	public boolean isWriteMemoryPage(int page)
+	{
+		return write_page_memory[page] != null;
+	}
+	
+	// Turns compiling hot code in PRG ROM into JVM classes on or off. Off by default.
+	public void setRecompilerEnabled(boolean enabled)
+	{
+		recompiler_enabled = enabled;
+		recompiler = enabled ? new Recompiler(this, cpu) : null;
+	}
+	
+	public Recompiler getRecompiler()
+	{
+		return recompiler;
+	}
+	
+	// Makes the APU produce band-limited samples at the given rate, also after a reset. See RP2A03.readSamples().
+	public void setBandLimitedSampleRate(double sample_rate)
+	{
+		band_limited_sample_rate = sample_rate;
+		apu.setBandLimitedSampleRate(sample_rate);
+	}
+	
+	// Makes the APU report to the probe, also after a reset, or stops it when the probe is null. See RP2A03.setProbe().
+	public void setAPUProbe(APUProbe probe)
+	{
+		apu_probe = probe;
+		apu.setProbe(probe);
+	}
+	
+	// Makes the PPU send its frames to the sink, also after a reset. See RP2C02.setFrameSink().
+	public void setFrameSink(FrameSink sink)
+	{
+		frame_sink = sink;
+		ppu.setFrameSink(sink);
+	}
+	
+	// Makes the PPU draw whole visible scanlines in one pass, also after a reset. Can be switched at any time.
+	public void setScanlineRendererEnabled(boolean enabled)
+	{
+		scanline_renderer_enabled = enabled;
+		ppu.setScanlineRendererEnabled(enabled);
+	}
+	
+	// Makes the PPU compare every scanline drawn in one pass with drawing it dot by dot, also after a reset.
+	public void setScanlineRendererChecked(boolean checked)
+	{
+		scanline_renderer_checked = checked;
+		ppu.setScanlineRendererChecked(checked);
 	}
 	
 	public void reset()
@@ -177,6 +434,20 @@ public class NESBus
 		cpu.ConnectBus(this);
 		apu.connectToBus(this);
 		
+		// Nothing compiled before the reset is known to still be valid.
+		setRecompilerEnabled(recompiler_enabled);
+		if (band_limited_sample_rate != 0)
+		{
+			apu.setBandLimitedSampleRate(band_limited_sample_rate);
+		}
+		apu.setProbe(apu_probe);
+		if (frame_sink != null)
+		{
+			ppu.setFrameSink(frame_sink);
+		}
+		ppu.setScanlineRendererEnabled(scanline_renderer_enabled);
+		ppu.setScanlineRendererChecked(scanline_renderer_checked);
+		
 		controller = new int[2];
 		controller_state = new int[2];
 		
@@ -187,10 +458,13 @@ public class NESBus
 		dma_dummy = true;
 		
 		dma_transfer = false;
+		dma_suspended_cpu_cycles = 0;
+		skipped_idle_loop_cycles = 0;
 		
 		if (cartridge != null)
 		{
 			cartridge.reset();
+			rebuildMemoryMap();
 			cpu.reset();
 			ppu.reset();
 			apu.reset();
@@ -198,6 +472,10 @@ public class NESBus
 		}
 		
 		system_clock_counter = 0;
+		cpu_clock_counter = 0;
+		ppu_clock_counter = 0;
+		apu_clock_counter = 0;
+		vertical_blank_clock = ppu.clocksUntilVerticalBlank() - 1;
 	}
 	
 	public void powerOn()
@@ -210,107 +488,351 @@ public class NESBus
 		is_powered_on = false;
 	}
 	
+	// Runs a single system clock.
 	public void clock()
 	{
-		// Clock the bus in the same way as the clock chip would have done.
-		// The running frequency is controlled by whatever calls this function.
-		// We "divide" the clock as necessary and call the peripheral devices clock() 
-		// function at the correct times.
-
-		// The fastest clock frequency the digital system cares about is the PPU 
-		// clock. So the PPU is clocked each time this function is called.
-		ppu.clock();
-
-		// The CPU runs 3 times slower than the PPU so we only call its
-		// clock() function every 3 times this function is called. We
-		// have a global counter to keep track of this.
-		if (system_clock_counter % 3 == 0)
-		{
-			// Even though the APU runs at half of the CPU clock speed clock it at 
-			// the CPU clock rate because the APU can change state on CPU clock
-			// cycles, so we need to be able to cater for that. The APU and CPU
-			// are on the same chip so another reason to clock it at the same speed.
-			apu.clock();
+		runClocks(1);
+	}
+	
+	// Runs the system for a number of system clocks, in the same way as the clock chip would have done.
+	// The running frequency is controlled by whatever calls this function.
+	public void runClocks(long clocks)
+	{
+		long end_clock = system_clock_counter + clocks;
+		
+		while (system_clock_counter < end_clock)
+		{
+			// The CPU runs 3 times slower than the PPU, the fastest clock the digital system cares about. It executes
+			// whole instructions at a time, so it is not needed again until the instruction has taken its time.
+			if (system_clock_counter == cpu_clock_counter)
+			{
+				cpu_clock_counter += 3 * clockCPU();
+			}
 			
-			// Is the system performing a DMA transfer from CPU memory to 
-			// OAM memory on PPU?
-			if (dma_transfer)
+			// The PPU is capable of emitting an interrupt to indicate the
+			// vertical blanking period has been entered. If it has, we need
+			// to send that IRQ to the CPU.
+			if (system_clock_counter == vertical_blank_clock)
 			{
-				// Yes, we need to wait until the next even CPU clock cycle
-				// before it starts.
-				if (dma_dummy)
+				catchUpPPU(system_clock_counter);
+				vertical_blank_clock += RP2C02.EMULATED_FRAME_CLOCKS;
+				
+				if (ppu.nmi)
 				{
-					// Wait here until 1 or 2 cycles have elapsed.
-					if (system_clock_counter % 2 == 1)
-					{
-						// Finally allow DMA to start.
-						dma_dummy = false;
-					}
+					ppu.nmi = false;
+					cpu.nmi();
+					
+					// The interrupt replaces whatever the CPU was busy with, including the remainder of an instruction
+					// suspended by DMA, and starts taking time from the next CPU clock.
+					cpu_clock_counter = system_clock_counter - (system_clock_counter % 3) + 3;
+					dma_suspended_cpu_cycles = 0;
+				}
+			}
+			
+			// Nothing else happens until the next of these, so skip straight to it.
+			system_clock_counter = Math.min(Math.min(cpu_clock_counter, vertical_blank_clock), end_clock);
+		}
+		
+		// Bring the PPU and APU up to date so that the frame and sound output reflect the whole run.
+		catchUpPPU(end_clock - 1);
+		catchUpAPU(end_clock - 1);
+	}
+	
+	// Clocks the PPU up to and including the given system clock. The clocks are given to the PPU all at once, so that
+	// it can draw the whole scanlines among them in one pass.
+	private void catchUpPPU(long clock)
+	{
+		if (ppu_clock_counter <= clock)
+		{
+			int clocks = (int)(clock - ppu_clock_counter) + 1;
+			ppu.runClocks(clocks);
+			ppu_clock_counter += clocks;
+		}
+	}
+	
+	// Clocks the APU up to and including the given system clock. Even though the APU runs at half of the CPU clock 
+	// speed clock it at the CPU clock rate because the APU can change state on CPU clock cycles, so we need to be able
+	// to cater for that. The APU and CPU are on the same chip so another reason to clock it at the same speed.
+	// The APU skips the clocks on which nothing happens by itself, so it is given all of them at once.
+	private void catchUpAPU(long clock)
+	{
+		if (apu_clock_counter <= clock)
+		{
+			int cpu_clocks = (int)((clock - apu_clock_counter) / 3) + 1;
+			apu.runClocks(cpu_clocks);
+			apu_clock_counter += 3L * cpu_clocks;
+		}
+	}
+	
+	// Clocks the CPU, which either executes a whole instruction or performs a step of a DMA transfer, and returns
+	// the number of CPU clocks until it needs to be clocked again.
+	private int clockCPU()
+	{
+		// Is the system performing a DMA transfer from CPU memory to 
+		// OAM memory on PPU?
+		if (dma_transfer)
+		{
+			// Yes, we need to wait until the next even CPU clock cycle
+			// before it starts.
+			if (dma_dummy)
+			{
+				// Wait here until 1 or 2 cycles have elapsed.
+				if (system_clock_counter % 2 == 1)
+				{
+					// Finally allow DMA to start.
+					dma_dummy = false;
+				}
+			}
+			else
+			{
+				// DMA can take place.
+				if (system_clock_counter % 2 == 0)
+				{
+					// On even clock cycles, read from CPU bus.
+					dma_data = cpuRead(dma_page << 8 | dma_addr);
 				}
 				else
 				{
-					// DMA can take place.
-					if (system_clock_counter % 2 == 0)
-					{
-						// On even clock cycles, read from CPU bus.
-						dma_data = cpuRead(dma_page << 8 | dma_addr);
-					}
-					else
+					// On odd clock cycles, write to PPU OAM.
+					ppu.pOAM[dma_addr] = dma_data;
+					// Increment the low byte of the address.
+					dma_addr++;
+					
+					// If this wraps around, we know that 256
+					// bytes have been written, so end the DMA
+					// transfer, and proceed as normal.
+					if (dma_addr > 0xFF)
 					{
-						// On odd clock cycles, write to PPU OAM.
-						ppu.pOAM[dma_addr] = dma_data;
-						// Increment the low byte of the address.
-						dma_addr++;
+						catchUpPPU(system_clock_counter);
+						ppu.populateOAM();
+						dma_transfer = false;
+						dma_dummy = true;
+						dma_addr = 0;
 						
-						// If this wraps around, we know that 256
-						// bytes have been written, so end the DMA
-						// transfer, and proceed as normal.
-						if (dma_addr > 0xFF)
-						{
-							ppu.populateOAM();
-							dma_transfer = false;
-							dma_dummy = true;
-							dma_addr = 0;
-						}
+						// Let the instruction that started the transfer finish.
+						int cpu_cycles = dma_suspended_cpu_cycles;
+						dma_suspended_cpu_cycles = 0;
+						return 1 + cpu_cycles;
 					}
 				}
 			}
-			else
+			cpu_executed_instruction = false;
+			return 1;
+		}
+		
+		cpu_executed_instruction = cpu.complete();
+		if (recompiler != null && cpu_executed_instruction)
+		{
+			// A compiled block only touches RAM and PRG ROM, so it can run in one go as long as it can not overlap
+			// the vertical blank NMI.
+			CompiledBlock block = recompiler.getBlock(cpu.pc);
+			if (block != null && system_clock_counter + 3L * block.max_cycles <= vertical_blank_clock)
 			{
-				cpu.clock();
+				return block.run(cpu);
 			}
 		}
+		int cycles = cpu.step();
+		if (dma_transfer)
+		{
+			// The instruction started a DMA transfer, which suspends the CPU from the next clock onwards.
+			dma_suspended_cpu_cycles = cycles - 1;
+			return 1;
+		}
 		
-		// The PPU is capable of emitting an interrupt to indicate the
-		// vertical blanking period has been entered. If it has, we need
-		// to send that IRQ to the CPU.
-		if (ppu.nmi)
+		int iteration_cycles = cpu.getIdleLoopIterationCycles();
+		if (iteration_cycles > 0)
 		{
-			ppu.nmi = false;
-			cpu.nmi();
+			// The CPU is back at the start of an idle loop, which only changes with the vertical blank. Let the whole
+			// iterations that end before then pass without executing them. The iteration that showed the loop is idle
+			// must have run after the last vertical blank, or it may not have seen the vertical blank flag set.
+			long loop_start_clock = system_clock_counter + 3L * cycles;
+			long iteration_clock = loop_start_clock - 3L * iteration_cycles;
+			long iterations = (vertical_blank_clock - loop_start_clock) / (3L * iteration_cycles);
+			if (iterations > 0 && iteration_clock >= vertical_blank_clock - RP2C02.EMULATED_FRAME_CLOCKS)
+			{
+				int skipped_cycles = (int)(iterations * iteration_cycles);
+				skipped_idle_loop_cycles += skipped_cycles;
+				cycles += skipped_cycles;
+			}
+		}
+		return cycles;
+	}
+	
+	// Returns how many CPU cycles passed without executing the iterations of idle loops since the last reset.
+	public long getSkippedIdleLoopCycles()
+	{
+		return skipped_idle_loop_cycles;
+	}
+	
+	// Writes the state of the whole machine into the buffer: the RAM, the CPU, the cartridge, the PPU and the APU, 
+	// i.e. everything the machine's behaviour from here on depends on, apart from the ROM and the input. Program
+	// memory counts as ROM unless the mapper lets the game write to it. The devices write their fields one by one in a
+	// fixed order, so a state is small and quick enough to save and load to keep one every frame, e.g. for rewinding.
+	// The buffer needs room for MAX_SAVE_STATE_SIZE bytes.
+	public void saveState(ByteBuffer buffer)
+	{
+		buffer.putInt(SAVE_STATE_MAGIC);
+		buffer.putInt(SAVE_STATE_VERSION);
+		buffer.putInt((cartridge == null) ? -1 : cartridge.getMapperID());
+		buffer.putInt((cartridge == null) ? 0 : cartridge.getPRGBanks());
+		buffer.putInt((cartridge == null) ? 0 : cartridge.getCHRBanks());
+		// The size of the rest of the state, filled in at the end.
+		int size_position = buffer.position();
+		buffer.putInt(0);
+		
+		for (int n=0; n < 2048; n++)
+		{
+			buffer.put((byte)wram[n]);
+		}
+		buffer.putInt(controller_state[0]);
+		buffer.putInt(controller_state[1]);
+		
+		buffer.putInt(dma_page);
+		buffer.putInt(dma_addr);
+		buffer.putInt(dma_data);
+		buffer.put((byte)(dma_dummy ? 1 : 0));
+		buffer.put((byte)(dma_transfer ? 1 : 0));
+		buffer.putInt(dma_suspended_cpu_cycles);
+		
+		// The devices are caught up lazily, so each one's own clock is part of the state.
+		buffer.putLong(system_clock_counter);
+		buffer.putLong(cpu_clock_counter);
+		buffer.putLong(ppu_clock_counter);
+		buffer.putLong(apu_clock_counter);
+		buffer.putLong(vertical_blank_clock);
+		buffer.put((byte)(cpu_executed_instruction ? 1 : 0));
+		buffer.putLong(skipped_idle_loop_cycles);
+		
+		cpu.saveState(buffer);
+		if (cartridge != null)
+		{
+			cartridge.saveState(buffer);
+		}
+		ppu.saveState(buffer);
+		apu.saveState(buffer);
+		
+		buffer.putInt(size_position, buffer.position() - size_position - 4);
+	}
+	
+	// Puts the machine back into a state written by saveState(). Throws an IllegalArgumentException, leaving the
+	// machine as it was, if the buffer does not hold all of a save state of this version of the format, saved with the
+	// same kind of cartridge inserted, or if the state turns out to be damaged while it is loaded.
+	public void loadState(ByteBuffer buffer)
+	{
+		if (buffer.remaining() < SAVE_STATE_HEADER_SIZE || buffer.getInt() != SAVE_STATE_MAGIC)
+		{
+			throw new IllegalArgumentException("Not a save state");
+		}
+		int version = buffer.getInt();
+		if (version != SAVE_STATE_VERSION)
+		{
+			throw new IllegalArgumentException("Unsupported save state version " + version);
+		}
+		int mapper_id = buffer.getInt();
+		int prg_banks = buffer.getInt();
+		int chr_banks = buffer.getInt();
+		if (mapper_id != ((cartridge == null) ? -1 : cartridge.getMapperID()) ||
+			prg_banks != ((cartridge == null) ? 0 : cartridge.getPRGBanks()) ||
+			chr_banks != ((cartridge == null) ? 0 : cartridge.getCHRBanks()))
+		{
+			throw new IllegalArgumentException("Save state of another cartridge");
+		}
+		int size = buffer.getInt();
+		if (size < 0 || buffer.remaining() < size)
+		{
+			throw new IllegalArgumentException("Truncated save state");
+		}
+		
+		if (load_backup == null)
+		{
+			load_backup = ByteBuffer.allocate(MAX_SAVE_STATE_SIZE);
+		}
+		load_backup.clear();
+		saveState(load_backup);
+		
+		int start = buffer.position();
+		try
+		{
+			loadMachineState(buffer);
+			if (buffer.position() - start != size)
+			{
+				throw new IllegalArgumentException("Save state size does not match");
+			}
+		}
+		catch (RuntimeException e)
+		{
+			// A device refused its part of the state or read past it. Go back to where the machine was.
+			load_backup.flip();
+			load_backup.position(SAVE_STATE_HEADER_SIZE);
+			loadMachineState(load_backup);
+			throw (e instanceof IllegalArgumentException) ? e : new IllegalArgumentException("Damaged save state", e);
 		}
-
-		system_clock_counter++;
+	}
+	
+	// Reads the state after the header into the machine, in the order saveState() wrote it.
+	private void loadMachineState(ByteBuffer buffer)
+	{
+		for (int n=0; n < 2048; n++)
+		{
+			wram[n] = buffer.get() & 0xFF;
+		}
+		controller_state[0] = buffer.getInt();
+		controller_state[1] = buffer.getInt();
+		
+		dma_page = buffer.getInt();
+		dma_addr = buffer.getInt();
+		dma_data = buffer.getInt();
+		dma_dummy = buffer.get() != 0;
+		dma_transfer = buffer.get() != 0;
+		dma_suspended_cpu_cycles = buffer.getInt();
+		
+		system_clock_counter = buffer.getLong();
+		cpu_clock_counter = buffer.getLong();
+		ppu_clock_counter = buffer.getLong();
+		apu_clock_counter = buffer.getLong();
+		vertical_blank_clock = buffer.getLong();
+		cpu_executed_instruction = buffer.get() != 0;
+		skipped_idle_loop_cycles = buffer.getLong();
+		
+		cpu.loadState(buffer);
+		if (cartridge != null)
+		{
+			// The banks may differ from the current ones.
+			cartridge.loadState(buffer);
+			rebuildMemoryMap();
+			if (recompiler != null && cartridge.isProgramWritable())
+			{
+				// The program memory was loaded too, so the code compiled from it may have changed.
+				recompiler.invalidateAll();
+			}
+		}
+		ppu.loadState(buffer);
+		apu.loadState(buffer);
 	}
 	
 	// Debug method
 	// Run one CPU instruction.
 	public void runCPUInstruction()
 	{
-		// Clock enough times to execute a whole CPU instruction.
-		do
-		{
-			cpu.clock();
-		} 
-		while (!cpu.complete());
+		// Compiled blocks execute several instructions at once and idle loops are skipped as a whole, so only
+		// interpret single instructions while stepping.
+		Recompiler stepping_recompiler = recompiler;
+		recompiler = null;
+		boolean detect_idle_loops = cpu.detect_idle_loops;
+		cpu.detect_idle_loops = false;
 		
-		// CPU clock runs slower than system clock, so it may be
-		// complete for additional system clock cycles. Drain
-		// those out.
+		// Run the system up to and including the clock on which the CPU executes its next instruction. A DMA
+		// transfer or interrupt may need to finish first.
 		do
 		{
-			clock();
+			runClocks(cpu_clock_counter - system_clock_counter + 1);
 		}
-		while (cpu.complete());
+		while (!cpu_executed_instruction);
+		
+		// The instruction takes a number of CPU clocks to complete. Run the rest of the system for those too.
+		runClocks(cpu_clock_counter - system_clock_counter);
+		
+		recompiler = stepping_recompiler;
+		cpu.detect_idle_loops = detect_idle_loops;
 	}
 }
@@ -1,5 +1,7 @@
 package nesemu.hardware.cartridge;
 
+import java.nio.ByteBuffer;
+
 import nesemu.hardware.mapper.AMapper;
 import nesemu.hardware.mapper.AMapper.MIRROR;
 
@@ -10,6 +12,12 @@ public class ACartridge
 	
 	protected AMapper mapper;
 	
+	// Returned by cpuRead and ppuRead when the cartridge does not respond to the address.
+	public static final int UNMAPPED = AMapper.UNMAPPED;
+	
+	// Returned by cpuMapPage when the cartridge responds to only part of a page.
+	public static final int PARTIALLY_MAPPED = -2;
+	
 	public ACartridge(String sFileName)
 	{
 		
@@ -21,9 +29,10 @@ public class ACartridge
 		return false;
 	}
 	
-	public boolean cpuRead(/*unsigned 16bit*/ int addr, /*unsigned 8bit*/ int[] data_by_ref)
+	// Returns the byte at the address, or UNMAPPED if the cartridge does not respond to it.
+	public /*unsigned 8bit*/ int cpuRead(/*unsigned 16bit*/ int addr)
 	{
-		return false;
+		return UNMAPPED;
 	}
 	
 	// Communication with PPU Bus
@@ -32,7 +41,51 @@ public class ACartridge
 		return false;
 	}
 	
-	public boolean ppuRead(/*unsigned 16bit*/ int addr, /*unsigned 8bit*/ int[] data_by_ref)
+	// Returns the byte at the address, or UNMAPPED if the cartridge does not respond to it.
+	public /*unsigned 8bit*/ int ppuRead(/*unsigned 16bit*/ int addr)
+	{
+		return UNMAPPED;
+	}
+	
+	// Memory map support for the bus. Returns the offset into the program memory that the whole 256 byte CPU page
+	// maps to, UNMAPPED if the cartridge does not respond to the page at all or PARTIALLY_MAPPED otherwise.
+	public int cpuMapPage(/*unsigned 8bit*/ int page)
+	{
+		return UNMAPPED;
+	}
+	
+	// Returns true, once, after the mapping of the cartridge for the CPU changed e.g. after a PRG bank switch.
+	public boolean cpuMappingChanged()
+	{
+		return false;
+	}
+	
+	// Returns true, once, after the mapping of the cartridge for the PPU changed e.g. after a CHR bank switch or a
+	// change of the mirroring.
+	public boolean ppuMappingChanged()
+	{
+		return false;
+	}
+	
+	// The mapper and the number of 16KB PRG and 8KB CHR banks from the file header, which tell the save states of
+	// different kinds of cartridges apart.
+	public int getMapperID()
+	{
+		return 0;
+	}
+	
+	public int getPRGBanks()
+	{
+		return 0;
+	}
+	
+	public int getCHRBanks()
+	{
+		return 0;
+	}
+	
+	// Whether the game can write to the program memory, which is then part of the cartridge's state.
+	public boolean isProgramWritable()
 	{
 		return false;
 	}
@@ -41,12 +94,23 @@ public class ACartridge
 	{
 	}
 	
+	// Writes what the game can change in the cartridge, i.e. the mapper registers and any RAM, into the buffer, see
+	// NESBus.saveState().
+	public void saveState(ByteBuffer buffer)
+	{
+	}
+	
+	// Reads back the state written by saveState().
+	public void loadState(ByteBuffer buffer)
+	{
+	}
+	
 	public MIRROR Mirror()
 	{
 		return null;
 	}
 	
-	// Used for debugging.
+	// Used for debugging and by the bus memory map.
 	public int[] getProgram()
 	{
 		return vPRGMemory;
@@ -3,6 +3,7 @@ package nesemu.hardware.cartridge;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import nesemu.hardware.mapper.AMapper.MIRROR;
 import nesemu.hardware.mapper.Mapper_000;
@@ -148,14 +149,14 @@ public class Cartridge extends ACartridge
 		return false;
 	}
 
-	public boolean cpuRead(/*unsigned 16bit*/ int addr, /*unsigned 8bit*/ int[] data_by_ref)
+	public /*unsigned 8bit*/ int cpuRead(/*unsigned 16bit*/ int addr)
 	{
-		if (mapper.cpuMapRead(addr, mapped_addr_by_ref, data_by_ref))
+		int mapped_addr = mapper.cpuMapRead(addr);
+		if (mapped_addr != UNMAPPED)
 		{
-			data_by_ref[0] = vPRGMemory[mapped_addr_by_ref[0]];
-			return true;
+			return vPRGMemory[mapped_addr];
 		}
-		return false;
+		return UNMAPPED;
 	}
 	
 	// Communication with PPU Bus
@@ -169,14 +170,60 @@ public class Cartridge extends ACartridge
 		return false;
 	}
 	
-	public boolean ppuRead(/*unsigned 16bit*/ int addr, /*unsigned 8bit*/ int[] data_by_ref)
+	public /*unsigned 8bit*/ int ppuRead(/*unsigned 16bit*/ int addr)
 	{
-		if (mapper.ppuMapRead(addr, mapped_addr_by_ref))
+		int mapped_addr = mapper.ppuMapRead(addr);
+		if (mapped_addr != UNMAPPED)
 		{
-			data_by_ref[0] = vCHRMemory[mapped_addr_by_ref[0]];
-			return true;
+			return vCHRMemory[mapped_addr];
 		}
-		return false;
+		return UNMAPPED;
+	}
+	
+	public int cpuMapPage(/*unsigned 8bit*/ int page)
+	{
+		// Banks are never smaller than a page, so the first and last byte tell us how the whole page is mapped.
+		int first_mapped_addr = mapper.cpuMapRead(page << 8);
+		int last_mapped_addr = mapper.cpuMapRead((page << 8) | 0xFF);
+		if (first_mapped_addr == UNMAPPED && last_mapped_addr == UNMAPPED)
+		{
+			return UNMAPPED;
+		}
+		else if (first_mapped_addr != UNMAPPED && last_mapped_addr == first_mapped_addr + 0xFF)
+		{
+			return first_mapped_addr;
+		}
+		return PARTIALLY_MAPPED;
+	}
+	
+	public boolean cpuMappingChanged()
+	{
+		return mapper.cpuMappingChanged();
+	}
+	
+	public boolean ppuMappingChanged()
+	{
+		return mapper.ppuMappingChanged();
+	}
+	
+	public int getMapperID()
+	{
+		return nMapperID;
+	}
+	
+	public int getPRGBanks()
+	{
+		return nPRGBanks;
+	}
+	
+	public int getCHRBanks()
+	{
+		return nCHRBanks;
+	}
+	
+	public boolean isProgramWritable()
+	{
+		return mapper != null && mapper.isPRGWritable();
 	}
 	
 	public void reset()
@@ -186,6 +233,52 @@ public class Cartridge extends ACartridge
 			mapper.reset();
 	}
 	
+	public void saveState(ByteBuffer buffer)
+	{
+		if (mapper != null)
+			mapper.saveState(buffer);
+		
+		// The mapper lets the game write to the program memory, so it may no longer hold what was loaded from the file.
+		if (isProgramWritable())
+		{
+			for (int n=0; n < vPRGMemory.length; n++)
+			{
+				buffer.put((byte)vPRGMemory[n]);
+			}
+		}
+		
+		// Without CHR ROM the pattern memory is RAM, which the game fills in.
+		if (nCHRBanks == 0)
+		{
+			for (int n=0; n < vCHRMemory.length; n++)
+			{
+				buffer.put((byte)vCHRMemory[n]);
+			}
+		}
+	}
+	
+	public void loadState(ByteBuffer buffer)
+	{
+		if (mapper != null)
+			mapper.loadState(buffer);
+		
+		if (isProgramWritable())
+		{
+			for (int n=0; n < vPRGMemory.length; n++)
+			{
+				vPRGMemory[n] = buffer.get() & 0xFF;
+			}
+		}
+		
+		if (nCHRBanks == 0)
+		{
+			for (int n=0; n < vCHRMemory.length; n++)
+			{
+				vCHRMemory[n] = buffer.get() & 0xFF;
+			}
+		}
+	}
+	
 	private static class sHeader
 	{
 		private String name;
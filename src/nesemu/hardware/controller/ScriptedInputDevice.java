@@ -0,0 +1,161 @@
+package nesemu.hardware.controller;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/*
+ * Plays back controller input from a script instead of reading a keyboard, so that the emulator can run without a
+ * window. Each line of the script gives the frame from which the controllers are in a state, followed by the buttons
+ * held on controller 1 and, optionally, controller 2:
+ *
+ *   # Press start, then walk right while jumping
+ *   60   START
+ *   70   -
+ *   120  RIGHT+A
+ *   200  RIGHT     LEFT
+ *
+ * The buttons are A, B, SELECT, START, UP, DOWN, LEFT and RIGHT, joined by '+', and '-' means no buttons. A state
+ * holds until the frame of the next line. Everything after a '#' is a comment.
+ */
+public class ScriptedInputDevice extends AInputDevice
+{
+	private static final String[] BUTTON_NAMES = { "RIGHT", "LEFT", "DOWN", "UP", "START", "SELECT", "B", "A" };
+
+	// The script, in order of frame.
+	private int[] frames;
+	private int[] controller_1_states;
+	private int[] controller_2_states;
+
+	// The line of the script that is in effect.
+	private int current_line;
+
+	// An input device that never presses anything.
+	public ScriptedInputDevice()
+	{
+		frames = new int[0];
+		controller_1_states = new int[0];
+		controller_2_states = new int[0];
+		reset();
+	}
+
+	public ScriptedInputDevice(String file_name) throws IOException
+	{
+		ArrayList<int[]> lines = new ArrayList<int[]>();
+		BufferedReader reader = new BufferedReader(new FileReader(file_name));
+		try
+		{
+			String line;
+			int line_number = 0;
+			int last_frame = -1;
+			while ((line = reader.readLine()) != null)
+			{
+				line_number++;
+				int comment = line.indexOf('#');
+				if (comment >= 0)
+				{
+					line = line.substring(0, comment);
+				}
+				line = line.trim();
+				if (line.isEmpty())
+				{
+					continue;
+				}
+
+				String[] fields = line.split("\\s+");
+				if (fields.length > 3)
+				{
+					throw new IOException(file_name + " line " + line_number + ": too many fields");
+				}
+				int frame;
+				try
+				{
+					frame = Integer.parseInt(fields[0]);
+				}
+				catch (NumberFormatException e)
+				{
+					throw new IOException(file_name + " line " + line_number + ": " + fields[0] + " is not a frame");
+				}
+				if (frame <= last_frame)
+				{
+					throw new IOException(file_name + " line " + line_number + ": frames must be in increasing order");
+				}
+				last_frame = frame;
+
+				int controller_1_state = (fields.length > 1) ? parseButtons(fields[1], file_name, line_number) : 0;
+				int controller_2_state = (fields.length > 2) ? parseButtons(fields[2], file_name, line_number) : 0;
+				lines.add(new int[] { frame, controller_1_state, controller_2_state });
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+
+		frames = new int[lines.size()];
+		controller_1_states = new int[lines.size()];
+		controller_2_states = new int[lines.size()];
+		for (int n=0; n < lines.size(); n++)
+		{
+			frames[n] = lines.get(n)[0];
+			controller_1_states[n] = lines.get(n)[1];
+			controller_2_states[n] = lines.get(n)[2];
+		}
+		reset();
+	}
+
+	// Returns the controller state of buttons such as "RIGHT+A", in the bit order the controller shifts them out.
+	private static int parseButtons(String buttons, String file_name, int line_number) throws IOException
+	{
+		int state = 0x00;
+		if (buttons.equals("-"))
+		{
+			return state;
+		}
+		for (String button : buttons.toUpperCase().split("\\+"))
+		{
+			int bit = 0;
+			while (bit < BUTTON_NAMES.length && !BUTTON_NAMES[bit].equals(button))
+			{
+				bit++;
+			}
+			if (bit == BUTTON_NAMES.length)
+			{
+				throw new IOException(file_name + " line " + line_number + ": unknown button " + button);
+			}
+			state |= 1 << bit;
+		}
+		return state;
+	}
+
+	// Moves the script on to the given frame.
+	public void setFrame(int frame)
+	{
+		while (current_line + 1 < frames.length && frames[current_line + 1] <= frame)
+		{
+			current_line++;
+		}
+	}
+
+	public int getController1Input()
+	{
+		return isStarted() ? controller_1_states[current_line] : 0x00;
+	}
+
+	public int getController2Input()
+	{
+		return isStarted() ? controller_2_states[current_line] : 0x00;
+	}
+
+	// Whether the frame of the first line has been reached.
+	private boolean isStarted()
+	{
+		return current_line >= 0;
+	}
+
+	public void reset()
+	{
+		current_line = -1;
+	}
+}
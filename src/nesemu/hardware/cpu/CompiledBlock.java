@@ -0,0 +1,26 @@
+package nesemu.hardware.cpu;
+
+/*
+ * A run of 6502 instructions from PRG ROM that the Recompiler turned into a generated JVM class. Running it has exactly
+ * the same effect on the CPU and memory as executing the instructions one at a time.
+ */
+public abstract class CompiledBlock
+{
+	// The CPU address of the first instruction and of the last byte of the last instruction.
+	public /*unsigned 16bit*/ int first_addr;
+	public /*unsigned 16bit*/ int last_addr;
+
+	// The number of instructions in the block.
+	public int instructions;
+
+	// The most cycles the block can take, assuming every page that can be crossed is crossed and a branch at the end
+	// is taken to another page. The bus only runs a block if nothing else needs to happen in that time.
+	public int max_cycles;
+
+	protected CompiledBlock()
+	{
+	}
+
+	// Executes the instructions and returns the number of cycles they took.
+	public abstract int run(MOS6502 cpu);
+}
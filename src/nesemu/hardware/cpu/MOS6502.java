@@ -1,5 +1,7 @@
 package nesemu.hardware.cpu;
 
+import java.nio.ByteBuffer;
+
 import nesemu.hardware.bus.NESBus;
 
 public class MOS6502
@@ -97,6 +99,45 @@ public class MOS6502
 	
 	private Instruction instruction;
 	
+	// Instructions are executed by a single switch over the opcode, with the addressing mode written out in each 
+	// case, which the JIT can compile into one method. Setting this to false executes them through the lookup table
+	// of addressing mode and operation objects instead. Both behave identically, the lookup table is still used by 
+	// the disassembler and debuggers.
+	public boolean use_switch_dispatch = true;
+	
+	// Set by the indexed addressing modes of the switch dispatch and compiled blocks when adding the index changed the 
+	// page.
+	int page_crossed;
+	
+	// Games often wait for the NMI in a tight loop that only reads memory, e.g. polling a variable the NMI handler
+	// sets or the vertical blank flag in the PPU status register. When such a loop gets back to its start with the
+	// registers unchanged, every further iteration will be exactly the same until the vertical blank, so the bus can 
+	// let that time pass without executing them. Setting this to false turns the detection off.
+	public boolean detect_idle_loops = true;
+	private static final int MAX_IDLE_LOOP_BYTES = 16;
+	
+	// The start of the loop being watched, or -1, the number of instructions in one iteration and the registers the 
+	// last time the start was reached.
+	private /*unsigned 16bit*/ int idle_loop_pc = -1;
+	private int idle_loop_length;
+	private /*unsigned 8bit*/ int idle_loop_a;
+	private /*unsigned 8bit*/ int idle_loop_x;
+	private /*unsigned 8bit*/ int idle_loop_y;
+	private /*unsigned 8bit*/ int idle_loop_stkp;
+	private /*unsigned 8bit*/ int idle_loop_status;
+	
+	// The instructions and cycles since the start was last reached.
+	private int idle_loop_instructions;
+	private int idle_loop_cycles;
+	
+	// The cycles of one iteration if the last instruction completed an iteration of an idle loop, 0 otherwise.
+	private int idle_loop_iteration_cycles;
+	
+	// The start and the jump back of the last loop found not to be idle, or -1, so that a busy loop is not decoded
+	// again on every iteration. Forgotten on interrupts, as the code may have been changed or switched by then.
+	private /*unsigned 16bit*/ int rejected_loop_start = -1;
+	private /*unsigned 16bit*/ int rejected_loop_end = -1;
+	
 	// The CPU in the NTSC version of the NES operates at a twelfth the speed of the main clock and at a third the speed of the
 	// PPU.
 	public static final double NTSC_FREQUENCY = NESBus.MASTER_NTSC_FREQUENCY / 12.0;
@@ -1948,37 +1989,1164 @@ public class MOS6502
 		// the next one is ready to be executed.
 		if (cycles == 0)
 		{
-			// Read next instruction byte. This 8-bit value is used to index
-			// the translation table to get the relevant information about
-			// how to implement the instruction.
-			opcode = read(pc);
+			cycles = executeInstruction();
+		}
+		
+		cycles--;
+	}
+	
+	// Performs a whole instruction's worth of emulation in one go and returns how many clock cycles it takes. The 
+	// caller is responsible for letting that much time pass before calling this again. If the CPU is still busy 
+	// with an instruction, interrupt or reset, e.g. because it was being clocked or an interrupt was just raised, the 
+	// remaining cycles of that are returned instead and no instruction is executed.
+	public int step()
+	{
+		if (cycles > 0)
+		{
+			int remaining_cycles = cycles;
+			cycles = 0;
+			return remaining_cycles;
+		}
+		return executeInstruction();
+	}
+	
+	// Runs whole instructions until at least the given number of clock cycles have passed and returns how many
+	// cycles actually passed, which may be a few more than the budget as the last instruction is always finished.
+	// This is for callers that do not need the rest of the system to be clocked in between instructions.
+	public int runCycles(int budget)
+	{
+		int cycles_run = 0;
+		while (cycles_run < budget)
+		{
+			cycles_run += step();
+		}
+		return cycles_run;
+	}
+	
+	// Executes the instruction at the program counter and returns the number of cycles it requires.
+	private int executeInstruction()
+	{
+		/*unsigned 16bit*/ int instruction_pc = pc;
+		
+		// Read next instruction byte. This 8-bit value is used to index
+		// the translation table to get the relevant information about
+		// how to implement the instruction.
+		opcode = read(pc);
+		
+		// Always set the unused status flag bit to 1.
+		SetFlagON(FLAGS6502.U);
+		
+		// Increment program counter, we read the opcode byte.
+		pc++;
+
+		if (use_switch_dispatch)
+		{
+			int instruction_cycles = executeOpcode(opcode);
 			
 			// Always set the unused status flag bit to 1.
 			SetFlagON(FLAGS6502.U);
 			
-			// Increment program counter, we read the opcode byte.
-			pc++;
+			if (detect_idle_loops)
+			{
+				trackIdleLoop(instruction_pc, instruction_cycles);
+			}
+			return instruction_cycles;
+		}
 
-			instruction = lookup[opcode];
+		instruction = lookup[opcode];
+		
+		// Get starting number of cycles. Branches add to this while they execute.
+		cycles = instruction.cycles;
+		
+		// Perform fetch of intermediate data using the required addressing mode
+		/*unsigned 8bit*/ int additional_cycle1 = instruction.addrmode.Execute();
+		
+		// Perform operation
+		/*unsigned 8bit*/ int additional_cycle2 = instruction.operate.Execute();
+		
+		// The address mode and opcode may have altered the number
+		// of cycles this instruction requires before its completed.
+		cycles += (additional_cycle1 & additional_cycle2);
+		
+		// Always set the unused status flag bit to 1.
+		SetFlagON(FLAGS6502.U);
+		
+		int instruction_cycles = cycles;
+		cycles = 0;
+		if (detect_idle_loops)
+		{
+			trackIdleLoop(instruction_pc, instruction_cycles);
+		}
+		return instruction_cycles;
+	}
+	
+	///////////////////////////////////////////////////////////////////////////////
+	//IDLE LOOP DETECTION
+	
+	// Returns the cycles of one iteration if the last instruction completed an iteration of an idle loop, i.e. the
+	// CPU is back at the start of the loop and all further iterations until the vertical blank are exactly the same.
+	// Returns 0 otherwise.
+	public int getIdleLoopIterationCycles()
+	{
+		return idle_loop_iteration_cycles;
+	}
+	
+	// Called after each instruction. Watches for jumps back to the start of a tight loop and checks whether a whole 
+	// iteration of the loop left the registers as they were.
+	private void trackIdleLoop(/*unsigned 16bit*/ int instruction_pc, int instruction_cycles)
+	{
+		idle_loop_iteration_cycles = 0;
+		idle_loop_instructions++;
+		idle_loop_cycles += instruction_cycles;
+		
+		// Only a jump back a short way closes a tight loop.
+		if (pc > instruction_pc || instruction_pc - pc >= MAX_IDLE_LOOP_BYTES)
+		{
+			return;
+		}
+		
+		// The loop runs straight through, so that many instructions since the start means one whole iteration. An
+		// interrupt in between stops the watch.
+		if (pc == idle_loop_pc && idle_loop_instructions == idle_loop_length && a == idle_loop_a && x == idle_loop_x &&
+			y == idle_loop_y && stkp == idle_loop_stkp && status == idle_loop_status)
+		{
+			idle_loop_iteration_cycles = idle_loop_cycles;
+		}
+		else
+		{
+			if (pc == rejected_loop_start && instruction_pc == rejected_loop_end)
+			{
+				idle_loop_length = 0;
+			}
+			else
+			{
+				idle_loop_length = idleLoopLength(pc, instruction_pc);
+				if (idle_loop_length == 0)
+				{
+					rejected_loop_start = pc;
+					rejected_loop_end = instruction_pc;
+				}
+			}
+			idle_loop_pc = (idle_loop_length > 0) ? pc : -1;
+			idle_loop_a = a;
+			idle_loop_x = x;
+			idle_loop_y = y;
+			idle_loop_stkp = stkp;
+			idle_loop_status = status;
+		}
+		idle_loop_instructions = 0;
+		idle_loop_cycles = 0;
+	}
+	
+	// Whether the loop from start to the jump back at end may be idle. The recompiler leaves such loops to the
+	// interpreter.
+	boolean isIdleLoopCandidate(/*unsigned 16bit*/ int start, /*unsigned 16bit*/ int end)
+	{
+		return detect_idle_loops && start <= end && end - start < MAX_IDLE_LOOP_BYTES && idleLoopLength(start, end) > 0;
+	}
+	
+	// An interrupt or reset changes what the loop being watched would do.
+	private void stopIdleLoop()
+	{
+		idle_loop_pc = -1;
+		rejected_loop_start = -1;
+		idle_loop_iteration_cycles = 0;
+	}
+	
+	// Returns the number of instructions in the loop from start to the jump back at end, or 0 if the loop is not idle.
+	// An idle loop runs straight through to the jump and its instructions only change registers and read RAM, ROM or 
+	// the vertical blank flag, which nothing but the NMI handler and the vertical blank change.
+	private int idleLoopLength(/*unsigned 16bit*/ int start, /*unsigned 16bit*/ int end)
+	{
+		int length = 0;
+		/*unsigned 16bit*/ int addr = start;
+		while (addr < end)
+		{
+			/*unsigned 8bit*/ int code = readIdleLoopCode(addr);
+			if (code < 0)
+			{
+				return 0;
+			}
+			Instruction loop_instruction = lookup[code];
+			int instruction_length = loop_instruction.isImpliedAddressingMode ? 1 :
+				(loop_instruction.addrmode == ADDRESS_MODE_ABS || loop_instruction.addrmode == ADDRESS_MODE_ABX ||
+				loop_instruction.addrmode == ADDRESS_MODE_ABY) ? 3 : 2;
 			
-			// Get starting number of cycles.
-			cycles = instruction.cycles;
+			int operand = 0;
+			for (int n=1; n < instruction_length; n++)
+			{
+				int operand_byte = readIdleLoopCode(addr + n);
+				if (operand_byte < 0)
+				{
+					return 0;
+				}
+				operand |= operand_byte << (8 * (n - 1));
+			}
 			
-			// Perform fetch of intermediate data using the required addressing mode
-			/*unsigned 8bit*/ int additional_cycle1 = instruction.addrmode.Execute();
+			if (!isIdleLoopInstruction(code, operand, addr + instruction_length, end))
+			{
+				return 0;
+			}
+			addr += instruction_length;
+			length++;
+		}
+		
+		// The loop must end with a branch or a jump, to the start as the CPU just did.
+		/*unsigned 8bit*/ int code = readIdleLoopCode(end);
+		if (addr != end || code < 0 || 
+			(lookup[code].addrmode != ADDRESS_MODE_REL && code != 0x4C))
+		{
+			return 0;
+		}
+		return length + 1;
+	}
+	
+	// Reads a byte of a loop's code, or returns -1 if it is not in RAM or ROM.
+	private int readIdleLoopCode(/*unsigned 16bit*/ int addr)
+	{
+		if (addr > 0xFFFF || !bus.isReadMemoryPage(addr >> 8))
+		{
+			return -1;
+		}
+		return bus.cpuRead(addr, true);
+	}
+	
+	// Whether an instruction in a loop only changes registers and reads memory that stays the same until the
+	// vertical blank.
+	private boolean isIdleLoopInstruction(/*unsigned 8bit*/ int code, int operand, /*unsigned 16bit*/ int next_addr,
+		/*unsigned 16bit*/ int end)
+	{
+		Operation operation = lookup[code].operate;
+		Operation mode = lookup[code].addrmode;
+		if (code == 0xEA)
+		{
+			return true;
+		}
+		if (operation != OPCODE_LDA && operation != OPCODE_LDX && operation != OPCODE_LDY && operation != OPCODE_BIT &&
+			operation != OPCODE_CMP && operation != OPCODE_CPX && operation != OPCODE_CPY && operation != OPCODE_AND &&
+			operation != OPCODE_ORA && operation != OPCODE_EOR)
+		{
+			return false;
+		}
+		
+		if (mode == ADDRESS_MODE_IMM)
+		{
+			return true;
+		}
+		else if (mode == ADDRESS_MODE_ZP0 || mode == ADDRESS_MODE_ZPX || mode == ADDRESS_MODE_ZPY)
+		{
+			return bus.isReadMemoryPage(0x00);
+		}
+		else if (mode == ADDRESS_MODE_ABX || mode == ADDRESS_MODE_ABY)
+		{
+			return bus.isReadMemoryPage(operand >> 8) && bus.isReadMemoryPage(((operand + 0xFF) & 0xFFFF) >> 8);
+		}
+		else if (mode == ADDRESS_MODE_ABS)
+		{
+			if (bus.isReadMemoryPage(operand >> 8))
+			{
+				return true;
+			}
 			
-			// Perform operation
-			/*unsigned 8bit*/ int additional_cycle2 = instruction.operate.Execute();
+			// Reading the PPU status register clears the vertical blank flag, which is then clear until the vertical
+			// blank, and resets the address latch, so only the first read has an effect. The other flags can change
+			// at any time, so the read must go straight into a branch on the vertical blank flag.
+			/*unsigned 8bit*/ int branch = readIdleLoopCode(next_addr);
+			return (operand & 0xE007) == 0x2002 && (operation == OPCODE_LDA || operation == OPCODE_BIT) &&
+				next_addr == end && (branch == 0x10 || branch == 0x30);
+		}
+		return false;
+	}
+	
+	///////////////////////////////////////////////////////////////////////////////
+	//SWITCH DISPATCH
+	
+	// Executes an opcode, whose byte has already been read, and returns the number of cycles it requires. This does
+	// exactly what the addressing mode and operation objects in the lookup table do, including the cycle counts,
+	// the order of bus reads and writes and the handling of the unofficial opcodes.
+	private int executeOpcode(/*unsigned 8bit*/ int opcode)
+	{
+		/*unsigned 16bit*/ int addr;
+		
+		switch (opcode)
+		{
+			case 0x00: // BRK
+				brk();
+				return 7;
+			case 0x01: // ORA (zp,X)
+				a |= read(addressIndirectX());
+				setZeroAndNegative(a);
+				return 6;
+			case 0x05: // ORA zp
+				a |= read(addressZeroPage());
+				setZeroAndNegative(a);
+				return 3;
+			case 0x06: // ASL zp
+				addr = addressZeroPage();
+				write(addr, asl(read(addr)));
+				return 5;
+			case 0x08: // PHP
+				push(status | FLAGS6502.B | FLAGS6502.U);
+				status &= ~FLAGS6502.B;
+				status &= ~FLAGS6502.U;
+				return 3;
+			case 0x09: // ORA #
+				a |= read(addressImmediate());
+				setZeroAndNegative(a);
+				return 2;
+			case 0x0A: // ASL
+				a = asl(a);
+				return 2;
+			case 0x0D: // ORA abs
+				a |= read(addressAbsolute());
+				setZeroAndNegative(a);
+				return 4;
+			case 0x0E: // ASL abs
+				addr = addressAbsolute();
+				write(addr, asl(read(addr)));
+				return 6;
+			case 0x10: // BPL rel
+				return branch((status & FLAGS6502.N) == 0);
+			case 0x11: // ORA (zp),Y
+				a |= read(addressIndirectY());
+				setZeroAndNegative(a);
+				return 5 + page_crossed;
+			case 0x15: // ORA zp,X
+				a |= read(addressZeroPageX());
+				setZeroAndNegative(a);
+				return 4;
+			case 0x16: // ASL zp,X
+				addr = addressZeroPageX();
+				write(addr, asl(read(addr)));
+				return 6;
+			case 0x18: // CLC
+				status &= ~FLAGS6502.C;
+				return 2;
+			case 0x19: // ORA abs,Y
+				a |= read(addressAbsoluteY());
+				setZeroAndNegative(a);
+				return 4 + page_crossed;
+			case 0x1D: // ORA abs,X
+				a |= read(addressAbsoluteX());
+				setZeroAndNegative(a);
+				return 4 + page_crossed;
+			case 0x1E: // ASL abs,X
+				addr = addressAbsoluteX();
+				write(addr, asl(read(addr)));
+				return 7;
+			case 0x20: // JSR abs
+				addr = addressAbsolute();
+				pc--;
+				pushReturnAddress();
+				pc = addr;
+				return 6;
+			case 0x21: // AND (zp,X)
+				a &= read(addressIndirectX());
+				setZeroAndNegative(a);
+				return 6;
+			case 0x24: // BIT zp
+				bit(read(addressZeroPage()));
+				return 3;
+			case 0x25: // AND zp
+				a &= read(addressZeroPage());
+				setZeroAndNegative(a);
+				return 3;
+			case 0x26: // ROL zp
+				addr = addressZeroPage();
+				write(addr, rol(read(addr)));
+				return 5;
+			case 0x28: // PLP
+				status = pull();
+				status |= FLAGS6502.U;
+				return 4;
+			case 0x29: // AND #
+				a &= read(addressImmediate());
+				setZeroAndNegative(a);
+				return 2;
+			case 0x2A: // ROL
+				a = rol(a);
+				return 2;
+			case 0x2C: // BIT abs
+				bit(read(addressAbsolute()));
+				return 4;
+			case 0x2D: // AND abs
+				a &= read(addressAbsolute());
+				setZeroAndNegative(a);
+				return 4;
+			case 0x2E: // ROL abs
+				addr = addressAbsolute();
+				write(addr, rol(read(addr)));
+				return 6;
+			case 0x30: // BMI rel
+				return branch((status & FLAGS6502.N) != 0);
+			case 0x31: // AND (zp),Y
+				a &= read(addressIndirectY());
+				setZeroAndNegative(a);
+				return 5 + page_crossed;
+			case 0x35: // AND zp,X
+				a &= read(addressZeroPageX());
+				setZeroAndNegative(a);
+				return 4;
+			case 0x36: // ROL zp,X
+				addr = addressZeroPageX();
+				write(addr, rol(read(addr)));
+				return 6;
+			case 0x38: // SEC
+				status |= FLAGS6502.C;
+				return 2;
+			case 0x39: // AND abs,Y
+				a &= read(addressAbsoluteY());
+				setZeroAndNegative(a);
+				return 4 + page_crossed;
+			case 0x3D: // AND abs,X
+				a &= read(addressAbsoluteX());
+				setZeroAndNegative(a);
+				return 4 + page_crossed;
+			case 0x3E: // ROL abs,X
+				addr = addressAbsoluteX();
+				write(addr, rol(read(addr)));
+				return 7;
+			case 0x40: // RTI
+				rti();
+				return 6;
+			case 0x41: // EOR (zp,X)
+				a ^= read(addressIndirectX());
+				setZeroAndNegative(a);
+				return 6;
+			case 0x45: // EOR zp
+				a ^= read(addressZeroPage());
+				setZeroAndNegative(a);
+				return 3;
+			case 0x46: // LSR zp
+				addr = addressZeroPage();
+				write(addr, lsr(read(addr)));
+				return 5;
+			case 0x48: // PHA
+				push(a);
+				return 3;
+			case 0x49: // EOR #
+				a ^= read(addressImmediate());
+				setZeroAndNegative(a);
+				return 2;
+			case 0x4A: // LSR
+				a = lsr(a);
+				return 2;
+			case 0x4C: // JMP abs
+				pc = addressAbsolute();
+				return 3;
+			case 0x4D: // EOR abs
+				a ^= read(addressAbsolute());
+				setZeroAndNegative(a);
+				return 4;
+			case 0x4E: // LSR abs
+				addr = addressAbsolute();
+				write(addr, lsr(read(addr)));
+				return 6;
+			case 0x50: // BVC rel
+				return branch((status & FLAGS6502.V) == 0);
+			case 0x51: // EOR (zp),Y
+				a ^= read(addressIndirectY());
+				setZeroAndNegative(a);
+				return 5 + page_crossed;
+			case 0x55: // EOR zp,X
+				a ^= read(addressZeroPageX());
+				setZeroAndNegative(a);
+				return 4;
+			case 0x56: // LSR zp,X
+				addr = addressZeroPageX();
+				write(addr, lsr(read(addr)));
+				return 6;
+			case 0x58: // CLI
+				status &= ~FLAGS6502.I;
+				return 2;
+			case 0x59: // EOR abs,Y
+				a ^= read(addressAbsoluteY());
+				setZeroAndNegative(a);
+				return 4 + page_crossed;
+			case 0x5D: // EOR abs,X
+				a ^= read(addressAbsoluteX());
+				setZeroAndNegative(a);
+				return 4 + page_crossed;
+			case 0x5E: // LSR abs,X
+				addr = addressAbsoluteX();
+				write(addr, lsr(read(addr)));
+				return 7;
+			case 0x60: // RTS
+				pullReturnAddress();
+				pc++;
+				return 6;
+			case 0x61: // ADC (zp,X)
+				adc(read(addressIndirectX()));
+				return 6;
+			case 0x65: // ADC zp
+				adc(read(addressZeroPage()));
+				return 3;
+			case 0x66: // ROR zp
+				addr = addressZeroPage();
+				write(addr, ror(read(addr)));
+				return 5;
+			case 0x68: // PLA
+				a = pull();
+				setZeroAndNegative(a);
+				return 4;
+			case 0x69: // ADC #
+				adc(read(addressImmediate()));
+				return 2;
+			case 0x6A: // ROR
+				a = ror(a);
+				return 2;
+			case 0x6C: // JMP (abs)
+				pc = addressIndirect();
+				return 5;
+			case 0x6D: // ADC abs
+				adc(read(addressAbsolute()));
+				return 4;
+			case 0x6E: // ROR abs
+				addr = addressAbsolute();
+				write(addr, ror(read(addr)));
+				return 6;
+			case 0x70: // BVS rel
+				return branch((status & FLAGS6502.V) != 0);
+			case 0x71: // ADC (zp),Y
+				adc(read(addressIndirectY()));
+				return 5 + page_crossed;
+			case 0x75: // ADC zp,X
+				adc(read(addressZeroPageX()));
+				return 4;
+			case 0x76: // ROR zp,X
+				addr = addressZeroPageX();
+				write(addr, ror(read(addr)));
+				return 6;
+			case 0x78: // SEI
+				status |= FLAGS6502.I;
+				return 2;
+			case 0x79: // ADC abs,Y
+				adc(read(addressAbsoluteY()));
+				return 4 + page_crossed;
+			case 0x7D: // ADC abs,X
+				adc(read(addressAbsoluteX()));
+				return 4 + page_crossed;
+			case 0x7E: // ROR abs,X
+				addr = addressAbsoluteX();
+				write(addr, ror(read(addr)));
+				return 7;
+			case 0x81: // STA (zp,X)
+				write(addressIndirectX(), a);
+				return 6;
+			case 0x84: // STY zp
+				write(addressZeroPage(), y);
+				return 3;
+			case 0x85: // STA zp
+				write(addressZeroPage(), a);
+				return 3;
+			case 0x86: // STX zp
+				write(addressZeroPage(), x);
+				return 3;
+			case 0x88: // DEY
+				y = (y - 1) & 0xFF;
+				setZeroAndNegative(y);
+				return 2;
+			case 0x8A: // TXA
+				a = x;
+				setZeroAndNegative(a);
+				return 2;
+			case 0x8C: // STY abs
+				write(addressAbsolute(), y);
+				return 4;
+			case 0x8D: // STA abs
+				write(addressAbsolute(), a);
+				return 4;
+			case 0x8E: // STX abs
+				write(addressAbsolute(), x);
+				return 4;
+			case 0x90: // BCC rel
+				return branch((status & FLAGS6502.C) == 0);
+			case 0x91: // STA (zp),Y
+				write(addressIndirectY(), a);
+				return 6;
+			case 0x94: // STY zp,X
+				write(addressZeroPageX(), y);
+				return 4;
+			case 0x95: // STA zp,X
+				write(addressZeroPageX(), a);
+				return 4;
+			case 0x96: // STX zp,Y
+				write(addressZeroPageY(), x);
+				return 4;
+			case 0x98: // TYA
+				a = y;
+				setZeroAndNegative(a);
+				return 2;
+			case 0x99: // STA abs,Y
+				write(addressAbsoluteY(), a);
+				return 5;
+			case 0x9A: // TXS
+				stkp = x;
+				return 2;
+			case 0x9D: // STA abs,X
+				write(addressAbsoluteX(), a);
+				return 5;
+			case 0xA0: // LDY #
+				y = read(addressImmediate());
+				setZeroAndNegative(y);
+				return 2;
+			case 0xA1: // LDA (zp,X)
+				a = read(addressIndirectX());
+				setZeroAndNegative(a);
+				return 6;
+			case 0xA2: // LDX #
+				x = read(addressImmediate());
+				setZeroAndNegative(x);
+				return 2;
+			case 0xA4: // LDY zp
+				y = read(addressZeroPage());
+				setZeroAndNegative(y);
+				return 3;
+			case 0xA5: // LDA zp
+				a = read(addressZeroPage());
+				setZeroAndNegative(a);
+				return 3;
+			case 0xA6: // LDX zp
+				x = read(addressZeroPage());
+				setZeroAndNegative(x);
+				return 3;
+			case 0xA8: // TAY
+				y = a;
+				setZeroAndNegative(y);
+				return 2;
+			case 0xA9: // LDA #
+				a = read(addressImmediate());
+				setZeroAndNegative(a);
+				return 2;
+			case 0xAA: // TAX
+				x = a;
+				setZeroAndNegative(x);
+				return 2;
+			case 0xAC: // LDY abs
+				y = read(addressAbsolute());
+				setZeroAndNegative(y);
+				return 4;
+			case 0xAD: // LDA abs
+				a = read(addressAbsolute());
+				setZeroAndNegative(a);
+				return 4;
+			case 0xAE: // LDX abs
+				x = read(addressAbsolute());
+				setZeroAndNegative(x);
+				return 4;
+			case 0xB0: // BCS rel
+				return branch((status & FLAGS6502.C) != 0);
+			case 0xB1: // LDA (zp),Y
+				a = read(addressIndirectY());
+				setZeroAndNegative(a);
+				return 5 + page_crossed;
+			case 0xB4: // LDY zp,X
+				y = read(addressZeroPageX());
+				setZeroAndNegative(y);
+				return 4;
+			case 0xB5: // LDA zp,X
+				a = read(addressZeroPageX());
+				setZeroAndNegative(a);
+				return 4;
+			case 0xB6: // LDX zp,Y
+				x = read(addressZeroPageY());
+				setZeroAndNegative(x);
+				return 4;
+			case 0xB8: // CLV
+				status &= ~FLAGS6502.V;
+				return 2;
+			case 0xB9: // LDA abs,Y
+				a = read(addressAbsoluteY());
+				setZeroAndNegative(a);
+				return 4 + page_crossed;
+			case 0xBA: // TSX
+				x = stkp;
+				setZeroAndNegative(x);
+				return 2;
+			case 0xBC: // LDY abs,X
+				y = read(addressAbsoluteX());
+				setZeroAndNegative(y);
+				return 4 + page_crossed;
+			case 0xBD: // LDA abs,X
+				a = read(addressAbsoluteX());
+				setZeroAndNegative(a);
+				return 4 + page_crossed;
+			case 0xBE: // LDX abs,Y
+				x = read(addressAbsoluteY());
+				setZeroAndNegative(x);
+				return 4 + page_crossed;
+			case 0xC0: // CPY #
+				compare(y, read(addressImmediate()));
+				return 2;
+			case 0xC1: // CMP (zp,X)
+				compare(a, read(addressIndirectX()));
+				return 6;
+			case 0xC4: // CPY zp
+				compare(y, read(addressZeroPage()));
+				return 3;
+			case 0xC5: // CMP zp
+				compare(a, read(addressZeroPage()));
+				return 3;
+			case 0xC6: // DEC zp
+				addr = addressZeroPage();
+				write(addr, decrement(read(addr)));
+				return 5;
+			case 0xC8: // INY
+				y = (y + 1) & 0xFF;
+				setZeroAndNegative(y);
+				return 2;
+			case 0xC9: // CMP #
+				compare(a, read(addressImmediate()));
+				return 2;
+			case 0xCA: // DEX
+				x = (x - 1) & 0xFF;
+				setZeroAndNegative(x);
+				return 2;
+			case 0xCC: // CPY abs
+				compare(y, read(addressAbsolute()));
+				return 4;
+			case 0xCD: // CMP abs
+				compare(a, read(addressAbsolute()));
+				return 4;
+			case 0xCE: // DEC abs
+				addr = addressAbsolute();
+				write(addr, decrement(read(addr)));
+				return 6;
+			case 0xD0: // BNE rel
+				return branch((status & FLAGS6502.Z) == 0);
+			case 0xD1: // CMP (zp),Y
+				compare(a, read(addressIndirectY()));
+				return 5 + page_crossed;
+			case 0xD5: // CMP zp,X
+				compare(a, read(addressZeroPageX()));
+				return 4;
+			case 0xD6: // DEC zp,X
+				addr = addressZeroPageX();
+				write(addr, decrement(read(addr)));
+				return 6;
+			case 0xD8: // CLD
+				status &= ~FLAGS6502.D;
+				return 2;
+			case 0xD9: // CMP abs,Y
+				compare(a, read(addressAbsoluteY()));
+				return 4 + page_crossed;
+			case 0xDD: // CMP abs,X
+				compare(a, read(addressAbsoluteX()));
+				return 4 + page_crossed;
+			case 0xDE: // DEC abs,X
+				addr = addressAbsoluteX();
+				write(addr, decrement(read(addr)));
+				return 7;
+			case 0xE0: // CPX #
+				compare(x, read(addressImmediate()));
+				return 2;
+			case 0xE1: // SBC (zp,X)
+				sbc(read(addressIndirectX()));
+				return 6;
+			case 0xE4: // CPX zp
+				compare(x, read(addressZeroPage()));
+				return 3;
+			case 0xE5: // SBC zp
+				sbc(read(addressZeroPage()));
+				return 3;
+			case 0xE6: // INC zp
+				addr = addressZeroPage();
+				write(addr, increment(read(addr)));
+				return 5;
+			case 0xE8: // INX
+				x = (x + 1) & 0xFF;
+				setZeroAndNegative(x);
+				return 2;
+			case 0xE9: // SBC #
+				sbc(read(addressImmediate()));
+				return 2;
+			case 0xEA: // NOP
+				return 2;
+			case 0xEB: // Unofficial, SBC with the accumulator
+				sbc(a);
+				return 2;
+			case 0xEC: // CPX abs
+				compare(x, read(addressAbsolute()));
+				return 4;
+			case 0xED: // SBC abs
+				sbc(read(addressAbsolute()));
+				return 4;
+			case 0xEE: // INC abs
+				addr = addressAbsolute();
+				write(addr, increment(read(addr)));
+				return 6;
+			case 0xF0: // BEQ rel
+				return branch((status & FLAGS6502.Z) != 0);
+			case 0xF1: // SBC (zp),Y
+				sbc(read(addressIndirectY()));
+				return 5 + page_crossed;
+			case 0xF5: // SBC zp,X
+				sbc(read(addressZeroPageX()));
+				return 4;
+			case 0xF6: // INC zp,X
+				addr = addressZeroPageX();
+				write(addr, increment(read(addr)));
+				return 6;
+			case 0xF8: // SED
+				status |= FLAGS6502.D;
+				return 2;
+			case 0xF9: // SBC abs,Y
+				sbc(read(addressAbsoluteY()));
+				return 4 + page_crossed;
+			case 0xFD: // SBC abs,X
+				sbc(read(addressAbsoluteX()));
+				return 4 + page_crossed;
+			case 0xFE: // INC abs,X
+				addr = addressAbsoluteX();
+				write(addr, increment(read(addr)));
+				return 7;
 			
-			// The address mode and opcode may have altered the number
-			// of cycles this instruction requires before its completed.
-			cycles += (additional_cycle1 & additional_cycle2);
+			// Unofficial opcodes that only take time.
+			case 0x02: case 0x0B: case 0x12: case 0x1A: case 0x22: case 0x2B: case 0x32: case 0x3A:
+			case 0x42: case 0x4B: case 0x52: case 0x5A: case 0x62: case 0x6B: case 0x72: case 0x7A:
+			case 0x82: case 0x89: case 0x8B: case 0x92: case 0xAB: case 0xB2: case 0xC2: case 0xCB:
+			case 0xD2: case 0xDA: case 0xE2: case 0xF2: case 0xFA:
+				return 2;
 			
-			// Always set the unused status flag bit to 1.
-			SetFlagON(FLAGS6502.U);
+			// Unofficial opcodes that only take time.
+			case 0x87: case 0xA7:
+				return 3;
+			
+			// Unofficial opcodes that only take time.
+			case 0x8F: case 0x97: case 0xAF: case 0xB7: case 0xBB: case 0xBF:
+				return 4;
+			
+			// Unofficial opcodes that only take time.
+			case 0x07: case 0x27: case 0x47: case 0x67: case 0x9B: case 0x9C: case 0x9E: case 0x9F:
+			case 0xB3: case 0xC7: case 0xE7:
+				return 5;
+			
+			// Unofficial opcodes that only take time.
+			case 0x0F: case 0x17: case 0x2F: case 0x37: case 0x4F: case 0x57: case 0x6F: case 0x77:
+			case 0x83: case 0x93: case 0xA3: case 0xCF: case 0xD7: case 0xEF: case 0xF7:
+				return 6;
+			
+			// Unofficial opcodes that only take time.
+			case 0x1B: case 0x1F: case 0x3B: case 0x3F: case 0x5B: case 0x5F: case 0x7B: case 0x7F:
+			case 0xDB: case 0xDF: case 0xFB: case 0xFF:
+				return 7;
+			
+			// Unofficial opcodes that only take time.
+			case 0x03: case 0x13: case 0x23: case 0x33: case 0x43: case 0x53: case 0x63: case 0x73:
+			case 0xC3: case 0xD3: case 0xE3: case 0xF3:
+				return 8;
+			
+			// Unofficial opcodes that only take time. They skip a 1 byte operand.
+			case 0x80:
+				pc++;
+				return 2;
+			
+			// Unofficial opcodes that only take time. They skip a 1 byte operand.
+			case 0x04: case 0x44: case 0x64:
+				pc++;
+				return 3;
+			
+			// Unofficial opcodes that only take time. They skip a 1 byte operand.
+			case 0x14: case 0x34: case 0x54: case 0x74: case 0xD4: case 0xF4:
+				pc++;
+				return 4;
+			
+			// Unofficial opcodes that only take time. They skip a 2 byte operand.
+			case 0x0C: case 0x1C: case 0x3C: case 0x5C: case 0x7C: case 0xDC: case 0xFC:
+				pc += 2;
+				return 4;
 		}
-		
-		cycles--;
+		return 0;
+	}
+	
+	// Addressing modes of the switch dispatch. Each reads its operand bytes, advances the program counter and returns 
+	// the address the instruction uses. See the addressing mode classes above for the details.
+	private /*unsigned 16bit*/ int addressImmediate()
+	{
+		return pc++;
+	}
+	
+	private /*unsigned 16bit*/ int addressZeroPage()
+	{
+		/*unsigned 16bit*/ int addr = read(pc);
+		pc++;
+		return addr;
+	}
+	
+	private /*unsigned 16bit*/ int addressZeroPageX()
+	{
+		/*unsigned 16bit*/ int addr = (read(pc) + x) & 0x00FF;
+		pc++;
+		return addr;
+	}
+	
+	private /*unsigned 16bit*/ int addressZeroPageY()
+	{
+		/*unsigned 16bit*/ int addr = (read(pc) + y) & 0x00FF;
+		pc++;
+		return addr;
+	}
+	
+	private /*unsigned 16bit*/ int addressAbsolute()
+	{
+		/*unsigned 8bit*/ int lo = read(pc);
+		pc++;
+		/*unsigned 8bit*/ int hi = read(pc);
+		pc++;
+		return (hi << 8) | lo;
+	}
+	
+	private /*unsigned 16bit*/ int addressAbsoluteX()
+	{
+		/*unsigned 8bit*/ int lo = read(pc);
+		pc++;
+		/*unsigned 8bit*/ int hi = read(pc);
+		pc++;
+		return indexedAddress((hi << 8) | lo, x);
+	}
+	
+	private /*unsigned 16bit*/ int addressAbsoluteY()
+	{
+		/*unsigned 8bit*/ int lo = read(pc);
+		pc++;
+		/*unsigned 8bit*/ int hi = read(pc);
+		pc++;
+		return indexedAddress((hi << 8) | lo, y);
+	}
+	
+	private /*unsigned 16bit*/ int addressIndirect()
+	{
+		/*unsigned 8bit*/ int ptr_lo = read(pc);
+		pc++;
+		/*unsigned 8bit*/ int ptr_hi = read(pc);
+		pc++;
+		return indirectAddress((ptr_hi << 8) | ptr_lo);
+	}
+	
+	// Adds an index register to an absolute address and records whether the page changed.
+	/*unsigned 16bit*/ int indexedAddress(/*unsigned 16bit*/ int base, /*unsigned 8bit*/ int index)
+	{
+		/*unsigned 16bit*/ int addr = (base + index) & 0xFFFF;
+		page_crossed = ((addr & 0xFF00) != (base & 0xFF00)) ? 1 : 0;
+		return addr;
+	}
+	
+	// Reads the address a pointer points to.
+	/*unsigned 16bit*/ int indirectAddress(/*unsigned 16bit*/ int ptr)
+	{
+		// Emulate the page boundary hardware bug, the high byte is read from the start of the same page.
+		if ((ptr & 0x00FF) == 0x00FF)
+		{
+			return (read(ptr & 0xFF00) << 8) | read(ptr);
+		}
+		return (read((ptr + 1) & 0xFFFF) << 8) | read(ptr);
+	}
+	
+	private /*unsigned 16bit*/ int addressIndirectX()
+	{
+		/*unsigned 8bit*/ int t = read(pc);
+		pc++;
+		/*unsigned 16bit*/ int lo = read((t + x) & 0x00FF);
+		/*unsigned 16bit*/ int hi = read((t + x + 1) & 0x00FF);
+		return (hi << 8) | lo;
+	}
+	
+	private /*unsigned 16bit*/ int addressIndirectY()
+	{
+		/*unsigned 8bit*/ int t = read(pc);
+		pc++;
+		/*unsigned 16bit*/ int lo = read(t & 0x00FF);
+		/*unsigned 16bit*/ int hi = read((t + 1) & 0x00FF);
+		/*unsigned 16bit*/ int addr = (((hi << 8) | lo) + y) & 0xFFFF;
+		page_crossed = ((addr & 0xFF00) != (hi << 8)) ? 1 : 0;
+		return addr;
+	}
+	
+	// Reads the relative address of a branch and takes the branch if the condition holds. Returns the cycles taken,
+	// 1 more if the branch is taken and another if it lands in a different page.
+	private int branch(boolean condition)
+	{
+		/*signed 8bit*/ byte offset = (byte)read(pc);
+		pc++;
+		if (!condition)
+		{
+			return 2;
+		}
+		return branchTo((pc + offset) & 0xFFFF);
+	}
+	
+	// Takes a branch if a status flag is set or clear as required. Used by compiled blocks, which already moved the
+	// program counter past the branch and know its target.
+	int branchIf(/*unsigned 8bit*/ int flag, boolean when_set, /*unsigned 16bit*/ int target)
+	{
+		if (((status & flag) != 0) != when_set)
+		{
+			return 2;
+		}
+		return branchTo(target);
+	}
+	
+	private int branchTo(/*unsigned 16bit*/ int target)
+	{
+		int cycles = ((target & 0xFF00) != (pc & 0xFF00)) ? 4 : 3;
+		pc = target;
+		return cycles;
+	}
+	
+	// Precomputed flags. ZN_FLAGS holds the zero and negative flags of each value. COMPARE_FLAGS holds the carry, 
+	// zero and negative flags of a comparison, indexed by 0x100 plus the register minus the value. The shift tables
+	// are indexed by the carry flag in bit 8 and the value in bits 0 to 7, which rotates shift in, and hold the result
+	// in bits 0 to 7 and the carry, zero and negative flags in bits 8 to 15.
+	private static final /*unsigned 8bit*/ int[] ZN_FLAGS = new int[256];
+	private static final /*unsigned 8bit*/ int[] COMPARE_FLAGS = new int[512];
+	private static final int[] SHIFT_LEFT = new int[512];
+	private static final int[] SHIFT_RIGHT = new int[512];
+	
+	static
+	{
+		for (int value = 0; value < 256; value++)
+		{
+			ZN_FLAGS[value] = ((value == 0x00) ? FLAGS6502.Z : 0) | (value & FLAGS6502.N);
+		}
+		for (int difference = -255; difference <= 255; difference++)
+		{
+			COMPARE_FLAGS[0x0100 + difference] = ((difference >= 0) ? FLAGS6502.C : 0) | ZN_FLAGS[difference & 0x00FF];
+		}
+		for (int carry = 0; carry <= 1; carry++)
+		{
+			for (int value = 0; value < 256; value++)
+			{
+				int left = ((value << 1) | carry) & 0x00FF;
+				SHIFT_LEFT[(carry << 8) | value] = left | (((value >> 7) | ZN_FLAGS[left]) << 8);
+				int right = (value >> 1) | (carry << 7);
+				SHIFT_RIGHT[(carry << 8) | value] = right | (((value & 0x01) | ZN_FLAGS[right]) << 8);
+			}
+		}
+	}
+	
+	// Operations of the switch dispatch. See the operation classes above for the details. The flags are worked out
+	// without branches, from the flag tables below and from the bits of the results.
+	void setZeroAndNegative(/*unsigned 8bit*/ int value)
+	{
+		status = (status & ~(FLAGS6502.Z | FLAGS6502.N)) | ZN_FLAGS[value];
+	}
+	
+	void adc(/*unsigned 8bit*/ int value)
+	{
+		int result = a + value + (status & FLAGS6502.C);
+		// The carry is bit 8 of the result and the overflow is bit 7 of the expression moved to bit 6.
+		status = (status & ~(FLAGS6502.C | FLAGS6502.Z | FLAGS6502.V | FLAGS6502.N)) | (result >> 8) |
+			(((~(a ^ value) & (a ^ result)) & 0x0080) >> 1) | ZN_FLAGS[result & 0x00FF];
+		a = result & 0x00FF;
+	}
+	
+	void sbc(/*unsigned 8bit*/ int value)
+	{
+		// Subtraction is addition of the inverted value.
+		adc(value ^ 0x00FF);
+	}
+	
+	void compare(/*unsigned 8bit*/ int register, /*unsigned 8bit*/ int value)
+	{
+		status = (status & ~(FLAGS6502.C | FLAGS6502.Z | FLAGS6502.N)) | COMPARE_FLAGS[0x0100 + register - value];
+	}
+	
+	void bit(/*unsigned 8bit*/ int value)
+	{
+		status = (status & ~(FLAGS6502.Z | FLAGS6502.V | FLAGS6502.N)) | (ZN_FLAGS[a & value] & FLAGS6502.Z) |
+			(value & (FLAGS6502.V | FLAGS6502.N));
+	}
+	
+	/*unsigned 8bit*/ int asl(/*unsigned 8bit*/ int value)
+	{
+		return shift(SHIFT_LEFT[value]);
+	}
+	
+	/*unsigned 8bit*/ int lsr(/*unsigned 8bit*/ int value)
+	{
+		return shift(SHIFT_RIGHT[value]);
+	}
+	
+	/*unsigned 8bit*/ int rol(/*unsigned 8bit*/ int value)
+	{
+		return shift(SHIFT_LEFT[((status & FLAGS6502.C) << 8) | value]);
+	}
+	
+	/*unsigned 8bit*/ int ror(/*unsigned 8bit*/ int value)
+	{
+		return shift(SHIFT_RIGHT[((status & FLAGS6502.C) << 8) | value]);
+	}
+	
+	// Sets the flags of a shift table entry and returns its result.
+	private /*unsigned 8bit*/ int shift(int entry)
+	{
+		status = (status & ~(FLAGS6502.C | FLAGS6502.Z | FLAGS6502.N)) | (entry >> 8);
+		return entry & 0x00FF;
+	}
+	
+	/*unsigned 8bit*/ int increment(/*unsigned 8bit*/ int value)
+	{
+		value = (value + 1) & 0x00FF;
+		setZeroAndNegative(value);
+		return value;
+	}
+	
+	/*unsigned 8bit*/ int decrement(/*unsigned 8bit*/ int value)
+	{
+		value = (value - 1) & 0x00FF;
+		setZeroAndNegative(value);
+		return value;
+	}
+	
+	void push(/*unsigned 8bit*/ int value)
+	{
+		write(0x0100 + stkp, value);
+		stkp = (stkp - 1) & 0xFF;
+	}
+	
+	/*unsigned 8bit*/ int pull()
+	{
+		stkp = (stkp + 1) & 0xFF;
+		return read(0x0100 + stkp);
+	}
+	
+	void pushReturnAddress()
+	{
+		/*unsigned 16bit*/ int addr = (0x0100 + stkp) & 0xFFFF;
+		write(addr, pc >> 8);
+		write(addr - 1, pc & 0x00FF);
+		stkp = (stkp - 2) & 0xFF;
+	}
+	
+	void pullReturnAddress()
+	{
+		/*unsigned 16bit*/ int addr = 0x0100 + ((stkp + 1) & 0xFF);
+		pc = read(addr);
+		pc |= read(addr + 1) << 8;
+		stkp = (stkp + 2) & 0xFF;
+	}
+	
+	void brk()
+	{
+		// The byte after BRK is read as an immediate operand and skipped.
+		pc += 2;
+		status |= FLAGS6502.I;
+		/*unsigned 16bit*/ int addr = (0x0100 + stkp) & 0xFFFF;
+		write(addr, pc >> 8);
+		write(addr - 1, pc & 0x00FF);
+		write(addr - 2, status | FLAGS6502.B);
+		status &= ~FLAGS6502.B;
+		stkp = (stkp - 3) & 0xFF;
+		pc = read(0xFFFE) | (read(0xFFFF) << 8);
+	}
+	
+	void rti()
+	{
+		/*unsigned 16bit*/ int addr = 0x0100 + ((stkp + 1) & 0xFF);
+		status = read(addr) & ~FLAGS6502.B & ~FLAGS6502.U;
+		pc = read(addr + 1);
+		pc |= read(addr + 2) << 8;
+		stkp = (stkp + 3) & 0xFF;
 	}
 	
 	///////////////////////////////////////////////////////////////////////////////
@@ -1994,6 +3162,7 @@ public class MOS6502
 	public void reset()
 	{
 		opcode = 0x00;
+		stopIdleLoop();
 		
 		// Get address to set program counter to
 		addr_abs = 0xFFFC;
@@ -2038,6 +3207,8 @@ public class MOS6502
 		// If interrupts are allowed
 		if (GetFlag(FLAGS6502.I) == 0)
 		{
+			stopIdleLoop();
+			
 			// Push the program counter to the stack. It's 16-bits don't
 			// forget so that takes two pushes.
 			
@@ -2090,6 +3261,8 @@ public class MOS6502
 	// from location 0xFFFA.
 	public void nmi()
 	{		
+		stopIdleLoop();
+		
 		// Push the program counter to the stack. It's 16-bits don't
 		// forget so that takes two pushes
 		
@@ -2159,7 +3332,7 @@ public class MOS6502
 	//BUS CONNECTIVITY
 
 	//Reads an 8-bit byte from the bus, located at the specified 16-bit address
-	private /*unsigned 8bit*/ int read(/*unsigned 16bit*/ int addr)
+	/*unsigned 8bit*/ int read(/*unsigned 16bit*/ int addr)
 	{
 		// In normal operation "read only" is set to false. This may seem odd. Some
 		// devices on the bus may change state when they are read from, and this 
@@ -2170,7 +3343,7 @@ public class MOS6502
 	}
 	
 	// Writes a byte to the bus at the specified address.
-	private void write(/*unsigned 16bit*/ int addr, /*unsigned 8bit*/ int data)
+	void write(/*unsigned 16bit*/ int addr, /*unsigned 8bit*/ int data)
 	{
 		bus.cpuWrite(addr, data);
 	}
@@ -2213,6 +3386,66 @@ public class MOS6502
 		return cycles == 0;
 	}
 	
+	// Writes the registers and the rest of the state instructions depend on into the buffer, see NESBus.saveState().
+	// The idle loop being watched is included, so that the same iterations are skipped after loading the state.
+	public void saveState(ByteBuffer buffer)
+	{
+		buffer.putInt(a);
+		buffer.putInt(x);
+		buffer.putInt(y);
+		buffer.putInt(stkp);
+		buffer.putInt(pc);
+		buffer.putInt(status);
+		buffer.putInt(fetched);
+		buffer.putInt(temp);
+		buffer.putInt(addr_abs);
+		buffer.put(addr_rel);
+		buffer.putInt(opcode);
+		buffer.putInt(cycles);
+		buffer.putInt(page_crossed);
+		
+		buffer.putInt(idle_loop_pc);
+		buffer.putInt(idle_loop_length);
+		buffer.putInt(idle_loop_a);
+		buffer.putInt(idle_loop_x);
+		buffer.putInt(idle_loop_y);
+		buffer.putInt(idle_loop_stkp);
+		buffer.putInt(idle_loop_status);
+		buffer.putInt(idle_loop_instructions);
+		buffer.putInt(idle_loop_cycles);
+		buffer.putInt(idle_loop_iteration_cycles);
+	}
+	
+	// Reads back the state written by saveState().
+	public void loadState(ByteBuffer buffer)
+	{
+		a = buffer.getInt();
+		x = buffer.getInt();
+		y = buffer.getInt();
+		stkp = buffer.getInt();
+		pc = buffer.getInt();
+		status = buffer.getInt();
+		fetched = buffer.getInt();
+		temp = buffer.getInt();
+		addr_abs = buffer.getInt();
+		addr_rel = buffer.get();
+		opcode = buffer.getInt();
+		cycles = buffer.getInt();
+		page_crossed = buffer.getInt();
+		
+		idle_loop_pc = buffer.getInt();
+		idle_loop_length = buffer.getInt();
+		idle_loop_a = buffer.getInt();
+		idle_loop_x = buffer.getInt();
+		idle_loop_y = buffer.getInt();
+		idle_loop_stkp = buffer.getInt();
+		idle_loop_status = buffer.getInt();
+		idle_loop_instructions = buffer.getInt();
+		idle_loop_cycles = buffer.getInt();
+		idle_loop_iteration_cycles = buffer.getInt();
+		rejected_loop_start = -1;
+	}
+	
 	// The status register stores 8 flags. I've enumerated these here for ease
 	// of access. You can access the status register directly since its public.
 	// The bits have different interpretations depending upon the context and 
@@ -0,0 +1,1015 @@
+package nesemu.hardware.cpu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import nesemu.hardware.bus.NESBus;
+import nesemu.hardware.cpu.MOS6502.FLAGS6502;
+import nesemu.hardware.cpu.MOS6502.Instruction;
+
+/*
+ * Turns hot runs of 6502 instructions in PRG ROM into generated JVM classes, so that the JIT compiles them like any
+ * other Java code, with the operands as constants and without fetching and decoding each instruction.
+ *
+ * A block only contains instructions whose memory accesses are known, when it is compiled, to go to RAM or PRG ROM.
+ * Nothing else on the bus can tell when those accesses happen, so a block runs in one go and only its total cycle
+ * count has to be accounted for. A block ends at the first branch, jump, call, return or break, or before the first
+ * instruction that could access anything else, e.g. a PPU or APU register, a mapper register or an indirectly
+ * addressed location.
+ *
+ * The instruction bytes of a block are compiled in, so blocks are thrown away when the bus maps a different bank to a
+ * page they were compiled from, or when the program writes to the PRG memory of such a page, which some mappers allow.
+ * Code in RAM is never compiled, so writes to RAM do not need to invalidate anything.
+ */
+public class Recompiler
+{
+	// How many times an instruction has to be executed by the interpreter before a block is compiled from it.
+	private static final int HOT_THRESHOLD = 64;
+	private static final int MAX_INSTRUCTIONS = 32;
+
+	// Heat of addresses that a block could not be compiled from.
+	private static final int NOT_COMPILABLE = -1;
+
+	private static final String CPU_CLASS = "nesemu/hardware/cpu/MOS6502";
+	private static final String BLOCK_CLASS = "nesemu/hardware/cpu/CompiledBlock";
+
+	private NESBus bus;
+	private MOS6502 cpu;
+
+	private CompiledBlock[] blocks = new CompiledBlock[0x10000];
+	private int[] heat = new int[0x10000];
+	private ArrayList<CompiledBlock> compiled_blocks = new ArrayList<CompiledBlock>();
+	private MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+	// Statistics
+	public long blocks_compiled = 0;
+	public long blocks_invalidated = 0;
+
+	public Recompiler(NESBus bus, MOS6502 cpu)
+	{
+		this.bus = bus;
+		this.cpu = cpu;
+	}
+
+	// Returns the block that starts at an address, or null if there is none. Every call counts towards compiling one.
+	public CompiledBlock getBlock(/*unsigned 16bit*/ int addr)
+	{
+		// The program counter is not masked to 16 bits by the CPU.
+		if (addr > 0xFFFF)
+		{
+			return null;
+		}
+
+		CompiledBlock block = blocks[addr];
+		if (block == null && heat[addr] != NOT_COMPILABLE)
+		{
+			heat[addr]++;
+			if (heat[addr] == HOT_THRESHOLD)
+			{
+				block = compile(addr);
+				if (block == null)
+				{
+					heat[addr] = NOT_COMPILABLE;
+				}
+			}
+		}
+		return block;
+	}
+
+	public int getNumberOfBlocks()
+	{
+		return compiled_blocks.size();
+	}
+
+	// Throws away the blocks compiled from a page, because a different bank was mapped to it or its memory was written.
+	public void invalidatePage(int page)
+	{
+		for (int n = compiled_blocks.size() - 1; n >= 0; n--)
+		{
+			CompiledBlock block = compiled_blocks.get(n);
+			if ((block.first_addr >> 8) <= page && page <= (block.last_addr >> 8))
+			{
+				blocks[block.first_addr] = null;
+				heat[block.first_addr] = 0;
+				compiled_blocks.remove(n);
+				blocks_invalidated++;
+			}
+		}
+
+		// What could not be compiled before may be compilable from the new bank.
+		for (int addr = page << 8; addr < (page + 1) << 8; addr++)
+		{
+			heat[addr] = 0;
+		}
+	}
+
+	// Throws away all blocks, e.g. because a page that blocks may access is no longer plain memory.
+	public void invalidateAll()
+	{
+		blocks_invalidated += compiled_blocks.size();
+		for (int n=0; n < compiled_blocks.size(); n++)
+		{
+			blocks[compiled_blocks.get(n).first_addr] = null;
+		}
+		compiled_blocks.clear();
+		heat = new int[0x10000];
+	}
+
+	// Decodes the instructions from an address and generates a block for them. Returns null if not even the first
+	// instruction can be compiled.
+	private CompiledBlock compile(/*unsigned 16bit*/ int first_addr)
+	{
+		Bytecode code = new Bytecode();
+		int static_cycles = 0;
+		int max_extra_cycles = 0;
+		int instructions = 0;
+		boolean ended_by_control_flow = false;
+		/*unsigned 16bit*/ int addr = first_addr;
+
+		// Always set the unused status flag bit to 1, as the interpreter does before and after each instruction.
+		code.setStatusBits(FLAGS6502.U);
+		int cycles_store = code.reserveCyclesStore();
+
+		while (instructions < MAX_INSTRUCTIONS && !ended_by_control_flow)
+		{
+			if (!isProgramMemory(addr))
+			{
+				break;
+			}
+			/*unsigned 8bit*/ int opcode = bus.cpuRead(addr, true);
+			Instruction instruction = cpu.lookup[opcode];
+			// The operation and addressing mode classes are named after their mnemonics.
+			String operation = ((Object)instruction.operate).getClass().getSimpleName();
+			String mode = ((Object)instruction.addrmode).getClass().getSimpleName();
+			int length = instructionLength(mode);
+
+			// Unofficial opcodes are left to the interpreter, except for the ones that are official NOPs in all but
+			// name and SBC with the accumulator.
+			if (instruction.name.equals("???") && opcode != 0xEB)
+			{
+				break;
+			}
+			if (!isProgramMemory(addr + length - 1))
+			{
+				break;
+			}
+
+			int operand = 0;
+			if (length == 2)
+			{
+				operand = bus.cpuRead(addr + 1, true);
+			}
+			else if (length == 3)
+			{
+				operand = bus.cpuRead(addr + 1, true) | (bus.cpuRead(addr + 2, true) << 8);
+			}
+
+			if (!isSafe(operation, mode, operand))
+			{
+				break;
+			}
+
+			// Instructions that can take an extra cycle when crossing a page.
+			boolean reads_value = isValueOperation(operation);
+			if (reads_value && (mode.equals("ABX") || mode.equals("ABY")))
+			{
+				max_extra_cycles++;
+			}
+
+			/*unsigned 16bit*/ int next_addr = addr + length;
+			
+			// Loops that may be idle are left to the interpreter, which can skip their iterations altogether.
+			int jump_target = mode.equals("REL") ? ((next_addr + (byte)operand) & 0xFFFF) :
+				(opcode == 0x4C) ? operand : -1;
+			if (jump_target >= 0 && cpu.isIdleLoopCandidate(jump_target, addr))
+			{
+				return null;
+			}
+			
+			if (mode.equals("REL"))
+			{
+				// Branches return their own cycle count, 2 to 4.
+				max_extra_cycles += 4;
+				ended_by_control_flow = true;
+				code.emitBranch(operation, next_addr, (next_addr + (byte)operand) & 0xFFFF);
+			}
+			else
+			{
+				static_cycles += instruction.cycles;
+				ended_by_control_flow = code.emitInstruction(operation, mode, operand, addr, next_addr);
+			}
+
+			instructions++;
+			addr = next_addr;
+		}
+
+		if (instructions == 0)
+		{
+			return null;
+		}
+		if (!ended_by_control_flow)
+		{
+			code.setPC(addr);
+		}
+		code.setStatusBits(FLAGS6502.U);
+		code.returnCycles();
+		code.setInitialCycles(cycles_store, static_cycles);
+
+		try
+		{
+			String class_name = BLOCK_CLASS + "_" + Integer.toHexString(first_addr);
+			Class<?> block_class = lookup.defineHiddenClass(code.toClassFile(class_name), true).lookupClass();
+			CompiledBlock block = (CompiledBlock)block_class.getDeclaredConstructor().newInstance();
+			block.first_addr = first_addr;
+			block.last_addr = addr - 1;
+			block.instructions = instructions;
+			block.max_cycles = static_cycles + max_extra_cycles;
+
+			blocks[first_addr] = block;
+			compiled_blocks.add(block);
+			blocks_compiled++;
+			return block;
+		}
+		catch (Exception | LinkageError e)
+		{
+			System.out.println("Could not compile block at " + Integer.toHexString(first_addr) + ": " + e.getMessage());
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	// Whether an address is in PRG ROM, i.e. memory that can be read but not written directly.
+	private boolean isProgramMemory(int addr)
+	{
+		return addr <= 0xFFFF && bus.isReadMemoryPage(addr >> 8) && !bus.isWriteMemoryPage(addr >> 8);
+	}
+
+	private boolean isReadable(/*unsigned 16bit*/ int first_addr, /*unsigned 16bit*/ int last_addr)
+	{
+		return bus.isReadMemoryPage((first_addr >> 8) & 0xFF) && bus.isReadMemoryPage((last_addr >> 8) & 0xFF);
+	}
+
+	private boolean isWritable(/*unsigned 16bit*/ int first_addr, /*unsigned 16bit*/ int last_addr)
+	{
+		return bus.isWriteMemoryPage((first_addr >> 8) & 0xFF) && bus.isWriteMemoryPage((last_addr >> 8) & 0xFF);
+	}
+
+	private static int instructionLength(String mode)
+	{
+		if (mode.equals("IMP"))
+		{
+			return 1;
+		}
+		else if (mode.equals("ABS") || mode.equals("ABX") || mode.equals("ABY") || mode.equals("IND"))
+		{
+			return 3;
+		}
+		return 2;
+	}
+
+	private static boolean isValueOperation(String operation)
+	{
+		return operation.equals("ADC") || operation.equals("AND") || operation.equals("CMP") ||
+			operation.equals("EOR") || operation.equals("LDA") || operation.equals("LDX") ||
+			operation.equals("LDY") || operation.equals("ORA") || operation.equals("SBC");
+	}
+
+	private static boolean isMemoryReadOperation(String operation)
+	{
+		return isValueOperation(operation) || operation.equals("BIT") || operation.equals("CPX") ||
+			operation.equals("CPY");
+	}
+
+	private static boolean isMemoryWriteOperation(String operation)
+	{
+		return operation.equals("STA") || operation.equals("STX") || operation.equals("STY");
+	}
+
+	private static boolean isReadModifyWriteOperation(String operation)
+	{
+		return operation.equals("ASL") || operation.equals("LSR") || operation.equals("ROL") ||
+			operation.equals("ROR") || operation.equals("INC") || operation.equals("DEC");
+	}
+
+	// Whether all memory an instruction may access is RAM or PRG ROM.
+	private boolean isSafe(String operation, String mode, int operand)
+	{
+		// Instructions that use the stack, whose accesses may spill from page 1 into page 0 or page 2.
+		boolean stack = isReadable(0x0000, 0x01FF) && isReadable(0x0200, 0x0200) && isWritable(0x0000, 0x01FF);
+		if (operation.equals("PHA") || operation.equals("PHP") || operation.equals("PLA") || operation.equals("PLP") ||
+			operation.equals("JSR") || operation.equals("RTS") || operation.equals("RTI"))
+		{
+			return stack;
+		}
+		if (operation.equals("BRK"))
+		{
+			return stack && isReadable(0xFFFE, 0xFFFF);
+		}
+		if (operation.equals("JMP") && mode.equals("IND"))
+		{
+			return isReadable(operand, operand) && isReadable((operand + 1) & 0xFFFF, operand & 0xFF00);
+		}
+
+		boolean reads = isMemoryReadOperation(operation) || isReadModifyWriteOperation(operation);
+		boolean writes = isMemoryWriteOperation(operation) || isReadModifyWriteOperation(operation);
+		if (!reads && !writes)
+		{
+			return true;
+		}
+
+		/*unsigned 16bit*/ int first_addr;
+		/*unsigned 16bit*/ int last_addr;
+		if (mode.equals("IMM") || mode.equals("IMP"))
+		{
+			return true;
+		}
+		else if (mode.equals("ZP0") || mode.equals("ZPX") || mode.equals("ZPY"))
+		{
+			first_addr = 0x0000;
+			last_addr = 0x00FF;
+		}
+		else if (mode.equals("ABS"))
+		{
+			first_addr = operand;
+			last_addr = operand;
+		}
+		else if (mode.equals("ABX") || mode.equals("ABY"))
+		{
+			// Any index can be added, which may wrap around the address space.
+			first_addr = operand;
+			last_addr = (operand + 0xFF) & 0xFFFF;
+		}
+		else
+		{
+			// Indirectly addressed, anything could be accessed.
+			return false;
+		}
+		return (!reads || isReadable(first_addr, last_addr)) && (!writes || isWritable(first_addr, last_addr));
+	}
+
+	/*
+	 * Builds the run method of a block and its class file. The method takes the CPU in local 1, keeps the cycle
+	 * count in local 2 and uses local 3 for addresses that are needed twice. It never branches, so the class file
+	 * does not need stack map frames.
+	 */
+	private static class Bytecode
+	{
+		private static final int ICONST_0 = 0x03;
+		private static final int BIPUSH = 0x10;
+		private static final int SIPUSH = 0x11;
+		private static final int LDC_W = 0x13;
+		private static final int ILOAD = 0x15;
+		private static final int ALOAD_0 = 0x2A;
+		private static final int ALOAD_1 = 0x2B;
+		private static final int ISTORE = 0x36;
+		private static final int IADD = 0x60;
+		private static final int ISUB = 0x64;
+		private static final int IAND = 0x7E;
+		private static final int IOR = 0x80;
+		private static final int IXOR = 0x82;
+		private static final int IRETURN = 0xAC;
+		private static final int RETURN = 0xB1;
+		private static final int GETFIELD = 0xB4;
+		private static final int PUTFIELD = 0xB5;
+		private static final int INVOKEVIRTUAL = 0xB6;
+		private static final int INVOKESPECIAL = 0xB7;
+		private static final int NOP = 0x00;
+
+		private static final int CYCLES = 2;
+		private static final int ADDR = 3;
+		private static final int MAX_STACK = 8;
+		private static final int MAX_LOCALS = 4;
+
+		private ByteArrayOutputStream code = new ByteArrayOutputStream();
+		private ConstantPool constants = new ConstantPool();
+
+		// Emits an instruction. Returns true if it changes the flow of control, which ends the block.
+		public boolean emitInstruction(String operation, String mode, int operand, int addr, int next_addr)
+		{
+			switch (operation)
+			{
+			case "ADC":
+			case "SBC":
+			case "BIT":
+				op(ALOAD_1);
+				value(mode, operand);
+				invoke(operation.toLowerCase(), "(I)V");
+				addPageCrossing(operation, mode);
+				return false;
+			case "CMP":
+			case "CPX":
+			case "CPY":
+				op(ALOAD_1);
+				op(ALOAD_1);
+				getField(operation.equals("CMP") ? "a" : operation.substring(2).toLowerCase());
+				value(mode, operand);
+				invoke("compare", "(II)V");
+				addPageCrossing(operation, mode);
+				return false;
+			case "AND":
+			case "ORA":
+			case "EOR":
+				op(ALOAD_1);
+				op(ALOAD_1);
+				getField("a");
+				value(mode, operand);
+				op(operation.equals("AND") ? IAND : operation.equals("ORA") ? IOR : IXOR);
+				putField("a");
+				setZeroAndNegative("a");
+				addPageCrossing(operation, mode);
+				return false;
+			case "LDA":
+			case "LDX":
+			case "LDY":
+				op(ALOAD_1);
+				value(mode, operand);
+				putField(operation.substring(2).toLowerCase());
+				setZeroAndNegative(operation.substring(2).toLowerCase());
+				addPageCrossing(operation, mode);
+				return false;
+			case "STA":
+			case "STX":
+			case "STY":
+				op(ALOAD_1);
+				address(mode, operand);
+				op(ALOAD_1);
+				getField(operation.substring(2).toLowerCase());
+				invoke("write", "(II)V");
+				return false;
+			case "ASL":
+			case "LSR":
+			case "ROL":
+			case "ROR":
+			case "INC":
+			case "DEC":
+				String method = operation.equals("INC") ? "increment" :
+					operation.equals("DEC") ? "decrement" : operation.toLowerCase();
+				if (mode.equals("IMP"))
+				{
+					op(ALOAD_1);
+					op(ALOAD_1);
+					op(ALOAD_1);
+					getField("a");
+					invoke(method, "(I)I");
+					putField("a");
+				}
+				else
+				{
+					address(mode, operand);
+					store(ADDR);
+					op(ALOAD_1);
+					load(ADDR);
+					op(ALOAD_1);
+					op(ALOAD_1);
+					load(ADDR);
+					invoke("read", "(I)I");
+					invoke(method, "(I)I");
+					invoke("write", "(II)V");
+				}
+				return false;
+			case "INX":
+			case "INY":
+			case "DEX":
+			case "DEY":
+				String register = operation.substring(2).toLowerCase();
+				op(ALOAD_1);
+				op(ALOAD_1);
+				getField(register);
+				pushInt(1);
+				op(operation.startsWith("IN") ? IADD : ISUB);
+				pushInt(0xFF);
+				op(IAND);
+				putField(register);
+				setZeroAndNegative(register);
+				return false;
+			case "TAX":
+			case "TAY":
+			case "TXA":
+			case "TYA":
+			case "TSX":
+			case "TXS":
+				String source = operation.substring(1, 2).equals("S") ? "stkp" : operation.substring(1, 2).toLowerCase();
+				String destination = operation.substring(2).equals("S") ? "stkp" : operation.substring(2).toLowerCase();
+				op(ALOAD_1);
+				op(ALOAD_1);
+				getField(source);
+				putField(destination);
+				if (!operation.equals("TXS"))
+				{
+					setZeroAndNegative(destination);
+				}
+				return false;
+			case "CLC":
+				clearStatusBits(FLAGS6502.C);
+				return false;
+			case "CLD":
+				clearStatusBits(FLAGS6502.D);
+				return false;
+			case "CLI":
+				clearStatusBits(FLAGS6502.I);
+				return false;
+			case "CLV":
+				clearStatusBits(FLAGS6502.V);
+				return false;
+			case "SEC":
+				setStatusBits(FLAGS6502.C);
+				return false;
+			case "SED":
+				setStatusBits(FLAGS6502.D);
+				return false;
+			case "SEI":
+				setStatusBits(FLAGS6502.I);
+				return false;
+			case "PHA":
+				op(ALOAD_1);
+				op(ALOAD_1);
+				getField("a");
+				invoke("push", "(I)V");
+				return false;
+			case "PHP":
+				op(ALOAD_1);
+				op(ALOAD_1);
+				getField("status");
+				pushInt(FLAGS6502.B | FLAGS6502.U);
+				op(IOR);
+				invoke("push", "(I)V");
+				clearStatusBits(FLAGS6502.B);
+				return false;
+			case "PLA":
+				op(ALOAD_1);
+				op(ALOAD_1);
+				invoke("pull", "()I");
+				putField("a");
+				setZeroAndNegative("a");
+				return false;
+			case "PLP":
+				op(ALOAD_1);
+				op(ALOAD_1);
+				invoke("pull", "()I");
+				pushInt(FLAGS6502.U);
+				op(IOR);
+				putField("status");
+				return false;
+			case "NOP":
+				return false;
+			case "JMP":
+				if (mode.equals("IND"))
+				{
+					op(ALOAD_1);
+					op(ALOAD_1);
+					pushInt(operand);
+					invoke("indirectAddress", "(I)I");
+					putField("pc");
+				}
+				else
+				{
+					setPC(operand);
+				}
+				return true;
+			case "JSR":
+				setPC(next_addr - 1);
+				op(ALOAD_1);
+				invoke("pushReturnAddress", "()V");
+				setPC(operand);
+				return true;
+			case "RTS":
+				op(ALOAD_1);
+				invoke("pullReturnAddress", "()V");
+				op(ALOAD_1);
+				op(ALOAD_1);
+				getField("pc");
+				pushInt(1);
+				op(IADD);
+				putField("pc");
+				return true;
+			case "RTI":
+				op(ALOAD_1);
+				invoke("rti", "()V");
+				return true;
+			case "BRK":
+				// BRK works from the program counter just after the opcode.
+				setPC(addr + 1);
+				op(ALOAD_1);
+				invoke("brk", "()V");
+				return true;
+			}
+			throw new IllegalArgumentException("Can not compile " + operation);
+		}
+
+		public void emitBranch(String operation, int next_addr, int target)
+		{
+			int flag;
+			boolean when_set;
+			switch (operation)
+			{
+			case "BCC": flag = FLAGS6502.C; when_set = false; break;
+			case "BCS": flag = FLAGS6502.C; when_set = true; break;
+			case "BEQ": flag = FLAGS6502.Z; when_set = true; break;
+			case "BNE": flag = FLAGS6502.Z; when_set = false; break;
+			case "BMI": flag = FLAGS6502.N; when_set = true; break;
+			case "BPL": flag = FLAGS6502.N; when_set = false; break;
+			case "BVC": flag = FLAGS6502.V; when_set = false; break;
+			case "BVS": flag = FLAGS6502.V; when_set = true; break;
+			default: throw new IllegalArgumentException("Can not compile " + operation);
+			}
+			setPC(next_addr);
+			load(CYCLES);
+			op(ALOAD_1);
+			pushInt(flag);
+			pushInt(when_set ? 1 : 0);
+			pushInt(target);
+			invoke("branchIf", "(IZI)I");
+			op(IADD);
+			store(CYCLES);
+		}
+
+		// Pushes the value an instruction operates on.
+		private void value(String mode, int operand)
+		{
+			if (mode.equals("IMM"))
+			{
+				pushInt(operand);
+			}
+			else if (mode.equals("IMP"))
+			{
+				// Unofficial SBC with the accumulator.
+				op(ALOAD_1);
+				getField("a");
+			}
+			else
+			{
+				op(ALOAD_1);
+				address(mode, operand);
+				invoke("read", "(I)I");
+			}
+		}
+
+		// Pushes the address an instruction operates on.
+		private void address(String mode, int operand)
+		{
+			if (mode.equals("ZPX") || mode.equals("ZPY"))
+			{
+				op(ALOAD_1);
+				getField(mode.equals("ZPX") ? "x" : "y");
+				pushInt(operand);
+				op(IADD);
+				pushInt(0xFF);
+				op(IAND);
+			}
+			else if (mode.equals("ABX") || mode.equals("ABY"))
+			{
+				op(ALOAD_1);
+				pushInt(operand);
+				op(ALOAD_1);
+				getField(mode.equals("ABX") ? "x" : "y");
+				invoke("indexedAddress", "(II)I");
+			}
+			else
+			{
+				pushInt(operand);
+			}
+		}
+
+		private void addPageCrossing(String operation, String mode)
+		{
+			if (isValueOperation(operation) && (mode.equals("ABX") || mode.equals("ABY")))
+			{
+				load(CYCLES);
+				op(ALOAD_1);
+				getField("page_crossed");
+				op(IADD);
+				store(CYCLES);
+			}
+		}
+
+		private void setZeroAndNegative(String register)
+		{
+			op(ALOAD_1);
+			op(ALOAD_1);
+			getField(register);
+			invoke("setZeroAndNegative", "(I)V");
+		}
+
+		public void setStatusBits(int bits)
+		{
+			op(ALOAD_1);
+			op(ALOAD_1);
+			getField("status");
+			pushInt(bits);
+			op(IOR);
+			putField("status");
+		}
+
+		private void clearStatusBits(int bits)
+		{
+			op(ALOAD_1);
+			op(ALOAD_1);
+			getField("status");
+			pushInt(~bits);
+			op(IAND);
+			putField("status");
+		}
+
+		public void setPC(int addr)
+		{
+			op(ALOAD_1);
+			pushInt(addr);
+			putField("pc");
+		}
+
+		// The cycles that do not depend on the CPU state are only known at the end, so room is left for the
+		// instructions that store them, which are filled in by setInitialCycles.
+		public int reserveCyclesStore()
+		{
+			int position = code.size();
+			for (int n=0; n < 5; n++)
+			{
+				op(NOP);
+			}
+			return position;
+		}
+
+		public void setInitialCycles(int position, int cycles)
+		{
+			byte[] bytes = code.toByteArray();
+			int index = constants.integer(cycles);
+			bytes[position] = (byte)LDC_W;
+			bytes[position + 1] = (byte)(index >> 8);
+			bytes[position + 2] = (byte)index;
+			bytes[position + 3] = (byte)ISTORE;
+			bytes[position + 4] = (byte)CYCLES;
+			code.reset();
+			code.write(bytes, 0, bytes.length);
+		}
+
+		public void returnCycles()
+		{
+			load(CYCLES);
+			op(IRETURN);
+		}
+
+		private void op(int opcode)
+		{
+			code.write(opcode);
+		}
+
+		private void u2(int value)
+		{
+			code.write(value >> 8);
+			code.write(value);
+		}
+
+		private void pushInt(int value)
+		{
+			if (value >= -1 && value <= 5)
+			{
+				op(ICONST_0 + value);
+			}
+			else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+			{
+				op(BIPUSH);
+				op(value & 0xFF);
+			}
+			else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+			{
+				op(SIPUSH);
+				u2(value & 0xFFFF);
+			}
+			else
+			{
+				op(LDC_W);
+				u2(constants.integer(value));
+			}
+		}
+
+		private void load(int local)
+		{
+			op(ILOAD);
+			op(local);
+		}
+
+		private void store(int local)
+		{
+			op(ISTORE);
+			op(local);
+		}
+
+		private void getField(String name)
+		{
+			op(GETFIELD);
+			u2(constants.fieldRef(CPU_CLASS, name, "I"));
+		}
+
+		private void putField(String name)
+		{
+			op(PUTFIELD);
+			u2(constants.fieldRef(CPU_CLASS, name, "I"));
+		}
+
+		private void invoke(String name, String descriptor)
+		{
+			op(INVOKEVIRTUAL);
+			u2(constants.methodRef(CPU_CLASS, name, descriptor));
+		}
+
+		// Builds a class that extends CompiledBlock with a default constructor and the run method.
+		public byte[] toClassFile(String class_name) throws IOException
+		{
+			int this_class = constants.classRef(class_name);
+			int super_class = constants.classRef(BLOCK_CLASS);
+			int super_constructor = constants.methodRef(BLOCK_CLASS, "<init>", "()V");
+			int constructor_name = constants.utf8("<init>");
+			int constructor_descriptor = constants.utf8("()V");
+			int run_name = constants.utf8("run");
+			int run_descriptor = constants.utf8("(L" + CPU_CLASS + ";)I");
+			int code_name = constants.utf8("Code");
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(52);
+			constants.write(out);
+			out.writeShort(0x0031); // ACC_PUBLIC | ACC_FINAL | ACC_SUPER
+			out.writeShort(this_class);
+			out.writeShort(super_class);
+			out.writeShort(0); // Interfaces
+			out.writeShort(0); // Fields
+			out.writeShort(2); // Methods
+
+			byte[] constructor_code = new byte[]
+			{
+				(byte)ALOAD_0, (byte)INVOKESPECIAL, (byte)(super_constructor >> 8), (byte)super_constructor,
+				(byte)RETURN
+			};
+			writeMethod(out, constructor_name, constructor_descriptor, code_name, 1, 1, constructor_code);
+			writeMethod(out, run_name, run_descriptor, code_name, MAX_STACK, MAX_LOCALS, code.toByteArray());
+
+			out.writeShort(0); // Attributes
+			out.flush();
+			return bytes.toByteArray();
+		}
+
+		private static void writeMethod(DataOutputStream out, int name, int descriptor, int code_name, int max_stack,
+			int max_locals, byte[] code) throws IOException
+		{
+			out.writeShort(0x0001); // ACC_PUBLIC
+			out.writeShort(name);
+			out.writeShort(descriptor);
+			out.writeShort(1); // Attributes
+			out.writeShort(code_name);
+			out.writeInt(12 + code.length);
+			out.writeShort(max_stack);
+			out.writeShort(max_locals);
+			out.writeInt(code.length);
+			out.write(code);
+			out.writeShort(0); // Exception table
+			out.writeShort(0); // Attributes
+		}
+	}
+
+	// The constant pool of a generated class. Each constant is only added once.
+	private static class ConstantPool
+	{
+		private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private DataOutputStream out = new DataOutputStream(bytes);
+		private HashMap<String, Integer> indices = new HashMap<String, Integer>();
+		private int count = 1;
+
+		public int utf8(String value)
+		{
+			Integer index = indices.get("Utf8 " + value);
+			if (index != null)
+			{
+				return index;
+			}
+			try
+			{
+				out.writeByte(1);
+				out.writeUTF(value);
+			}
+			catch (IOException e)
+			{
+				throw new RuntimeException(e);
+			}
+			return add("Utf8 " + value);
+		}
+
+		public int integer(int value)
+		{
+			Integer index = indices.get("Integer " + value);
+			if (index != null)
+			{
+				return index;
+			}
+			writeEntry(3, value, -1);
+			return add("Integer " + value);
+		}
+
+		public int classRef(String name)
+		{
+			Integer index = indices.get("Class " + name);
+			if (index != null)
+			{
+				return index;
+			}
+			int name_index = utf8(name);
+			writeEntry(7, -1, name_index);
+			return add("Class " + name);
+		}
+
+		public int fieldRef(String owner, String name, String descriptor)
+		{
+			return memberRef(9, owner, name, descriptor);
+		}
+
+		public int methodRef(String owner, String name, String descriptor)
+		{
+			return memberRef(10, owner, name, descriptor);
+		}
+
+		private int memberRef(int tag, String owner, String name, String descriptor)
+		{
+			String key = tag + " " + owner + "." + name + descriptor;
+			Integer index = indices.get(key);
+			if (index != null)
+			{
+				return index;
+			}
+			int class_index = classRef(owner);
+			int name_and_type_index = nameAndType(name, descriptor);
+			try
+			{
+				out.writeByte(tag);
+				out.writeShort(class_index);
+				out.writeShort(name_and_type_index);
+			}
+			catch (IOException e)
+			{
+				throw new RuntimeException(e);
+			}
+			return add(key);
+		}
+
+		private int nameAndType(String name, String descriptor)
+		{
+			String key = "NameAndType " + name + descriptor;
+			Integer index = indices.get(key);
+			if (index != null)
+			{
+				return index;
+			}
+			int name_index = utf8(name);
+			int descriptor_index = utf8(descriptor);
+			try
+			{
+				out.writeByte(12);
+				out.writeShort(name_index);
+				out.writeShort(descriptor_index);
+			}
+			catch (IOException e)
+			{
+				throw new RuntimeException(e);
+			}
+			return add(key);
+		}
+
+		// Writes an entry that holds either a 4 byte value or a 2 byte index.
+		private void writeEntry(int tag, int value, int index)
+		{
+			try
+			{
+				out.writeByte(tag);
+				if (index < 0)
+				{
+					out.writeInt(value);
+				}
+				else
+				{
+					out.writeShort(index);
+				}
+			}
+			catch (IOException e)
+			{
+				throw new RuntimeException(e);
+			}
+		}
+
+		private int add(String key)
+		{
+			indices.put(key, count);
+			return count++;
+		}
+
+		public void write(DataOutputStream class_file) throws IOException
+		{
+			out.flush();
+			class_file.writeShort(count);
+			class_file.write(bytes.toByteArray());
+		}
+	}
+}
@@ -1,20 +1,32 @@
 package nesemu.hardware.mapper;
 
+import java.nio.ByteBuffer;
+
 public class AMapper
 {
 	protected /*unsigned 8bit*/ int nPRGBanks = 0;
 	protected /*unsigned 8bit*/ int nCHRBanks = 0;
 	
+	// Returned by the read mapping functions when the mapper does not map the address. Mapped addresses and data are
+	// never negative so this can never be confused with a real offset or byte.
+	public static final int UNMAPPED = -1;
+	
+	// Set when the mapper changes how CPU addresses are mapped, i.e. switches PRG banks, and when it changes how PPU
+	// addresses are mapped, i.e. switches CHR banks or the mirroring. Kept apart so that a PRG bank switch does not
+	// throw away what the PPU has decoded from CHR memory.
+	protected boolean cpu_mapping_changed = false;
+	protected boolean ppu_mapping_changed = false;
+	
 	public AMapper(/*unsigned 8bit*/ int prgBanks, /*unsigned 8bit*/ int chrBanks)
 	{
 		this.nPRGBanks = prgBanks;
 		this.nCHRBanks = chrBanks;
 	}
 	
-	// Transform CPU bus address into PRG ROM offset
-	public boolean cpuMapRead(/*unsigned 16bit*/ int addr, int[] mapped_addr_by_ref, int[] data_by_ref)
+	// Transform CPU bus address into PRG ROM offset, or UNMAPPED.
+	public int cpuMapRead(/*unsigned 16bit*/ int addr)
 	{
-		return false;
+		return UNMAPPED;
 	}
 	
 	public boolean cpuMapWrite(/*unsigned 16bit*/ int addr, int[] mapped_addr_by_ref, int data)
@@ -22,10 +34,10 @@ public class AMapper
 		return false;
 	}
 	
-	// Transform PPU bus address into CHR ROM offset
-	public boolean ppuMapRead(/*unsigned 16bit*/ int addr, int[] mapped_addr_by_ref)
+	// Transform PPU bus address into CHR ROM offset, or UNMAPPED.
+	public int ppuMapRead(/*unsigned 16bit*/ int addr)
 	{
-		return false;
+		return UNMAPPED;
 	}
 	
 	public boolean ppuMapWrite(/*unsigned 16bit*/ int addr, int[] mapped_addr_by_ref)
@@ -33,6 +45,28 @@ public class AMapper
 		return false;
 	}
 	
+	// Returns true if the mapping of CPU addresses changed since the last call, and clears the indication.
+	public boolean cpuMappingChanged()
+	{
+		boolean changed = cpu_mapping_changed;
+		cpu_mapping_changed = false;
+		return changed;
+	}
+	
+	// Returns true if the mapping of PPU addresses changed since the last call, and clears the indication.
+	public boolean ppuMappingChanged()
+	{
+		boolean changed = ppu_mapping_changed;
+		ppu_mapping_changed = false;
+		return changed;
+	}
+	
+	// Whether cpuMapWrite() maps writes into the PRG memory rather than just taking them as register writes.
+	public boolean isPRGWritable()
+	{
+		return false;
+	}
+	
 	// Get Mirror mode if mapper is in control
 	public MIRROR mirror()
 	{
@@ -62,6 +96,18 @@ public class AMapper
 		
 	}
 	
+	// Writes the bank registers into the buffer, see NESBus.saveState(). Mappers without any have nothing to save.
+	public void saveState(ByteBuffer buffer)
+	{
+		
+	}
+	
+	// Reads back the state written by saveState(). The bus rebuilds its memory map afterwards.
+	public void loadState(ByteBuffer buffer)
+	{
+		
+	}
+	
 	public enum MIRROR
 	{
 		HARDWARE,
@@ -7,7 +7,7 @@ public class Mapper_000 extends AMapper
 		super(prgBanks, chrBanks);
 	}
 	
-	public boolean cpuMapRead(/*unsigned 16bit*/ int addr, int[] mapped_addr_by_ref, int[] data_by_ref)
+	public int cpuMapRead(/*unsigned 16bit*/ int addr)
 	{
 		// if PRGROM is 16KB
 		//     CPU Address Bus          PRG ROM
@@ -16,13 +16,11 @@ public class Mapper_000 extends AMapper
 		// if PRGROM is 32KB
 		//     CPU Address Bus          PRG ROM
 		//     0x8000 -> 0xFFFF: Map    0x0000 -> 0x7FFF	
-		mapped_addr_by_ref[0] = addr;
 		if (addr >= 0x8000 & addr <= 0xFFFF)
 		{
-			mapped_addr_by_ref[0] = addr & (nPRGBanks > 1 ? (int)0x7FFF : (int)0x3FFF);
-			return true;
+			return addr & (nPRGBanks > 1 ? (int)0x7FFF : (int)0x3FFF);
 		}
-		return false;
+		return UNMAPPED;
 	}
 	
 	public boolean cpuMapWrite(/*unsigned 16bit*/ int addr, int[] mapped_addr_by_ref, int data)
@@ -36,17 +34,21 @@ public class Mapper_000 extends AMapper
 		return false;
 	}
 	
-	public boolean ppuMapRead(/*unsigned 16bit*/ int addr, int[] mapped_addr_by_ref)
+	public boolean isPRGWritable()
+	{
+		return true;
+	}
+	
+	public int ppuMapRead(/*unsigned 16bit*/ int addr)
 	{
 		// There is no mapping required for PPU
 		// PPU Address Bus          CHR ROM
 		// 0x0000 -> 0x1FFF: Map    0x0000 -> 0x1FFF
-		mapped_addr_by_ref[0] = addr;
 		if (addr >= 0x0000 & addr <= 0x1FFF)
 		{
-			return true;
+			return addr;
 		}
-		return false;
+		return UNMAPPED;
 	}
 	
 	public boolean ppuMapWrite(/*unsigned 16bit*/ int addr, int[] mapped_addr_by_ref)
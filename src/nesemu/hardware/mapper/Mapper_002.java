@@ -1,5 +1,7 @@
 package nesemu.hardware.mapper;
 
+import java.nio.ByteBuffer;
+
 public class Mapper_002 extends AMapper
 {
 	private /*unsigned 8bit*/ int nPRGBankSelectLo = 0x00;
@@ -10,21 +12,18 @@ public class Mapper_002 extends AMapper
 		super(prgBanks, chrBanks);
 	}
 	
-	public boolean cpuMapRead(/*unsigned 16bit*/ int addr, int[] mapped_addr_by_ref, int[] data_by_ref)
+	public int cpuMapRead(/*unsigned 16bit*/ int addr)
 	{
-		mapped_addr_by_ref[0] = addr;
 		if (addr >= 0x8000 && addr <= 0xBFFF)
 		{
-			mapped_addr_by_ref[0] = (nPRGBankSelectLo << 14) + (addr & 0x3FFF);
-			return true;
+			return (nPRGBankSelectLo << 14) + (addr & 0x3FFF);
 		}
 		else
 		if (addr >= 0xC000 && addr <= 0xFFFF)
 		{
-			mapped_addr_by_ref[0] = (nPRGBankSelectHi << 14) + (addr & 0x3FFF);
-			return true;
+			return (nPRGBankSelectHi << 14) + (addr & 0x3FFF);
 		}
-		return false;
+		return UNMAPPED;
 	}
 	
 	public boolean cpuMapWrite(/*unsigned 16bit*/ int addr, int[] mapped_addr_by_ref, int data)
@@ -33,22 +32,25 @@ public class Mapper_002 extends AMapper
 		// Mapper has handled write, but do not update ROMs.
 		if (addr >= 0x8000 && addr <= 0xFFFF)
 		{		
-			nPRGBankSelectLo = data & 0x0F;
+			if (nPRGBankSelectLo != (data & 0x0F))
+			{
+				nPRGBankSelectLo = data & 0x0F;
+				cpu_mapping_changed = true;
+			}
 		}
 		return false;
 	}
 	
-	public boolean ppuMapRead(/*unsigned 16bit*/ int addr, int[] mapped_addr_by_ref)
+	public int ppuMapRead(/*unsigned 16bit*/ int addr)
 	{
 		// There is no mapping required for PPU
 		// PPU Address Bus          CHR ROM
 		// 0x0000 -> 0x1FFF: Map    0x0000 -> 0x1FFF
-		mapped_addr_by_ref[0] = addr;
 		if (addr >= 0x0000 & addr <= 0x1FFF)
 		{
-			return true;
+			return addr;
 		}
-		return false;
+		return UNMAPPED;
 	}
 	
 	public boolean ppuMapWrite(/*unsigned 16bit*/ int addr, int[] mapped_addr_by_ref)
@@ -70,5 +72,23 @@ public class Mapper_002 extends AMapper
 		nPRGBankSelectLo = 0;
 		nPRGBankSelectHi = nPRGBanks - 1;
 	}
+	
+	public void saveState(ByteBuffer buffer)
+	{
+		buffer.putInt(nPRGBankSelectLo);
+		buffer.putInt(nPRGBankSelectHi);
+	}
+	
+	public void loadState(ByteBuffer buffer)
+	{
+		int bank_select_lo = buffer.getInt();
+		int bank_select_hi = buffer.getInt();
+		if (bank_select_lo < 0 || bank_select_lo >= nPRGBanks || bank_select_hi < 0 || bank_select_hi >= nPRGBanks)
+		{
+			throw new IllegalArgumentException("PRG bank out of range");
+		}
+		nPRGBankSelectLo = bank_select_lo;
+		nPRGBankSelectHi = bank_select_hi;
+	}
 
 }
@@ -0,0 +1,21 @@
+package nesemu.hardware.video;
+
+/*
+ * Where the PPU sends the frames it draws. The PPU draws each frame into an array of 256x240 RGB pixels that the sink
+ * gives it, and at the end of the frame hands the array back and takes the one to draw the next frame into. The sink is
+ * called from the emulation thread, so it must never wait for whoever shows the frames. See RP2C02.setFrameSink().
+ */
+public interface FrameSink
+{
+	// The array the PPU is to draw into now, e.g. after a reset.
+	public int[] getDrawBuffer();
+
+	// Whether the frame with the given number is going to be shown. The PPU asks before it starts each frame. A frame
+	// that is not wanted is still run for its timing, sprite zero hit and sprite overflow, but none of its pixels are
+	// drawn, and the array is handed back with frameCompleted() as usual.
+	public boolean wantsFrame(int frame_number);
+
+	// Called at the end of every frame with the array that has just been drawn and the number of the frame. Returns the
+	// array to draw the next frame into, which must not be the one just drawn unless nothing else reads it.
+	public int[] frameCompleted(int[] screen_data, int frame_number);
+}
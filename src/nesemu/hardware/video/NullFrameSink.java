@@ -0,0 +1,25 @@
+package nesemu.hardware.video;
+
+/*
+ * Throws the frames away without having the PPU draw them, e.g. when running without a display. The PPU still runs
+ * every frame for its timing, sprite zero hits and sprite overflow.
+ */
+public class NullFrameSink implements FrameSink
+{
+	private int[] screen_data = new int[256 * 240];
+
+	public int[] getDrawBuffer()
+	{
+		return screen_data;
+	}
+
+	public boolean wantsFrame(int frame_number)
+	{
+		return false;
+	}
+
+	public int[] frameCompleted(int[] screen_data, int frame_number)
+	{
+		return this.screen_data;
+	}
+}
@@ -1,7 +1,8 @@
 package nesemu.hardware.video;
 
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferInt;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import nesemu.debugger.PPUGUIDebugger.Sprite;
 import nesemu.hardware.bus.NESBus;
@@ -15,6 +16,11 @@ public class RP2C02
 	// Two 1KB name tables
 	public /*unsigned 8bit*/ int[][] name_table;
 	
+	// The name table that each 1KB quarter of the name table address space is, by the cartridge's mirroring. They are
+	// set up again only when the mirroring changes, so an access is just name_table_pages[(addr >> 10) & 3].
+	private /*unsigned 8bit*/ int[][] name_table_pages = new int[4][];
+	private MIRROR name_table_mirroring;
+	
 	// Two 4KB pattern tables
 	public /*unsigned 8bit*/ int[][] pattern_table;
 	
@@ -24,6 +30,17 @@ public class RP2C02
 	// The NES palette.
 	private static final int[] nes_palette = new int[64];
 	
+	// The NES palette with each of the 8 combinations of the colour emphasis bits of the mask register applied.
+	// Emphasis darkens the colour components that are not emphasized, or all of them when all three are.
+	private static final int[][] emphasis_palettes = new int[8][64];
+	private static final double EMPHASIS_ATTENUATION = 0.746;
+	
+	// The screen colours of the 32 palette entries, with the greyscale and colour emphasis of the mask register
+	// applied. They are worked out again only when the palette memory or those mask bits change, so drawing a pixel
+	// is just palette_colors[(palette << 2) + pixel].
+	private int[] palette_colors = new int[32];
+	private static final int MASK_EMPHASIS_BITS = MASK2C02.ENHANCE_RED | MASK2C02.ENHANCE_GREEN | MASK2C02.ENHANCE_BLUE;
+	
 	// Current location of drawing on the screen.
 	private /*unsigned 16bit*/ int cycle;
 	private /*unsigned 16bit*/ int scanline;
@@ -32,8 +49,17 @@ public class RP2C02
 	private /*unsigned 8bit*/  int status; // Status register
 	private /*unsigned 8bit*/  int mask; // Mask register
 	private /*unsigned 8bit*/  int control; // PPUCtrl register
-	private LOOPY_REGISTER vram_addr;
-	private LOOPY_REGISTER tram_addr;
+	// The loopy registers, packed as on the chip: 0yyy NNYY YYYX XXXX, i.e. fine y, nametable y,
+	// nametable x, coarse y and coarse x.
+	private /*unsigned 15bit*/ int vram_addr;
+	private /*unsigned 15bit*/ int tram_addr;
+	private static final int LOOPY_COARSE_X = 0x001F;
+	private static final int LOOPY_COARSE_Y = 0x03E0;
+	private static final int LOOPY_NAMETABLE_X = 0x0400;
+	private static final int LOOPY_NAMETABLE_Y = 0x0800;
+	private static final int LOOPY_FINE_Y = 0x7000;
+	private static final int LOOPY_HORIZONTAL = LOOPY_NAMETABLE_X | LOOPY_COARSE_X;
+	private static final int LOOPY_VERTICAL = LOOPY_FINE_Y | LOOPY_NAMETABLE_Y | LOOPY_COARSE_Y;
 	
 	// Variables storing information about the next background tile to be drawn. 
 	private /*unsigned 8bit*/  int bg_next_tile_id;
@@ -57,16 +83,24 @@ public class RP2C02
 	private /*unsigned 8bit*/ int address_latch = 0x00;
 	private /*unsigned 8bit*/ int ppu_data_buffer = 0x00;
 	
-	// Variables keeping information about the offscreen frames that have been drawn. 
-	private static final int FRAMES_TO_KEEP = 4;
+	// The frame being drawn, and where it goes when it is complete.
+	private FrameSink frame_sink = new TripleFrameBuffer();
 	private int[] frame_being_drawn_screen_data;
-	private Frame[] frames = new Frame[FRAMES_TO_KEEP];
-	private int current_frame_index;
 	private int total_frames_drawn;
+	// False while running a frame the sink does not want, whose pixels are then not drawn.
+	private boolean is_drawing_frame = true;
 	public boolean frame_complete = false;
 	
 	private Sprite[] pattern_table_debug = { new Sprite(128, 128), new Sprite(128, 128) };
 	
+	// Decoded rows of the 512 tiles in the pattern memory, see getTileRow(). A row keeps its low bit plane in bits 0-7
+	// and its high bit plane in bits 8-15, and both flipped horizontally in bits 16-23 and 24-31, so that fetching a
+	// row needs neither the cartridge nor flipbyte(). A tile is decoded when it is first fetched and again after a
+	// write to its pattern memory or a change of the cartridge's mapping.
+	private int[] tile_rows = new int[512 * 8];
+	private boolean[] tile_decoded = new boolean[512];
+	private static final int TILE_ROW_FLIPPED_SHIFT = 16;
+	
 	// Variables storing the OAM (Object Attribute Memory)
 	private /*unsigned 8bit*/ int oam_addr;
 	private ObjectAttributeEntry[] OAM;
@@ -92,8 +126,28 @@ public class RP2C02
 	private boolean is_greyscale;
 	private int grey_scale_value;
 	
+	// The scanline renderer, see runClocks(). When it is checked, every scanline it draws is drawn again by the dot
+	// renderer, clock(), from the same state, and the scanlines on which the two disagree are counted.
+	private volatile boolean scanline_renderer_enabled;
+	private volatile boolean scanline_renderer_checked;
+	private volatile int scanline_mismatches;
+	private static final int MISMATCHES_TO_REPORT = 10;
+	
+	// Work buffers of the scanline renderer, indexed by cycle. A background entry is palette << 2 | pixel, a sprite
+	// entry is palette << 2 | pixel of the sprite that wins the cycle, with the flags below.
+	private int[] line_background = new int[257];
+	private int[] line_sprites = new int[257];
+	private static final int LINE_SPRITE_IN_FRONT = 0x20;
+	private static final int LINE_SPRITE_ZERO = 0x40;
+	
+	// Used by the comparison: the state before the scanline and the scanline renderer's state and pixels after it.
+	private static final int LINE_STATE_SIZE = 80;
+	private int[] line_state_before = new int[LINE_STATE_SIZE];
+	private int[] line_state_scanline = new int[LINE_STATE_SIZE];
+	private int[] line_state_dot = new int[LINE_STATE_SIZE];
+	private int[] line_pixels_scanline = new int[256];
+	
 	// Variables used for optimization.
-	private /*unsigned 8bit*/ int[] data_by_ref = new int[1];
 	private int pattern_background_shifted_left_by_12;
 	private int pattern_sprite_shifted_left_by_12;
 	private int increment_mode_value;
@@ -106,6 +160,9 @@ public class RP2C02
 	
 	public static final int PPU_FRAME_CLOCKS = 89342;
 	
+	// The first cycle of scanline 0 is always skipped here, so every emulated frame is one clock shorter.
+	public static final int EMULATED_FRAME_CLOCKS = PPU_FRAME_CLOCKS - 1;
+	
 	public static final int NES_GRAY = 5526612;
 	
 	public RP2C02()
@@ -192,6 +249,33 @@ public class RP2C02
 		nes_palette[0x3D] = getColor(160, 162, 160);
 		nes_palette[0x3E] = getColor(0, 0, 0);
 		nes_palette[0x3F] = getColor(0, 0, 0);
+		
+		for (int emphasis=0; emphasis < 8; emphasis++)
+		{
+			// Red, green and blue are emphasized by bits 0, 1 and 2 of the emphasis.
+			double red = ((emphasis & 0x01) == 0 || emphasis == 0x07) && emphasis != 0 ? EMPHASIS_ATTENUATION : 1.0;
+			double green = ((emphasis & 0x02) == 0 || emphasis == 0x07) && emphasis != 0 ? EMPHASIS_ATTENUATION : 1.0;
+			double blue = ((emphasis & 0x04) == 0 || emphasis == 0x07) && emphasis != 0 ? EMPHASIS_ATTENUATION : 1.0;
+			for (int n=0; n < 64; n++)
+			{
+				emphasis_palettes[emphasis][n] = getColor(
+					(int)Math.round(((nes_palette[n] >> 16) & 0xFF) * red),
+					(int)Math.round(((nes_palette[n] >> 8) & 0xFF) * green),
+					(int)Math.round((nes_palette[n] & 0xFF) * blue));
+			}
+		}
+	}
+	
+	// Works out the screen colours of the palette entries, see palette_colors.
+	private void updatePaletteColors()
+	{
+		int[] colors = emphasis_palettes[(mask >> 5) & 0x07];
+		for (int n=0; n < 32; n++)
+		{
+			// The entries at 0x10, 0x14, 0x18 and 0x1C are mirrors of the ones at 0x00, 0x04, 0x08 and 0x0C.
+			int addr = ((n & 0x13) == 0x10) ? n & 0x0F : n;
+			palette_colors[n] = colors[palette[addr] & grey_scale_value & 0x3F];
+		}
 	}
 	
 	// Communication with Main Bus
@@ -201,20 +285,25 @@ public class RP2C02
 		{
 		case 0x0000: // Control
 			control = data;
-			tram_addr.NAMETABLE_X = GetPPUCtrlFlag(PPUCTRL2C02.NAMETABLE_X) != 0 ? 1 : 0;
-			tram_addr.NAMETABLE_Y = GetPPUCtrlFlag(PPUCTRL2C02.NAMETABLE_Y) != 0 ? 1 : 0;
+			tram_addr = (tram_addr & ~(LOOPY_NAMETABLE_X | LOOPY_NAMETABLE_Y)) | ((data & 0x03) << 10);
 			pattern_background_shifted_left_by_12 = GetPatternBackGroundIfSet();
 			pattern_sprite_shifted_left_by_12 = GetPatternSpriteIfSet();
 			increment_mode_value = GetPPUCtrlFlag(PPUCTRL2C02.INCREMENT_MODE) != 0 ? 32 : 1;
 			sprite_size = (GetPPUCtrlFlag(PPUCTRL2C02.SPRITE_SIZE) != 0 ? 16 : 8);
 			break;
 		case 0x0001: // Mask
+			int old_emphasis = mask & MASK_EMPHASIS_BITS;
+			int old_grey_scale_value = grey_scale_value;
 			mask = data;
 			is_rendering_background = GetMaskFlag(MASK2C02.RENDER_BACKGROUND) != 0;
 			is_rendering_sprites = GetMaskFlag(MASK2C02.RENDER_SPRITES) != 0;
 			is_rendering_background_or_sprites = is_rendering_background | is_rendering_sprites;
 			is_greyscale = GetMaskFlag(MASK2C02.GRAYSCALE) != 0;
 			grey_scale_value = is_greyscale ? 0x30 : 0x3F;
+			if ((mask & MASK_EMPHASIS_BITS) != old_emphasis || grey_scale_value != old_grey_scale_value)
+			{
+				updatePaletteColors();
+			}
 			break;
 		case 0x0002: // Status
 			break;
@@ -231,27 +320,25 @@ public class RP2C02
 				// First write to scroll register contains X offset in pixel space
 				// which we split into coarse and fine x values.
 				fine_x = data & 0x07;
-				tram_addr.COARSE_X = data >> 3;
+				tram_addr = (tram_addr & ~LOOPY_COARSE_X) | (data >> 3);
 				address_latch = 1;
 			}
 			else
 			{
 				// First write to scroll register contains Y offset in pixel space
 				// which we split into coarse and fine Y values.
-				tram_addr.FINE_Y = data & 0x07;
-				tram_addr.COARSE_Y = data >> 3;
+				tram_addr = (tram_addr & ~(LOOPY_FINE_Y | LOOPY_COARSE_Y)) | ((data & 0x07) << 12) | ((data >> 3) << 5);
 				address_latch = 0;
 			}
 			break;
 		case 0x0006: // PPU Address
-			int temp_addr = tram_addr.reg();
 			if (address_latch == 0)
 			{
 				// PPU address bus can be accessed by CPU via the ADDR and DATA
 				// registers. The first write to this register latches the high byte
 				// of the address, the second is the low byte. Note the writes
 				// are stored in the tram register.
-				tram_addr.setreg(((data & 0x3F) << 8) | (temp_addr & 0x00FF));
+				tram_addr = ((data & 0x3F) << 8) | (tram_addr & 0x00FF);
 				address_latch = 1;
 			}
 			else
@@ -260,20 +347,19 @@ public class RP2C02
 				// buffer is updated. Writing to the PPU is unwise during rendering
 				// as the PPU will maintain the vram address automatically whilst
 				// rendering the scanline position.
-				tram_addr.setreg((temp_addr & 0xFF00) | data);
-				vram_addr.copyReg(tram_addr);
+				tram_addr = (tram_addr & 0xFF00) | data;
+				vram_addr = tram_addr;
 				address_latch = 0;
 			}
 			break;
 		case 0x0007: // PPU Data
-			temp_addr = vram_addr.reg();
-			ppuWrite(temp_addr, data);
+			ppuWrite(vram_addr, data);
 			// All writes from PPU data automatically increment the nametable
 			// address depending upon the mode set in the control register.
 			// If set to vertical mode, the increment is 32, so it skips
 			// one whole nametable row; in horizontal mode it just increments
 			// by 1, moving to the next column.
-			vram_addr.setreg(temp_addr + increment_mode_value);
+			vram_addr = (vram_addr + increment_mode_value) & 0x7FFF;
 			break;
 		}
 	}
@@ -359,7 +445,7 @@ public class RP2C02
 				// previous read request.
 				int temp_data = ppu_data_buffer;
 				// Then update the buffer for next time.
-				int temp_addr = vram_addr.reg();
+				int temp_addr = vram_addr;
 				ppu_data_buffer = ppuRead(temp_addr);
 				data = temp_data;
 				
@@ -372,7 +458,7 @@ public class RP2C02
 				// If set to vertical mode, the increment is 32, so it skips
 				// one whole nametable row; in horizontal mode it just increments
 				// by 1, moving to the next column.
-				vram_addr.setreg(temp_addr + increment_mode_value);
+				vram_addr = (temp_addr + increment_mode_value) & 0x7FFF;
 				break;
 			}
 		}
@@ -385,6 +471,12 @@ public class RP2C02
 	{
 		addr &= 0x3FFF;
 		
+		if (addr <= 0x1FFF)
+		{
+			// Whether it goes to CHR RAM or to the pattern tables here, the tile has to be decoded again.
+			tile_decoded[addr >> 4] = false;
+		}
+		
 		if (cartridge.ppuWrite(addr, data))
 		{
 			
@@ -400,31 +492,8 @@ public class RP2C02
 		}
 		else if (addr >= 0x2000 && addr <= 0x3EFF)
 		{
-			addr &= 0x0FFF;
-			if (cartridge.Mirror() == MIRROR.VERTICAL)
-			{
-				// Vertical
-				if (addr >= 0x0000 && addr <= 0x03FF)
-					name_table[0][addr & 0x03FF] = data;
-				if (addr >= 0x0400 && addr <= 0x07FF)
-					name_table[1][addr & 0x03FF] = data;
-				if (addr >= 0x0800 && addr <= 0x0BFF)
-					name_table[0][addr & 0x03FF] = data;
-				if (addr >= 0x0C00 && addr <= 0x0FFF)
-					name_table[1][addr & 0x03FF] = data;
-			}
-			else if (cartridge.Mirror() == MIRROR.HORIZONTAL)
-			{
-				// Horizontal
-				if (addr >= 0x0000 && addr <= 0x03FF)
-					name_table[0][addr & 0x03FF] = data;
-				if (addr >= 0x0400 && addr <= 0x07FF)
-					name_table[0][addr & 0x03FF] = data;
-				if (addr >= 0x0800 && addr <= 0x0BFF)
-					name_table[1][addr & 0x03FF] = data;
-				if (addr >= 0x0C00 && addr <= 0x0FFF)
-					name_table[1][addr & 0x03FF] = data;
-			}
+			// The mirroring decides which name table the address is in.
+			name_table_pages[(addr >> 10) & 0x03][addr & 0x03FF] = data;
 		}
 		else if (addr >= 0x3F00 && addr <= 0x3FFF)
 		{
@@ -437,6 +506,7 @@ public class RP2C02
 			if (addr == 0x001C) addr = 0x000C;
 			// Read directly from the palette.
 			palette[addr] = data;
+			updatePaletteColors();
 		}
 	}
 	
@@ -448,9 +518,10 @@ public class RP2C02
 	public /*unsigned 8bit*/ int ppuRead(/*unsigned 16bit*/ int addr, boolean bReadOnly)
 	{
 		addr &= 0x3FFF;
-		if (cartridge.ppuRead(addr, data_by_ref))
+		/*unsigned 8bit*/ int data = cartridge.ppuRead(addr);
+		if (data != ACartridge.UNMAPPED)
 		{
-			return data_by_ref[0];
+			return data;
 		}
 		else if (addr >= 0x0000 && addr <= 0x1FFF)
 		{
@@ -463,32 +534,8 @@ public class RP2C02
 		}
 		else if (addr >= 0x2000 && addr <= 0x3EFF)
 		{
-			addr &= 0x0FFF;
-			
-			if (cartridge.Mirror() == MIRROR.VERTICAL)
-			{
-				// Vertical
-				if (addr >= 0x0000 && addr <= 0x03FF)
-					return name_table[0][addr & 0x03FF];
-				if (addr >= 0x0400 && addr <= 0x07FF)
-					return name_table[1][addr & 0x03FF];
-				if (addr >= 0x0800 && addr <= 0x0BFF)
-					return name_table[0][addr & 0x03FF];
-				if (addr >= 0x0C00 && addr <= 0x0FFF)
-					return name_table[1][addr & 0x03FF];
-			}
-			else if (cartridge.Mirror() == MIRROR.HORIZONTAL)
-			{
-				// Horizontal
-				if (addr >= 0x0000 && addr <= 0x03FF)
-					return name_table[0][addr & 0x03FF];
-				if (addr >= 0x0400 && addr <= 0x07FF)
-					return name_table[0][addr & 0x03FF];
-				if (addr >= 0x0800 && addr <= 0x0BFF)
-					return name_table[1][addr & 0x03FF];
-				if (addr >= 0x0C00 && addr <= 0x0FFF)
-					return name_table[1][addr & 0x03FF];
-			}
+			// The mirroring decides which name table the address is in.
+			return name_table_pages[(addr >> 10) & 0x03][addr & 0x03FF];
 		}
 		else if (addr >= 0x3F00 && addr <= 0x3FFF)
 		{
@@ -503,15 +550,16 @@ public class RP2C02
 			return palette[addr] & grey_scale_value;
 		}
 		
-		return data_by_ref[0];
+		return 0x00;
 	}
 	
 	public /*unsigned 8bit*/ int ppuReadPattern(/*unsigned 16bit*/ int addr)
 	{
 		addr &= 0x3FFF;
-		if (cartridge.ppuRead(addr, data_by_ref))
+		/*unsigned 8bit*/ int data = cartridge.ppuRead(addr);
+		if (data != ACartridge.UNMAPPED)
 		{
-			return data_by_ref[0];
+			return data;
 		}
 		else
 		{
@@ -527,50 +575,100 @@ public class RP2C02
 	public /*unsigned 8bit*/ int ppuReadTblName(/*unsigned 16bit*/ int addr)
 	{
 		addr &= 0x3FFF;
-		if (cartridge.ppuRead(addr, data_by_ref))
+		/*unsigned 8bit*/ int data = cartridge.ppuRead(addr);
+		if (data != ACartridge.UNMAPPED)
 		{
-			return data_by_ref[0];
+			return data;
 		}
 		else
 		{
-			addr &= 0x0FFF;
-			
-			if (cartridge.Mirror() == MIRROR.VERTICAL)
-			{
-				// Vertical
-				if (addr >= 0x0000 && addr <= 0x03FF)
-					return name_table[0][addr & 0x03FF];
-				if (addr >= 0x0400 && addr <= 0x07FF)
-					return name_table[1][addr & 0x03FF];
-				if (addr >= 0x0800 && addr <= 0x0BFF)
-					return name_table[0][addr & 0x03FF];
-				if (addr >= 0x0C00 && addr <= 0x0FFF)
-					return name_table[1][addr & 0x03FF];
-			}
-			else if (cartridge.Mirror() == MIRROR.HORIZONTAL)
+			// The mirroring decides which name table the address is in.
+			return name_table_pages[(addr >> 10) & 0x03][addr & 0x03FF];
+		}
+	}
+	
+	// Returns a decoded row of a tile, given the address of the row's low bit plane. See tile_rows.
+	private int getTileRow(/*unsigned 16bit*/ int addr)
+	{
+		addr &= 0x3FFF;
+		if (addr > 0x1FFF || (addr & 0x08) != 0)
+		{
+			// Not the start of a tile row, which only happens for sprites fetched on the pre-render scanline.
+			return decodeTileRow(addr);
+		}
+		
+		int tile = addr >> 4;
+		if (!tile_decoded[tile])
+		{
+			for (int row = 0; row < 8; row++)
 			{
-				// Horizontal
-				if (addr >= 0x0000 && addr <= 0x03FF)
-					return name_table[0][addr & 0x03FF];
-				if (addr >= 0x0400 && addr <= 0x07FF)
-					return name_table[0][addr & 0x03FF];
-				if (addr >= 0x0800 && addr <= 0x0BFF)
-					return name_table[1][addr & 0x03FF];
-				if (addr >= 0x0C00 && addr <= 0x0FFF)
-					return name_table[1][addr & 0x03FF];
+				tile_rows[(tile << 3) | row] = decodeTileRow((tile << 4) | row);
 			}
+			tile_decoded[tile] = true;
+		}
+		return tile_rows[(tile << 3) | (addr & 0x07)];
+	}
+	
+	private int decodeTileRow(/*unsigned 16bit*/ int addr)
+	{
+		/*unsigned 8bit*/ int lsb = ppuReadPattern(addr);
+		/*unsigned 8bit*/ int msb = ppuReadPattern(addr + 8);
+		return lsb | (msb << 8) | (flipbyte(lsb) << TILE_ROW_FLIPPED_SHIFT) | (flipbyte(msb) << (TILE_ROW_FLIPPED_SHIFT + 8));
+	}
+	
+	// Makes every tile be decoded again when it is next fetched, e.g. after the cartridge switched CHR banks.
+	private void invalidateTileCache()
+	{
+		Arrays.fill(tile_decoded, false);
+	}
+	
+	// Points the four name table pages at the name tables by the cartridge's current mirroring.
+	private void setNameTablePages()
+	{
+		name_table_mirroring = (cartridge != null) ? cartridge.Mirror() : null;
+		int[] tables;
+		if (name_table_mirroring == MIRROR.VERTICAL)
+		{
+			tables = new int[] { 0, 1, 0, 1 };
+		}
+		else if (name_table_mirroring == MIRROR.HORIZONTAL)
+		{
+			tables = new int[] { 0, 0, 1, 1 };
+		}
+		else if (name_table_mirroring == MIRROR.ONESCREEN_HI)
+		{
+			tables = new int[] { 1, 1, 1, 1 };
+		}
+		else
+		{
+			// ONESCREEN_LO, and without a cartridge there is nothing to mirror so the first table is used.
+			tables = new int[] { 0, 0, 0, 0 };
+		}
+		for (int n=0; n < 4; n++)
+		{
+			name_table_pages[n] = name_table[tables[n]];
+		}
+	}
+	
+	// To be called when the cartridge reports that its mapping for the PPU changed, i.e. it switched CHR banks or the
+	// mirroring.
+	public void mappingChanged()
+	{
+		invalidateTileCache();
+		if (cartridge.Mirror() != name_table_mirroring)
+		{
+			setNameTablePages();
 		}
-		
-		return data_by_ref[0];
 	}
 	
 	// Faster ppuRead when we know we're reading the palette memory only for example from the PPU.
 	public /*unsigned 8bit*/ int ppuReadPalette(/*unsigned 16bit*/ int addr)
 	{
 		addr &= 0x3FFF;
-		if (cartridge.ppuRead(addr, data_by_ref))
+		/*unsigned 8bit*/ int data = cartridge.ppuRead(addr);
+		if (data != ACartridge.UNMAPPED)
 		{
-			return data_by_ref[0];
+			return data;
 		}
 		else
 		{
@@ -590,6 +688,8 @@ public class RP2C02
 	public void ConnectCartridge(ACartridge cartridge)
 	{
 		this.cartridge = cartridge;
+		invalidateTileCache();
+		setNameTablePages();
 	}
 	
 	public void reset()
@@ -597,12 +697,14 @@ public class RP2C02
 		initPalette();
 		
 		name_table = new /*unsigned 8bit*/ int[2][1024];
+		setNameTablePages();
 		
 		// Palette
 		palette = new /*unsigned 8bit*/ int[32];
 		
 		// Two 4KB pattern tables
 		pattern_table = new /*unsigned 8bit*/ int[2][4096];
+		invalidateTileCache();
 		
 		OAM = new ObjectAttributeEntry[64];
 		for (int n=0; n < 64; n++)
@@ -633,21 +735,9 @@ public class RP2C02
 		for (int x=0; x < 32; x++)
 			palette[x] = 0;
 		
-		for (int n=0; n < FRAMES_TO_KEEP; n++)
-		{
-			frames[n] = new Frame();
-			frames[n].frame = new BufferedImage(256, 240, BufferedImage.TYPE_INT_RGB);
-			for (int x = 0; x < 256; x++)
-				for (int y = 0; y < 240; y++)
-					frames[n].frame.setRGB(x, y, nes_palette[0]);
-			frames[n].screen_data = ((DataBufferInt)frames[n].frame.getRaster().getDataBuffer()).getData();
-			frames[n].frame_number = -1;
-		}
-		
-		frame_being_drawn_screen_data = frames[0].screen_data;
-		
+		frame_being_drawn_screen_data = frame_sink.getDrawBuffer();
 		total_frames_drawn = 0;
-		current_frame_index = 0;
+		is_drawing_frame = frame_sink.wantsFrame(total_frames_drawn);
 		
 		nmi = false;
 		fine_x = 0x00;
@@ -666,8 +756,8 @@ public class RP2C02
 		status = 0x00;
 		mask = 0x00;
 		control = 0x00;
-		vram_addr = new LOOPY_REGISTER();
-		tram_addr = new LOOPY_REGISTER();
+		vram_addr = 0;
+		tram_addr = 0;
 		frame_complete = false;
 		pattern_background_shifted_left_by_12 = 0;
 		pattern_sprite_shifted_left_by_12 = 0;
@@ -678,13 +768,12 @@ public class RP2C02
 		sprite_zero_being_rendered = false;
 		sprite_count = 0;
 		
-		data_by_ref = new int[1];
-		
 		is_rendering_background = false;
 		is_rendering_background_or_sprites = false;
 		is_rendering_sprites = false;
 		is_greyscale = false;
 		grey_scale_value = 0x00;
+		updatePaletteColors();
 	}
 	
 	// As we progress through scanlines and cycles, the PPU is effectively
@@ -706,17 +795,15 @@ public class RP2C02
 			// A single name table is 32x30 tiles. As we increment horizontally
 			// we may cross into a neighbouring nametable, or wrap around to
 			// a neighbouring nametable.
-			if (vram_addr.COARSE_X == 31)
+			if ((vram_addr & LOOPY_COARSE_X) == LOOPY_COARSE_X)
 			{
-				// Leaving nametable so wrap address round.
-				vram_addr.COARSE_X = 0;
-				// Flip target nametable bit.
-				vram_addr.NAMETABLE_X = (~vram_addr.NAMETABLE_X) & 0x01;
+				// Leaving nametable so wrap address round and flip target nametable bit.
+				vram_addr = (vram_addr & ~LOOPY_COARSE_X) ^ LOOPY_NAMETABLE_X;
 			}
 			else
 			{
 				// Staying in current nametable, so just increment.
-				vram_addr.COARSE_X++;
+				vram_addr++;
 			}
 		}
 	};
@@ -742,9 +829,9 @@ public class RP2C02
 		if (is_rendering_background_or_sprites)
 		{
 			// If possible, just increment the fine y offset.
-			if (vram_addr.FINE_Y < 7)
+			if ((vram_addr & LOOPY_FINE_Y) != LOOPY_FINE_Y)
 			{
-				vram_addr.FINE_Y++;
+				vram_addr += 0x1000;
 			}
 			else
 			{
@@ -756,27 +843,26 @@ public class RP2C02
 				// y offset is the specific "scanline".
 
 				// Reset fine y offset.
-				vram_addr.FINE_Y = 0;
+				vram_addr &= ~LOOPY_FINE_Y;
 
 				// Check if we need to swap vertical nametable targets.
-				if (vram_addr.COARSE_Y == 29)
+				int coarse_y = vram_addr & LOOPY_COARSE_Y;
+				if (coarse_y == (29 << 5))
 				{
-					// We do, so reset coarse y offset.
-					vram_addr.COARSE_Y = 0;
-					// And flip the target nametable bit.
-					vram_addr.NAMETABLE_Y = (~vram_addr.NAMETABLE_Y) & 0x01;
+					// We do, so reset coarse y offset and flip the target nametable bit.
+					vram_addr = (vram_addr & ~LOOPY_COARSE_Y) ^ LOOPY_NAMETABLE_Y;
 				}
-				else if (vram_addr.COARSE_Y == 31)
+				else if (coarse_y == LOOPY_COARSE_Y)
 				{
 					// In case the pointer is in the attribute memory, we
 					// just wrap around the current nametable.
-					vram_addr.COARSE_Y = 0;
+					vram_addr &= ~LOOPY_COARSE_Y;
 				}
 				else
 				{
 					// None of the above boundary/wrapping conditions apply
 					// so just increment the coarse y offset.
-					vram_addr.COARSE_Y++;
+					vram_addr += 1 << 5;
 				}
 			}
 		}
@@ -815,8 +901,7 @@ public class RP2C02
 		// Only if rendering is enabled.
 		if (is_rendering_background_or_sprites)
 		{
-			vram_addr.NAMETABLE_X = tram_addr.NAMETABLE_X;
-			vram_addr.COARSE_X = tram_addr.COARSE_X;
+			vram_addr = (vram_addr & ~LOOPY_HORIZONTAL) | (tram_addr & LOOPY_HORIZONTAL);
 		}
 	};
 	
@@ -829,9 +914,7 @@ public class RP2C02
 		// Only if rendering is enabled.
 		if (is_rendering_background_or_sprites)
 		{
-			vram_addr.NAMETABLE_Y = tram_addr.NAMETABLE_Y;
-			vram_addr.FINE_Y = tram_addr.FINE_Y;
-			vram_addr.COARSE_Y = tram_addr.COARSE_Y;
+			vram_addr = (vram_addr & ~LOOPY_VERTICAL) | (tram_addr & LOOPY_VERTICAL);
 		}
 	};
 	
@@ -872,14 +955,381 @@ public class RP2C02
 		}
 	};
 	
+	// ==============================================================================
+	// Background tile fetches, one step of the 8 cycles it takes to fetch a tile. The step
+	// is (cycle - 1) % 8.
+	private void FetchBackgroundTileData(int step)
+	{
+		switch (step)
+		{
+		case 0:
+			// Load the current background tile pattern and attributes into the "shifter"
+			LoadBackgroundShifters();
+			
+			// Fetch the next background tile ID
+			// "vram_addr & 0x0FFF" 	: Mask to 12 bits that are relevant
+			// "| 0x2000"           	: Offset into nametable space on PPU address bus
+			bg_next_tile_id = ppuReadTblName(0x2000 | (vram_addr & 0x0FFF));
+			
+			// Explanation:
+			// The bottom 12 bits of the loopy register provide an index into
+			// the 4 nametables, regardless of nametable mirroring configuration.
+			// nametable_y(1) nametable_x(1) coarse_y(5) coarse_x(5)
+			//
+			// Consider a single nametable is a 32x32 array, and we have four of them
+			//   0                1
+			// 0 +----------------+----------------+
+			//   |                |                |
+			//   |                |                |
+			//   |    (32x32)     |    (32x32)     |
+			//   |                |                |
+			//   |                |                |
+			// 1 +----------------+----------------+
+			//   |                |                |
+			//   |                |                |
+			//   |    (32x32)     |    (32x32)     |
+			//   |                |                |
+			//   |                |                |
+			//   +----------------+----------------+
+			//
+			// This means there are 4096 potential locations in this array, which 
+			// just so happens to be 2^12.
+			break;
+		case 2:
+			// Fetch the next background tile attribute. OK, so this one is a bit
+			// more involved.
+
+			// Each nametable has two rows of cells that are not tile 
+			// information, instead they represent the attribute information that
+			// indicates which palettes are applied to which area on the screen.
+			// Importantly there is not a 1 to 1 correspondence
+			// between background tile and palette. Two rows of tile data holds
+			// 64 attributes. Therefore we can assume that the attributes affect
+			// 8x8 zones on the screen for that nametable. Given a working resolution
+			// of 256x240, we can further assume that each zone is 32x32 pixels
+			// in screen space, or 4x4 tiles. Four system palettes are allocated
+			// to background rendering, so a palette can be specified using just
+			// 2 bits. The attribute byte therefore can specify 4 distinct palettes.
+			// Therefore we can even further assume that a single palette is
+			// applied to a 2x2 tile combination of the 4x4 tile zone. The very fact
+			// that background tiles "share" a palette locally is the reason why
+			// in some games you see distortion in the colours at screen edges.
+
+			// As before when choosing the tile ID, we can use the bottom 12 bits of
+			// the loopy register, but we need to make the implementation "coarser"
+			// because instead of a specific tile, we want the attribute byte for a 
+			// group of 4x4 tiles, or in other words, we divide our 32x32 address
+			// by 4 to give us an equivalent 8x8 address, and we offset this address
+			// into the attribute section of the target nametable.
+
+			// Reconstruct the 12 bit loopy address into an offset into the
+			// attribute memory
+
+			// "((vram_addr >> 2) & 0x07)"        : integer divide coarse x by 4, 
+			//                                      from 5 bits to 3 bits
+			// "((vram_addr >> 4) & 0x38)"        : integer divide coarse y by 4, 
+			//                                      from 5 bits to 3 bits,
+			//                                      shift to make room for coarse x
+
+			// Result so far: YX00 00yy yxxx
+
+			// All attribute memory begins at 0x03C0 within a nametable, so OR with
+			// result to select target nametable, and attribute byte offset. Finally
+			// OR with 0x2000 to offset into nametable address space on PPU bus.
+			bg_next_tile_attrib = ppuReadTblName(
+				0x23C0
+				| (vram_addr & (LOOPY_NAMETABLE_Y | LOOPY_NAMETABLE_X))
+				| ((vram_addr >> 4) & 0x38)
+				| ((vram_addr >> 2) & 0x07));
+			// Right we've read the correct attribute byte for a specified address,
+			// but the byte itself is broken down further into the 2x2 tile groups
+			// in the 4x4 attribute zone.
+
+			// The attribute byte is assembled thus: BR(76) BL(54) TR(32) TL(10)
+			//
+			// +----+----+			    +----+----+
+			// | TL | TR |			    | ID | ID |
+			// +----+----+ where TL =   +----+----+
+			// | BL | BR |			    | ID | ID |
+			// +----+----+			    +----+----+
+			//
+			// Since we know we can access a tile directly from the 12 bit address, we
+			// can analyze the bottom bits of the coarse coordinates to provide us with
+			// the correct offset into the 8-bit word, to yield the 2 bits we are
+			// actually interested in which specifies the palette for the 2x2 group of
+			// tiles. We know if "coarse y % 4" < 2 we are in the top half else bottom half.
+			// Likewise if "coarse x % 4" < 2 we are in the left half else right half.
+			// Ultimately we want the bottom two bits of our attribute word to be the
+			// palette selected, so shift as required.		
+			if ((vram_addr & (0x02 << 5)) != 0) bg_next_tile_attrib >>= 4;
+			if ((vram_addr & 0x02) != 0) bg_next_tile_attrib >>= 2;
+			bg_next_tile_attrib &= 0x03;
+			break;
+		case 4: 
+			// Fetch the next background tile LSB bit plane from the pattern memory.
+			// The tile ID has been read from the nametable. We will use this id to 
+			// index into the pattern memory to find the correct sprite (assuming
+			// the sprites lie on 8x8 pixel boundaries in that memory, which they do
+			// even though 8x16 sprites exist, as background tiles are always 8x8).
+			//
+			// Since the sprites are effectively 1 bit deep, but 8 pixels wide, we 
+			// can represent a whole sprite row as a single byte, so offsetting
+			// into the pattern memory is easy. In total there is 8KB so we need a 
+			// 13 bit address.
+
+			// "(control.pattern_background << 12)"  : the pattern memory selector 
+			//                                         from control register, either 0K
+			//                                         or 4K offset
+			// "((uint16_t)bg_next_tile_id << 4)"    : the tile id multiplied by 16, as
+			//                                         2 lots of 8 rows of 8 bit pixels
+			// "(vram_addr >> 12)"                   : Offset into which row based on
+			//                                         vertical scroll offset
+			// Note: No PPU address bus offset required as it starts at 0x0000
+			bg_next_tile_lsb = getTileRow(
+				(
+				(pattern_background_shifted_left_by_12)
+				+ (bg_next_tile_id << 4)
+				+ (vram_addr >> 12)
+				)
+				) & 0xFF;
+			break;
+		case 6:
+			// The MSB bit plane of the same row is 8 bytes further on, and decoded with it.
+			bg_next_tile_msb = (getTileRow(
+				(
+				(pattern_background_shifted_left_by_12)
+				+ (bg_next_tile_id << 4)
+				+ (vram_addr >> 12)
+				)
+				) >> 8) & 0xFF;
+			break;
+		case 7:
+			IncrementScrollX();
+			break;
+		}
+	};
+	
+	// ==============================================================================
+	// Sprite evaluation at cycle 257 of a visible scanline.
+	private void EvaluateSprites()
+	{
+		// We've reached the end of a visible scanline. It is now time to determine
+		// which sprites are visible on the next scanline, and preload this info
+		// into buffers that we can work with while the scanline scans the row.
+
+		// Firstly, clear out the sprite memory. This memory is used to store the
+		// sprites to be rendered. It is not the OAM.
+		spriteScanline[0].clear();
+		spriteScanline[1].clear();
+		spriteScanline[2].clear();
+		spriteScanline[3].clear();
+		spriteScanline[4].clear();
+		spriteScanline[5].clear();
+		spriteScanline[6].clear();
+		spriteScanline[7].clear();
+		
+		// The NES supports a maximum number of sprites per scanline,
+		// this is 8 or fewer sprites. This is why in some games you see sprites
+		// flicker or disappear when the scene gets busy.
+		sprite_count = 0;
+		
+		// Secondly, clear out any residual information in sprite pattern shifters.
+		sprite_shifter_pattern_lo[0] = 0;
+		sprite_shifter_pattern_hi[0] = 0;
+		sprite_shifter_pattern_lo[1] = 0;
+		sprite_shifter_pattern_hi[1] = 0;
+		sprite_shifter_pattern_lo[2] = 0;
+		sprite_shifter_pattern_hi[2] = 0;
+		sprite_shifter_pattern_lo[3] = 0;
+		sprite_shifter_pattern_hi[3] = 0;
+		sprite_shifter_pattern_lo[4] = 0;
+		sprite_shifter_pattern_hi[4] = 0;
+		sprite_shifter_pattern_lo[5] = 0;
+		sprite_shifter_pattern_hi[5] = 0;
+		sprite_shifter_pattern_lo[6] = 0;
+		sprite_shifter_pattern_hi[6] = 0;
+		sprite_shifter_pattern_lo[7] = 0;
+		sprite_shifter_pattern_hi[7] = 0;
+		
+		// Thirdly, Evaluate which sprites are visible in the next scanline. We need
+		// to iterate through the OAM until we have found 8 sprites that have Y-positions
+		// and heights that are within vertical range of the next scanline. Once we have
+		// found 8 or exhausted the OAM we stop. Now, notice I count to 9 sprites. This
+		// is so I can set the sprite overflow flag in the event of there being > 8 sprites.
+		/*unsigned 8bit*/ int nOAMEntry = 0;
+		
+		// New set of sprites. Sprite zero may not exist in the new set, so clear this
+		// flag.
+		sprite_zero_hit_possible = false;
+		
+		while (nOAMEntry < 64 && sprite_count < 9)
+		{
+			// Note the conversion to signed numbers here
+			/*unsigned 16bit*/ int diff = scanline - OAM[nOAMEntry].y;
+			
+			// If the difference is positive then the scanline is at least at the
+			// same height as the sprite, so check if it resides in the sprite vertically
+			// depending on the current "sprite height mode".
+			if (diff >= 0 && diff < sprite_size)
+			{
+				// Sprite is visible, so copy the attribute entry over to our
+				// scanline sprite cache. I added < 8 here to guard the array
+				// being written to.
+				if (sprite_count < 8)
+				{
+					// Is this sprite sprite zero?
+					if (nOAMEntry == 0)
+					{
+						// It is, so its possible it may trigger a 
+						// sprite zero hit when drawn
+						sprite_zero_hit_possible = true;
+					}
+					
+					spriteScanline[sprite_count].attribute = OAM[nOAMEntry].attribute;
+					spriteScanline[sprite_count].id = OAM[nOAMEntry].id;
+					spriteScanline[sprite_count].x = OAM[nOAMEntry].x;
+					spriteScanline[sprite_count].y = OAM[nOAMEntry].y;
+					sprite_count++;
+				}
+			}
+			nOAMEntry++;
+		}
+	};
+	
+	// ==============================================================================
+	// Loads the sprite pattern shifters for the next scanline at cycle 340.
+	private void LoadSpriteShifters()
+	{
+		/*unsigned 8bit*/ int sprite_pattern_bits_lo, sprite_pattern_bits_hi;
+		/*unsigned 16bit*/ int sprite_pattern_addr_lo;
+		int sprite_pattern_row;
+		
+		// Now we're at the very end of the scanline, Prepare the 
+		// sprite shifters with the 8 or less selected sprites.
+		for (int n = 0; n < sprite_count; n++)
+		{
+			// We need to extract the 8-bit row patterns of the sprite with the
+			// correct vertical offset. The "Sprite Mode" also affects this as
+			// the sprites may be 8 or 16 rows high. Additionally, the sprite
+			// can be flipped both vertically and horizontally.
+			
+			// Determine the memory addresses that contain the byte of pattern data. We
+			// only need the lo pattern address, because the hi pattern address is always
+			// offset by 8 from the lo address.
+			if (sprite_size == 8)
+			{
+				// 8x8 Sprite Mode - The control register determines the pattern table.
+				if (!((spriteScanline[n].attribute & 0x80) != 0))
+				{
+					// Sprite is NOT flipped vertically, i.e. normal    
+					sprite_pattern_addr_lo = 
+						  (pattern_sprite_shifted_left_by_12  )  // Which Pattern Table? 0KB or 4KB offset
+						| (spriteScanline[n].id   << 4   )  // Which Cell? Tile ID * 16 (16 bytes per tile)
+						| (scanline - spriteScanline[n].y); // Which Row in cell? (0->7)
+				}
+				else
+				{
+					// Sprite is flipped vertically, i.e. upside down
+					sprite_pattern_addr_lo = 
+						  (pattern_sprite_shifted_left_by_12  )  // Which Pattern Table? 0KB or 4KB offset
+						| (spriteScanline[n].id   << 4   )  // Which Cell? Tile ID * 16 (16 bytes per tile)
+						| (7 - (scanline - spriteScanline[n].y)); // Which Row in cell? (0->7)
+				}
+			}
+			else
+			{
+				// 8x16 Sprite Mode - The sprite attribute determines the pattern table
+				if (!((spriteScanline[n].attribute & 0x80) != 0))
+				{
+					// Sprite is NOT flipped vertically, i.e. normal
+					if (scanline - spriteScanline[n].y < 8)
+					{
+						// Reading Top half Tile
+						sprite_pattern_addr_lo = 
+						  ((spriteScanline[n].id & 0x01)      << 12)  // Which Pattern Table? 0KB or 4KB offset
+						| ((spriteScanline[n].id & 0xFE)      << 4 )  // Which Cell? Tile ID * 16 (16 bytes per tile)
+						| ((scanline - spriteScanline[n].y) & 0x07 ); // Which Row in cell? (0->7)
+					}
+					else
+					{
+						// Reading Bottom Half Tile
+						sprite_pattern_addr_lo = 
+						  ( (spriteScanline[n].id & 0x01)      << 12)  // Which Pattern Table? 0KB or 4KB offset
+						| (((spriteScanline[n].id & 0xFE) + 1) << 4 )  // Which Cell? Tile ID * 16 (16 bytes per tile)
+						| ((scanline - spriteScanline[n].y) & 0x07  ); // Which Row in cell? (0->7)
+					}
+				}
+				else
+				{
+					// Sprite is flipped vertically, i.e. upside down
+					if (scanline - spriteScanline[n].y < 8)
+					{
+						// Reading Top half Tile
+						sprite_pattern_addr_lo = 
+						  ( (spriteScanline[n].id & 0x01)      << 12)    // Which Pattern Table? 0KB or 4KB offset
+						| (((spriteScanline[n].id & 0xFE) + 1) << 4 )    // Which Cell? Tile ID * 16 (16 bytes per tile)
+						| (7 - (scanline - spriteScanline[n].y) & 0x07); // Which Row in cell? (0->7)
+					}
+					else
+					{
+						// Reading Bottom Half Tile
+						sprite_pattern_addr_lo = 
+						  ((spriteScanline[n].id & 0x01)       << 12)    // Which Pattern Table? 0KB or 4KB offset
+						| ((spriteScanline[n].id & 0xFE)       << 4 )    // Which Cell? Tile ID * 16 (16 bytes per tile)
+						| (7 - (scanline - spriteScanline[n].y) & 0x07); // Which Row in cell? (0->7)
+					}
+				}
+			}
+
+			// Now we have the address of the sprite patterns, we can read them. The
+			// decoded row holds both bit planes, the high one being offset by 8 bytes
+			// from the low one in the pattern memory.
+			sprite_pattern_row = getTileRow(sprite_pattern_addr_lo);
+			
+			// If the sprite is flipped horizontally, we need the flipped 
+			// pattern bytes. 
+			if ((spriteScanline[n].attribute & 0x40) != 0)
+			{
+				// Flip Patterns Horizontally
+				sprite_pattern_row >>>= TILE_ROW_FLIPPED_SHIFT;
+			}
+			sprite_pattern_bits_lo = sprite_pattern_row & 0xFF;
+			sprite_pattern_bits_hi = (sprite_pattern_row >> 8) & 0xFF;
+			
+			// Finally we can load the pattern into our sprite shift registers
+			// ready for rendering on the next scanline.
+			sprite_shifter_pattern_lo[n] = sprite_pattern_bits_lo;
+			sprite_shifter_pattern_hi[n] = sprite_pattern_bits_hi;
+		}
+	};
+	
+	// Returns how many more times clock() needs to be called to enter the vertical blanking period, including the
+	// call that enters it. This lets the bus know when an NMI can be raised without clocking the PPU up to that point.
+	public int clocksUntilVerticalBlank()
+	{
+		return (getDotIndex(241, 1) - getDotIndex(scanline, cycle) + EMULATED_FRAME_CLOCKS) % EMULATED_FRAME_CLOCKS + 1;
+	}
+	
+	// The position of a dot in the order clock() processes them, starting at scanline -1, cycle 0.
+	private static int getDotIndex(int scanline, int cycle)
+	{
+		if (scanline == -1)
+		{
+			return cycle;
+		}
+		else if (scanline == 0)
+		{
+			// Cycle 0 is skipped, so it is processed as cycle 1.
+			return 341 + Math.max(cycle - 1, 0);
+		}
+		return 341 + 340 + (scanline - 1) * 341 + cycle;
+	}
+	
 	public void clock()
 	{
 		int n;
 		int color;
 		
-		/*unsigned 8bit*/ int sprite_pattern_bits_lo, sprite_pattern_bits_hi;
-		/*unsigned 16bit*/ int sprite_pattern_addr_lo, sprite_pattern_addr_hi;
-		
 		/*unsigned 8bit*/ int fg_pixel_lo;
 		/*unsigned 8bit*/ int fg_pixel_hi;
 		
@@ -957,153 +1407,7 @@ public class RP2C02
 
 				// Fortunately, for background rendering, we go through a fairly
 				// repeatable sequence of events, every 2 clock cycles.
-				switch ((cycle - 1) % 8)
-				{
-				case 0:
-					// Load the current background tile pattern and attributes into the "shifter"
-					LoadBackgroundShifters();
-					
-					// Fetch the next background tile ID
-					// "vram_addr.significant12Bits()" 	: Mask to 12 bits that are relevant
-					// "| 0x2000"                 		: Offset into nametable space on PPU address bus
-					bg_next_tile_id = ppuReadTblName(0x2000 | vram_addr.significant12Bits());
-					
-					// Explanation:
-					// The bottom 12 bits of the loopy register provide an index into
-					// the 4 nametables, regardless of nametable mirroring configuration.
-					// nametable_y(1) nametable_x(1) coarse_y(5) coarse_x(5)
-					//
-					// Consider a single nametable is a 32x32 array, and we have four of them
-					//   0                1
-					// 0 +----------------+----------------+
-					//   |                |                |
-					//   |                |                |
-					//   |    (32x32)     |    (32x32)     |
-					//   |                |                |
-					//   |                |                |
-					// 1 +----------------+----------------+
-					//   |                |                |
-					//   |                |                |
-					//   |    (32x32)     |    (32x32)     |
-					//   |                |                |
-					//   |                |                |
-					//   +----------------+----------------+
-					//
-					// This means there are 4096 potential locations in this array, which 
-					// just so happens to be 2^12.
-					break;
-				case 2:
-					// Fetch the next background tile attribute. OK, so this one is a bit
-					// more involved.
-
-					// Each nametable has two rows of cells that are not tile 
-					// information, instead they represent the attribute information that
-					// indicates which palettes are applied to which area on the screen.
-					// Importantly there is not a 1 to 1 correspondence
-					// between background tile and palette. Two rows of tile data holds
-					// 64 attributes. Therefore we can assume that the attributes affect
-					// 8x8 zones on the screen for that nametable. Given a working resolution
-					// of 256x240, we can further assume that each zone is 32x32 pixels
-					// in screen space, or 4x4 tiles. Four system palettes are allocated
-					// to background rendering, so a palette can be specified using just
-					// 2 bits. The attribute byte therefore can specify 4 distinct palettes.
-					// Therefore we can even further assume that a single palette is
-					// applied to a 2x2 tile combination of the 4x4 tile zone. The very fact
-					// that background tiles "share" a palette locally is the reason why
-					// in some games you see distortion in the colours at screen edges.
-
-					// As before when choosing the tile ID, we can use the bottom 12 bits of
-					// the loopy register, but we need to make the implementation "coarser"
-					// because instead of a specific tile, we want the attribute byte for a 
-					// group of 4x4 tiles, or in other words, we divide our 32x32 address
-					// by 4 to give us an equivalent 8x8 address, and we offset this address
-					// into the attribute section of the target nametable.
-
-					// Reconstruct the 12 bit loopy address into an offset into the
-					// attribute memory
-
-					// "(vram_addr.coarse_x >> 2)"        : integer divide coarse x by 4, 
-					//                                      from 5 bits to 3 bits
-					// "((vram_addr.coarse_y >> 2) << 3)" : integer divide coarse y by 4, 
-					//                                      from 5 bits to 3 bits,
-					//                                      shift to make room for coarse x
-
-					// Result so far: YX00 00yy yxxx
-
-					// All attribute memory begins at 0x03C0 within a nametable, so OR with
-					// result to select target nametable, and attribute byte offset. Finally
-					// OR with 0x2000 to offset into nametable address space on PPU bus.
-					bg_next_tile_attrib = ppuReadTblName(
-						0x23C0
-						| (vram_addr.NAMETABLE_Y << 11)
-						| (vram_addr.NAMETABLE_X << 10)
-						| ((vram_addr.COARSE_Y >> 2) << 3)
-						| (vram_addr.COARSE_X >> 2));
-					// Right we've read the correct attribute byte for a specified address,
-					// but the byte itself is broken down further into the 2x2 tile groups
-					// in the 4x4 attribute zone.
-
-					// The attribute byte is assembled thus: BR(76) BL(54) TR(32) TL(10)
-					//
-					// +----+----+			    +----+----+
-					// | TL | TR |			    | ID | ID |
-					// +----+----+ where TL =   +----+----+
-					// | BL | BR |			    | ID | ID |
-					// +----+----+			    +----+----+
-					//
-					// Since we know we can access a tile directly from the 12 bit address, we
-					// can analyze the bottom bits of the coarse coordinates to provide us with
-					// the correct offset into the 8-bit word, to yield the 2 bits we are
-					// actually interested in which specifies the palette for the 2x2 group of
-					// tiles. We know if "coarse y % 4" < 2 we are in the top half else bottom half.
-					// Likewise if "coarse x % 4" < 2 we are in the left half else right half.
-					// Ultimately we want the bottom two bits of our attribute word to be the
-					// palette selected, so shift as required.		
-					if ((vram_addr.COARSE_Y & 0x02) != 0) bg_next_tile_attrib >>= 4;
-					if ((vram_addr.COARSE_X & 0x02) != 0) bg_next_tile_attrib >>= 2;
-					bg_next_tile_attrib &= 0x03;
-					break;
-				case 4: 
-					// Fetch the next background tile LSB bit plane from the pattern memory.
-					// The tile ID has been read from the nametable. We will use this id to 
-					// index into the pattern memory to find the correct sprite (assuming
-					// the sprites lie on 8x8 pixel boundaries in that memory, which they do
-					// even though 8x16 sprites exist, as background tiles are always 8x8).
-					//
-					// Since the sprites are effectively 1 bit deep, but 8 pixels wide, we 
-					// can represent a whole sprite row as a single byte, so offsetting
-					// into the pattern memory is easy. In total there is 8KB so we need a 
-					// 13 bit address.
-
-					// "(control.pattern_background << 12)"  : the pattern memory selector 
-					//                                         from control register, either 0K
-					//                                         or 4K offset
-					// "((uint16_t)bg_next_tile_id << 4)"    : the tile id multiplied by 16, as
-					//                                         2 lots of 8 rows of 8 bit pixels
-					// "(vram_addr.fine_y)"                  : Offset into which row based on
-					//                                         vertical scroll offset
-					// Note: No PPU address bus offset required as it starts at 0x0000
-					bg_next_tile_lsb = ppuReadPattern(
-						(
-						(pattern_background_shifted_left_by_12)
-						+ (bg_next_tile_id << 4)
-						+ (vram_addr.FINE_Y)
-						)
-						);
-					break;
-				case 6:
-					bg_next_tile_msb = ppuReadPattern(
-						(
-						(pattern_background_shifted_left_by_12)
-						+ (bg_next_tile_id << 4)
-						+ (vram_addr.FINE_Y) + 8
-						)
-						);
-					break;
-				case 7:
-					IncrementScrollX();
-					break;
-				}
+				FetchBackgroundTileData((cycle - 1) % 8);
 			}
 			
 			if (cycle == 256)
@@ -1120,7 +1424,7 @@ public class RP2C02
 			// Superfluous reads of tile id at end of scanline.
 			if (cycle == 338 || cycle == 340)
 			{
-				bg_next_tile_id = ppuReadTblName(0x2000 | vram_addr.significant12Bits());
+				bg_next_tile_id = ppuReadTblName(0x2000 | (vram_addr & 0x0FFF));
 			}
 			
 			if (scanline == -1 && cycle >= 280 && cycle < 305)
@@ -1135,88 +1439,8 @@ public class RP2C02
 			// it easier to see the process of sprite evaluation.
 			if (cycle == 257 && scanline >= 0)
 			{
-				// We've reached the end of a visible scanline. It is now time to determine
-				// which sprites are visible on the next scanline, and preload this info
-				// into buffers that we can work with while the scanline scans the row.
-
-				// Firstly, clear out the sprite memory. This memory is used to store the
-				// sprites to be rendered. It is not the OAM.
-				spriteScanline[0].clear();
-				spriteScanline[1].clear();
-				spriteScanline[2].clear();
-				spriteScanline[3].clear();
-				spriteScanline[4].clear();
-				spriteScanline[5].clear();
-				spriteScanline[6].clear();
-				spriteScanline[7].clear();
-				
-				// The NES supports a maximum number of sprites per scanline,
-				// this is 8 or fewer sprites. This is why in some games you see sprites
-				// flicker or disappear when the scene gets busy.
-				sprite_count = 0;
-				
-				// Secondly, clear out any residual information in sprite pattern shifters.
-				sprite_shifter_pattern_lo[0] = 0;
-				sprite_shifter_pattern_hi[0] = 0;
-				sprite_shifter_pattern_lo[1] = 0;
-				sprite_shifter_pattern_hi[1] = 0;
-				sprite_shifter_pattern_lo[2] = 0;
-				sprite_shifter_pattern_hi[2] = 0;
-				sprite_shifter_pattern_lo[3] = 0;
-				sprite_shifter_pattern_hi[3] = 0;
-				sprite_shifter_pattern_lo[4] = 0;
-				sprite_shifter_pattern_hi[4] = 0;
-				sprite_shifter_pattern_lo[5] = 0;
-				sprite_shifter_pattern_hi[5] = 0;
-				sprite_shifter_pattern_lo[6] = 0;
-				sprite_shifter_pattern_hi[6] = 0;
-				sprite_shifter_pattern_lo[7] = 0;
-				sprite_shifter_pattern_hi[7] = 0;
-				
-				// Thirdly, Evaluate which sprites are visible in the next scanline. We need
-				// to iterate through the OAM until we have found 8 sprites that have Y-positions
-				// and heights that are within vertical range of the next scanline. Once we have
-				// found 8 or exhausted the OAM we stop. Now, notice I count to 9 sprites. This
-				// is so I can set the sprite overflow flag in the event of there being > 8 sprites.
-				/*unsigned 8bit*/ int nOAMEntry = 0;
-				
-				// New set of sprites. Sprite zero may not exist in the new set, so clear this
-				// flag.
-				sprite_zero_hit_possible = false;
-				
-				while (nOAMEntry < 64 && sprite_count < 9)
-				{
-					// Note the conversion to signed numbers here
-					/*unsigned 16bit*/ int diff = scanline - OAM[nOAMEntry].y;
-					
-					// If the difference is positive then the scanline is at least at the
-					// same height as the sprite, so check if it resides in the sprite vertically
-					// depending on the current "sprite height mode".
-					if (diff >= 0 && diff < sprite_size)
-					{
-						// Sprite is visible, so copy the attribute entry over to our
-						// scanline sprite cache. I added < 8 here to guard the array
-						// being written to.
-						if (sprite_count < 8)
-						{
-							// Is this sprite sprite zero?
-							if (nOAMEntry == 0)
-							{
-								// It is, so its possible it may trigger a 
-								// sprite zero hit when drawn
-								sprite_zero_hit_possible = true;
-							}
-							
-							spriteScanline[sprite_count].attribute = OAM[nOAMEntry].attribute;
-							spriteScanline[sprite_count].id = OAM[nOAMEntry].id;
-							spriteScanline[sprite_count].x = OAM[nOAMEntry].x;
-							spriteScanline[sprite_count].y = OAM[nOAMEntry].y;
-							sprite_count++;
-						}
-					}
-					nOAMEntry++;
-				}
-			} // End of sprite evaluation for next scanline.
+				EvaluateSprites();
+			}
 			
 			// Set sprite overflow flag
 			SetStatusFlag(STATUS2C02.SPRITE_OVERFLOW, sprite_count > 8);
@@ -1230,104 +1454,7 @@ public class RP2C02
 			
 			if (cycle == 340)
 			{
-				// Now we're at the very end of the scanline, Prepare the 
-				// sprite shifters with the 8 or less selected sprites.
-				for (n = 0; n < sprite_count; n++)
-				{
-					// We need to extract the 8-bit row patterns of the sprite with the
-					// correct vertical offset. The "Sprite Mode" also affects this as
-					// the sprites may be 8 or 16 rows high. Additionally, the sprite
-					// can be flipped both vertically and horizontally.
-					
-					// Determine the memory addresses that contain the byte of pattern data. We
-					// only need the lo pattern address, because the hi pattern address is always
-					// offset by 8 from the lo address.
-					if (sprite_size == 8)
-					{
-						// 8x8 Sprite Mode - The control register determines the pattern table.
-						if (!((spriteScanline[n].attribute & 0x80) != 0))
-						{
-							// Sprite is NOT flipped vertically, i.e. normal    
-							sprite_pattern_addr_lo = 
-								  (pattern_sprite_shifted_left_by_12  )  // Which Pattern Table? 0KB or 4KB offset
-								| (spriteScanline[n].id   << 4   )  // Which Cell? Tile ID * 16 (16 bytes per tile)
-								| (scanline - spriteScanline[n].y); // Which Row in cell? (0->7)
-						}
-						else
-						{
-							// Sprite is flipped vertically, i.e. upside down
-							sprite_pattern_addr_lo = 
-								  (pattern_sprite_shifted_left_by_12  )  // Which Pattern Table? 0KB or 4KB offset
-								| (spriteScanline[n].id   << 4   )  // Which Cell? Tile ID * 16 (16 bytes per tile)
-								| (7 - (scanline - spriteScanline[n].y)); // Which Row in cell? (0->7)
-						}
-					}
-					else
-					{
-						// 8x16 Sprite Mode - The sprite attribute determines the pattern table
-						if (!((spriteScanline[n].attribute & 0x80) != 0))
-						{
-							// Sprite is NOT flipped vertically, i.e. normal
-							if (scanline - spriteScanline[n].y < 8)
-							{
-								// Reading Top half Tile
-								sprite_pattern_addr_lo = 
-								  ((spriteScanline[n].id & 0x01)      << 12)  // Which Pattern Table? 0KB or 4KB offset
-								| ((spriteScanline[n].id & 0xFE)      << 4 )  // Which Cell? Tile ID * 16 (16 bytes per tile)
-								| ((scanline - spriteScanline[n].y) & 0x07 ); // Which Row in cell? (0->7)
-							}
-							else
-							{
-								// Reading Bottom Half Tile
-								sprite_pattern_addr_lo = 
-								  ( (spriteScanline[n].id & 0x01)      << 12)  // Which Pattern Table? 0KB or 4KB offset
-								| (((spriteScanline[n].id & 0xFE) + 1) << 4 )  // Which Cell? Tile ID * 16 (16 bytes per tile)
-								| ((scanline - spriteScanline[n].y) & 0x07  ); // Which Row in cell? (0->7)
-							}
-						}
-						else
-						{
-							// Sprite is flipped vertically, i.e. upside down
-							if (scanline - spriteScanline[n].y < 8)
-							{
-								// Reading Top half Tile
-								sprite_pattern_addr_lo = 
-								  ( (spriteScanline[n].id & 0x01)      << 12)    // Which Pattern Table? 0KB or 4KB offset
-								| (((spriteScanline[n].id & 0xFE) + 1) << 4 )    // Which Cell? Tile ID * 16 (16 bytes per tile)
-								| (7 - (scanline - spriteScanline[n].y) & 0x07); // Which Row in cell? (0->7)
-							}
-							else
-							{
-								// Reading Bottom Half Tile
-								sprite_pattern_addr_lo = 
-								  ((spriteScanline[n].id & 0x01)       << 12)    // Which Pattern Table? 0KB or 4KB offset
-								| ((spriteScanline[n].id & 0xFE)       << 4 )    // Which Cell? Tile ID * 16 (16 bytes per tile)
-								| (7 - (scanline - spriteScanline[n].y) & 0x07); // Which Row in cell? (0->7)
-							}
-						}
-					}
-
-					// High bit plane equivalent is always offset by 8 bytes from low bit plane.
-					sprite_pattern_addr_hi = sprite_pattern_addr_lo + 8;
-					
-					// Now we have the address of the sprite patterns, we can read them
-					sprite_pattern_bits_lo = ppuReadPattern(sprite_pattern_addr_lo);
-					sprite_pattern_bits_hi = ppuReadPattern(sprite_pattern_addr_hi);
-					
-					// If the sprite is flipped horizontally, we need to flip the 
-					// pattern bytes. 
-					if ((spriteScanline[n].attribute & 0x40) != 0)
-					{
-						// Flip Patterns Horizontally
-						sprite_pattern_bits_lo = flipbyte(sprite_pattern_bits_lo);
-						sprite_pattern_bits_hi = flipbyte(sprite_pattern_bits_hi);
-					}
-					
-					// Finally we can load the pattern into our sprite shift registers
-					// ready for rendering on the next scanline.
-					sprite_shifter_pattern_lo[n] = sprite_pattern_bits_lo;
-					sprite_shifter_pattern_hi[n] = sprite_pattern_bits_hi;
-				}
+				LoadSpriteShifters();
 			}
 		}
 		
@@ -1516,10 +1643,10 @@ public class RP2C02
 		}
 		
 		// Now we have a final pixel colour, and a palette for this cycle
-		// of the current scanline. Draw the pixel.
-		if ((cycle >= 0) && (cycle < 256) && (scanline >= 0) && (scanline < 240))
+		// of the current scanline. Draw the pixel, unless nobody will see it.
+		if (is_drawing_frame && (cycle >= 0) && (cycle < 256) && (scanline >= 0) && (scanline < 240))
 		{
-			color = nes_palette[ppuReadPalette(0x3F00 + (palette << 2) + pixel) & 0x3F];
+			color = palette_colors[(palette << 2) + pixel];
 			frame_being_drawn_screen_data[current_pixel] = color;
 			current_pixel++;
 		}
@@ -1533,28 +1660,528 @@ public class RP2C02
 			if (scanline == 261)
 			{
 				scanline = -1;
-				synchronized (this)
+				frame_complete = true;
+				// Hand the frame that was just drawn to the sink and draw the next one where it says.
+				frame_being_drawn_screen_data = frame_sink.frameCompleted(frame_being_drawn_screen_data, total_frames_drawn);
+				
+				// Increment the total frames drawn, and find out whether the next one will be shown.
+				total_frames_drawn++;
+				is_drawing_frame = frame_sink.wantsFrame(total_frames_drawn);
+				
+				// Reset the pixel position back because we're starting to draw a new frame.
+				current_pixel = 0;
+			}
+		}
+	}
+	
+	// Clocks the PPU the given number of times. The bus only runs the PPU up to the point where the CPU accesses one of
+	// its registers, so when a whole visible scanline is run at once nothing can change in the middle of it, and the
+	// scanline renderer can draw it in one pass. Any other scanline, e.g. one interrupted by a register write, is run
+	// dot by dot by clock().
+	public void runClocks(int clocks)
+	{
+		boolean scanline_renderer = scanline_renderer_enabled;
+		boolean checked = scanline_renderer_checked;
+		while (clocks > 0)
+		{
+			if (scanline_renderer && cycle == 0 && scanline >= 0 && scanline < 240)
+			{
+				// Cycle 0 of scanline 0 is skipped.
+				int line_clocks = (scanline == 0) ? 340 : 341;
+				if (clocks >= line_clocks)
 				{
-					frame_complete = true;
-					// Make the frame that was just drawn available in the list of frames.
-					frames[current_frame_index].frame_number = total_frames_drawn;
-					
-					// Increment the current frame index into the list of frames we're keeping, looping
-					// when at the end.
-					current_frame_index++;
-					current_frame_index %= FRAMES_TO_KEEP;
-					
-					// Set the frame being drawn to the oldest frame i.e. this is the frame we will be overwriting.
-					frame_being_drawn_screen_data = frames[current_frame_index].screen_data;
+					if (checked)
+					{
+						compareScanline(line_clocks);
+					}
+					else
+					{
+						renderScanline();
+					}
+					clocks -= line_clocks;
+					continue;
+				}
+			}
+			clock();
+			clocks--;
+		}
+	}
+	
+	// Runs a whole visible scanline, from cycle 0 to cycle 340, with exactly the same result as running it with
+	// clock(). Instead of doing everything for one dot before moving on to the next, it runs the background fetches
+	// and shifters for the whole scanline, then each sprite, and then combines the two into the pixels of the scanline.
+	private void renderScanline()
+	{
+		if (scanline == 0)
+		{
+			// "Odd Frame" cycle skip
+			cycle = 1;
+			current_pixel = 0;
+		}
+		int first_cycle = cycle;
+		
+		// When the frame is not drawn, the pixels only matter for a sprite zero hit.
+		boolean drawing = is_drawing_frame;
+		boolean keep_pixels = drawing || sprite_zero_hit_possible;
+		
+		// Background: the fetches and shifters of cycles 1 to 256. Only the pixel of each cycle is kept.
+		int bit_mux = 0x8000 >> fine_x;
+		for (int c = first_cycle; c < 257; c++)
+		{
+			if (c >= 2)
+			{
+				if (is_rendering_background)
+				{
+					bg_shifter_pattern_lo <<= 1;
+					bg_shifter_pattern_hi <<= 1;
+					bg_shifter_attrib_lo <<= 1;
+					bg_shifter_attrib_hi <<= 1;
+				}
+				FetchBackgroundTileData((c - 1) % 8);
+			}
+			
+			if (c == 256)
+			{
+				IncrementScrollY();
+			}
+			
+			if (is_rendering_background && keep_pixels)
+			{
+				line_background[c] =
+					  ((bg_shifter_attrib_hi & bit_mux) != 0 ? 8 : 0)
+					| ((bg_shifter_attrib_lo & bit_mux) != 0 ? 4 : 0)
+					| ((bg_shifter_pattern_hi & bit_mux) != 0 ? 2 : 0)
+					| ((bg_shifter_pattern_lo & bit_mux) != 0 ? 1 : 0);
+			}
+			else
+			{
+				line_background[c] = 0;
+			}
+		}
+		
+		// Sprites: the shifters of each sprite only depend on that sprite, so each is run through the scanline on its
+		// own. They are run from the lowest priority up, so that the sprite that is kept for a cycle is the first one
+		// with a visible pixel, as in clock(). Sprite zero has the highest priority, so when the frame is not drawn it
+		// is the only one needed.
+		if (is_rendering_sprites && keep_pixels)
+		{
+			Arrays.fill(line_sprites, first_cycle, 257, 0);
+			for (int n = (drawing ? sprite_count : Math.min(sprite_count, 1)) - 1; n >= 0; n--)
+			{
+				ObjectAttributeEntry sprite = spriteScanline[n];
+				boolean draw = sprite.draw;
+				int count_down = sprite.count_down;
+				int pattern_lo = sprite_shifter_pattern_lo[n];
+				int pattern_hi = sprite_shifter_pattern_hi[n];
+				int flags = ((sprite.attribute & 0x03) + 0x04) << 2;
+				flags |= (sprite.attribute & 0x20) == 0 ? LINE_SPRITE_IN_FRONT : 0;
+				flags |= (n == 0) ? LINE_SPRITE_ZERO : 0;
+				
+				// Nothing happens to a sprite that is not being drawn until the scanline reaches it.
+				int c = draw ? first_cycle : sprite.x + 1;
+				for (; c < 257; c++)
+				{
+					if (draw && c >= 2)
+					{
+						pattern_lo <<= 1;
+						pattern_hi <<= 1;
+						count_down--;
+						if (count_down == 0)
+						{
+							draw = false;
+						}
+					}
 					
-					// Increment the total frames drawn.
-					total_frames_drawn++;
+					if (sprite.x == c - 1)
+					{
+						draw = true;
+					}
+					else if (!draw && c > sprite.x)
+					{
+						break;
+					}
 					
-					// Reset the pixel position back because we're starting to draw a new frame.
-					current_pixel = 0;
+					if (draw)
+					{
+						int pixel = ((pattern_hi & 0x80) != 0 ? 2 : 0) | ((pattern_lo & 0x80) != 0 ? 1 : 0);
+						if (pixel != 0)
+						{
+							line_sprites[c] = flags | pixel;
+						}
+					}
 				}
 			}
 		}
+		
+		// Composition of the cycles, of which all but cycle 256 are drawn.
+		boolean left_edge_switches = (~GetMaskFlag(MASK2C02.RENDER_BACKGROUND_LEFT) | GetMaskFlag(MASK2C02.RENDER_SPRITES_LEFT)) != 0;
+		int first_hit_cycle = left_edge_switches ? 9 : 1;
+		for (int c = first_cycle; drawing && c < 257; c++)
+		{
+			int bg = line_background[c];
+			int fg = is_rendering_sprites ? line_sprites[c] : 0;
+			int bg_pixel = bg & 0x03;
+			int fg_pixel = fg & 0x03;
+			
+			int color_index = 0;
+			if (fg_pixel != 0 && (bg_pixel == 0 || (fg & LINE_SPRITE_IN_FRONT) != 0))
+			{
+				color_index = fg & 0x1F;
+			}
+			else if (bg_pixel != 0)
+			{
+				color_index = bg;
+			}
+			
+			// Sprite Zero Hit detection
+			if (bg_pixel != 0 && fg_pixel != 0 && (fg & LINE_SPRITE_ZERO) != 0 && sprite_zero_hit_possible &&
+				is_rendering_background_or_sprites && c >= first_hit_cycle)
+			{
+				SetStatusFlagON(STATUS2C02.SPRITE_ZERO_HIT);
+			}
+			
+			if (c < 256)
+			{
+				frame_being_drawn_screen_data[current_pixel] = palette_colors[color_index];
+				current_pixel++;
+			}
+		}
+		if (!drawing && sprite_zero_hit_possible && is_rendering_sprites && is_rendering_background_or_sprites)
+		{
+			// Only look for the sprite zero hit.
+			for (int c = Math.max(first_cycle, first_hit_cycle); c < 257; c++)
+			{
+				if ((line_background[c] & 0x03) != 0 && (line_sprites[c] & 0x03) != 0)
+				{
+					SetStatusFlagON(STATUS2C02.SPRITE_ZERO_HIT);
+					break;
+				}
+			}
+		}
+		if (is_rendering_sprites)
+		{
+			// No sprite is drawn after cycle 256.
+			sprite_zero_being_rendered = false;
+		}
+		
+		// Cycle 257
+		if (is_rendering_background)
+		{
+			bg_shifter_pattern_lo <<= 1;
+			bg_shifter_pattern_hi <<= 1;
+			bg_shifter_attrib_lo <<= 1;
+			bg_shifter_attrib_hi <<= 1;
+		}
+		FetchBackgroundTileData(0);
+		LoadBackgroundShifters();
+		TransferAddressX();
+		EvaluateSprites();
+		SetStatusFlag(STATUS2C02.SPRITE_OVERFLOW, sprite_count > 8);
+		
+		// Cycles 321 to 340: the first two tiles of the next scanline and the sprite patterns.
+		for (int c = 321; c < 338; c++)
+		{
+			if (is_rendering_background)
+			{
+				bg_shifter_pattern_lo <<= 1;
+				bg_shifter_pattern_hi <<= 1;
+				bg_shifter_attrib_lo <<= 1;
+				bg_shifter_attrib_hi <<= 1;
+			}
+			FetchBackgroundTileData((c - 1) % 8);
+		}
+		bg_next_tile_id = ppuReadTblName(0x2000 | (vram_addr & 0x0FFF));
+		bg_next_tile_id = ppuReadTblName(0x2000 | (vram_addr & 0x0FFF));
+		LoadSpriteShifters();
+		
+		cycle = 0;
+		scanline++;
+	}
+	
+	// Runs a whole visible scanline with the scanline renderer, then again from the same state with the dot renderer,
+	// and counts a mismatch if the pixels or the state they end in differ. The dot renderer's result is kept.
+	private void compareScanline(int line_clocks)
+	{
+		int line = scanline;
+		int first_pixel = (scanline == 0) ? 0 : current_pixel;
+		int pixels = (scanline == 0) ? 255 : 256;
+		
+		saveLineState(line_state_before);
+		renderScanline();
+		saveLineState(line_state_scanline);
+		System.arraycopy(frame_being_drawn_screen_data, first_pixel, line_pixels_scanline, 0, pixels);
+		
+		restoreLineState(line_state_before);
+		for (int n=0; n < line_clocks; n++)
+		{
+			clock();
+		}
+		saveLineState(line_state_dot);
+		
+		int mismatch = -1;
+		for (int n=0; n < pixels; n++)
+		{
+			if (line_pixels_scanline[n] != frame_being_drawn_screen_data[first_pixel + n])
+			{
+				mismatch = n;
+				break;
+			}
+		}
+		if (mismatch >= 0 || !Arrays.equals(line_state_scanline, line_state_dot))
+		{
+			scanline_mismatches++;
+			if (scanline_mismatches <= MISMATCHES_TO_REPORT)
+			{
+				System.out.println("Scanline renderer mismatch in frame " + total_frames_drawn + ", scanline " + line +
+					(mismatch >= 0 ? ", pixel " + mismatch : ", state after the scanline"));
+			}
+		}
+	}
+	
+	// The state that a visible scanline changes, in a form that can be compared.
+	private void saveLineState(int[] state)
+	{
+		int n = 0;
+		state[n++] = cycle;
+		state[n++] = scanline;
+		state[n++] = status;
+		state[n++] = vram_addr;
+		state[n++] = bg_next_tile_id;
+		state[n++] = bg_next_tile_attrib;
+		state[n++] = bg_next_tile_lsb;
+		state[n++] = bg_next_tile_msb;
+		state[n++] = bg_shifter_pattern_lo;
+		state[n++] = bg_shifter_pattern_hi;
+		state[n++] = bg_shifter_attrib_lo;
+		state[n++] = bg_shifter_attrib_hi;
+		state[n++] = sprite_count;
+		state[n++] = sprite_zero_hit_possible ? 1 : 0;
+		state[n++] = sprite_zero_being_rendered ? 1 : 0;
+		state[n++] = current_pixel;
+		for (int s=0; s < 8; s++)
+		{
+			state[n++] = spriteScanline[s].y;
+			state[n++] = spriteScanline[s].id;
+			state[n++] = spriteScanline[s].attribute;
+			state[n++] = spriteScanline[s].x;
+			state[n++] = spriteScanline[s].draw ? 1 : 0;
+			state[n++] = spriteScanline[s].count_down;
+			state[n++] = sprite_shifter_pattern_lo[s];
+			state[n++] = sprite_shifter_pattern_hi[s];
+		}
+	}
+	
+	private void restoreLineState(int[] state)
+	{
+		int n = 0;
+		cycle = state[n++];
+		scanline = state[n++];
+		status = state[n++];
+		vram_addr = state[n++];
+		bg_next_tile_id = state[n++];
+		bg_next_tile_attrib = state[n++];
+		bg_next_tile_lsb = state[n++];
+		bg_next_tile_msb = state[n++];
+		bg_shifter_pattern_lo = state[n++];
+		bg_shifter_pattern_hi = state[n++];
+		bg_shifter_attrib_lo = state[n++];
+		bg_shifter_attrib_hi = state[n++];
+		sprite_count = state[n++];
+		sprite_zero_hit_possible = state[n++] != 0;
+		sprite_zero_being_rendered = state[n++] != 0;
+		current_pixel = state[n++];
+		for (int s=0; s < 8; s++)
+		{
+			spriteScanline[s].y = state[n++];
+			spriteScanline[s].id = state[n++];
+			spriteScanline[s].attribute = state[n++];
+			spriteScanline[s].x = state[n++];
+			spriteScanline[s].draw = state[n++] != 0;
+			spriteScanline[s].count_down = state[n++];
+			sprite_shifter_pattern_lo[s] = state[n++];
+			sprite_shifter_pattern_hi[s] = state[n++];
+		}
+	}
+	
+	// Writes the registers, the memories and the rendering state into the buffer, see NESBus.saveState(). What the PPU
+	// works out from these, e.g. the palette colours and the decoded tiles, is worked out again on loading. The frame
+	// being drawn and the count of frames belong to the frame sink rather than to the machine, so they are left out.
+	// The pattern tables here are only read when the cartridge does not map CHR memory, which the supported mappers
+	// always do, so they are left out too.
+	public void saveState(ByteBuffer buffer)
+	{
+		buffer.putInt(cycle);
+		buffer.putInt(scanline);
+		buffer.putInt(status);
+		buffer.putInt(mask);
+		buffer.putInt(control);
+		buffer.putInt(vram_addr);
+		buffer.putInt(tram_addr);
+		buffer.putInt(fine_x);
+		buffer.putInt(address_latch);
+		buffer.putInt(ppu_data_buffer);
+		buffer.put((byte)(nmi ? 1 : 0));
+		
+		// Normally these follow from the control and mask registers, but not until they are first written.
+		buffer.putInt(pattern_background_shifted_left_by_12);
+		buffer.putInt(pattern_sprite_shifted_left_by_12);
+		buffer.putInt(increment_mode_value);
+		buffer.putInt(sprite_size);
+		buffer.putInt(grey_scale_value);
+		
+		buffer.putInt(bg_next_tile_id);
+		buffer.putInt(bg_next_tile_attrib);
+		buffer.putInt(bg_next_tile_lsb);
+		buffer.putInt(bg_next_tile_msb);
+		buffer.putInt(bg_shifter_pattern_lo);
+		buffer.putInt(bg_shifter_pattern_hi);
+		buffer.putInt(bg_shifter_attrib_lo);
+		buffer.putInt(bg_shifter_attrib_hi);
+		
+		buffer.putInt(oam_addr);
+		buffer.putInt(sprite_count);
+		buffer.put((byte)(sprite_zero_hit_possible ? 1 : 0));
+		buffer.put((byte)(sprite_zero_being_rendered ? 1 : 0));
+		buffer.putInt(current_pixel);
+		for (int s=0; s < 8; s++)
+		{
+			buffer.putInt(spriteScanline[s].y);
+			buffer.putInt(spriteScanline[s].id);
+			buffer.putInt(spriteScanline[s].attribute);
+			buffer.putInt(spriteScanline[s].x);
+			buffer.put((byte)(spriteScanline[s].draw ? 1 : 0));
+			buffer.putInt(spriteScanline[s].count_down);
+			buffer.putInt(sprite_shifter_pattern_lo[s]);
+			buffer.putInt(sprite_shifter_pattern_hi[s]);
+		}
+		
+		for (int n=0; n < 256; n++)
+		{
+			buffer.put((byte)pOAM[n]);
+		}
+		for (int t=0; t < 2; t++)
+		{
+			for (int n=0; n < 1024; n++)
+			{
+				buffer.put((byte)name_table[t][n]);
+			}
+		}
+		for (int n=0; n < 32; n++)
+		{
+			buffer.put((byte)palette[n]);
+		}
+	}
+	
+	// Reads back the state written by saveState(). The cartridge's state must have been loaded already, as the
+	// mirroring and CHR memory are taken from it.
+	public void loadState(ByteBuffer buffer)
+	{
+		cycle = buffer.getInt();
+		scanline = buffer.getInt();
+		status = buffer.getInt();
+		mask = buffer.getInt();
+		control = buffer.getInt();
+		vram_addr = buffer.getInt();
+		tram_addr = buffer.getInt();
+		fine_x = buffer.getInt();
+		address_latch = buffer.getInt();
+		ppu_data_buffer = buffer.getInt();
+		nmi = buffer.get() != 0;
+		
+		pattern_background_shifted_left_by_12 = buffer.getInt();
+		pattern_sprite_shifted_left_by_12 = buffer.getInt();
+		increment_mode_value = buffer.getInt();
+		sprite_size = buffer.getInt();
+		grey_scale_value = buffer.getInt();
+		is_rendering_background = GetMaskFlag(MASK2C02.RENDER_BACKGROUND) != 0;
+		is_rendering_sprites = GetMaskFlag(MASK2C02.RENDER_SPRITES) != 0;
+		is_rendering_background_or_sprites = is_rendering_background | is_rendering_sprites;
+		is_greyscale = GetMaskFlag(MASK2C02.GRAYSCALE) != 0;
+		
+		bg_next_tile_id = buffer.getInt();
+		bg_next_tile_attrib = buffer.getInt();
+		bg_next_tile_lsb = buffer.getInt();
+		bg_next_tile_msb = buffer.getInt();
+		bg_shifter_pattern_lo = buffer.getInt();
+		bg_shifter_pattern_hi = buffer.getInt();
+		bg_shifter_attrib_lo = buffer.getInt();
+		bg_shifter_attrib_hi = buffer.getInt();
+		
+		oam_addr = buffer.getInt();
+		sprite_count = buffer.getInt();
+		sprite_zero_hit_possible = buffer.get() != 0;
+		sprite_zero_being_rendered = buffer.get() != 0;
+		current_pixel = buffer.getInt();
+		for (int s=0; s < 8; s++)
+		{
+			spriteScanline[s].y = buffer.getInt();
+			spriteScanline[s].id = buffer.getInt();
+			spriteScanline[s].attribute = buffer.getInt();
+			spriteScanline[s].x = buffer.getInt();
+			spriteScanline[s].draw = buffer.get() != 0;
+			spriteScanline[s].count_down = buffer.getInt();
+			sprite_shifter_pattern_lo[s] = buffer.getInt();
+			sprite_shifter_pattern_hi[s] = buffer.getInt();
+		}
+		
+		for (int n=0; n < 256; n++)
+		{
+			pOAM[n] = buffer.get() & 0xFF;
+		}
+		populateOAM();
+		for (int t=0; t < 2; t++)
+		{
+			for (int n=0; n < 1024; n++)
+			{
+				name_table[t][n] = buffer.get() & 0xFF;
+			}
+		}
+		for (int n=0; n < 32; n++)
+		{
+			palette[n] = buffer.get() & 0xFF;
+		}
+		updatePaletteColors();
+		invalidateTileCache();
+		setNameTablePages();
+	}
+	
+	// Makes runClocks() draw whole visible scanlines with the scanline renderer instead of dot by dot. Off by default.
+	public void setScanlineRendererEnabled(boolean enabled)
+	{
+		scanline_renderer_enabled = enabled;
+	}
+	
+	public boolean isScanlineRendererEnabled()
+	{
+		return scanline_renderer_enabled;
+	}
+	
+	// Makes every scanline drawn by the scanline renderer be compared with the dot renderer, see compareScanline().
+	public void setScanlineRendererChecked(boolean checked)
+	{
+		scanline_renderer_checked = checked;
+	}
+	
+	public boolean isScanlineRendererChecked()
+	{
+		return scanline_renderer_checked;
+	}
+	
+	// The number of scanlines on which the scanline renderer and the dot renderer disagreed.
+	public int getScanlineMismatches()
+	{
+		return scanline_mismatches;
+	}
+	
+	// Decoded copies of the loopy registers, for the debugger.
+	public LOOPY_REGISTER getVramAddr()
+	{
+		return new LOOPY_REGISTER(vram_addr);
+	}
+	
+	public LOOPY_REGISTER getTramAddr()
+	{
+		return new LOOPY_REGISTER(tram_addr);
 	}
 	
 	// This little function "flips" a byte
@@ -1569,24 +2196,17 @@ public class RP2C02
 		return b;
 	};
 	
-	// Get the contents of a frame from a frame number. Also respond with some additional information i.e. was the frame
-	// retrieved and the last frame number that the emulation rendered.
-	// This information is used by the video processor to render frames accurately.
-	public synchronized void getFrame(int frame_number, Frame[] current_frame, boolean[] frame_retrieved, int[] last_frame_number)
+	// Sends the frames drawn from now on to the given sink. Only to be called while the emulation is not running.
+	public void setFrameSink(FrameSink frame_sink)
 	{
-		for (int n=0; n < FRAMES_TO_KEEP; n++)
-		{
-			if (frames[n].frame_number == frame_number)
-			{
-				last_frame_number[0] = total_frames_drawn - 1;
-				current_frame[0] = frames[n];
-				frame_retrieved[0] = true;
-				return;
-			}
-		}
-		
-		last_frame_number[0] = total_frames_drawn - 1;
-		frame_retrieved[0] = false;
+		this.frame_sink = frame_sink;
+		frame_being_drawn_screen_data = frame_sink.getDrawBuffer();
+		is_drawing_frame = frame_sink.wantsFrame(total_frames_drawn);
+	}
+	
+	public FrameSink getFrameSink()
+	{
+		return frame_sink;
 	}
 
 	// Debug function
@@ -1625,8 +2245,9 @@ public class RP2C02
 					// is stored as 64 bits of LSB, followed by 64 bits of MSB. This
 					// conveniently means that two corresponding rows are always 8
 					// bytes apart in memory.
-					/*unsigned 8bit*/ int tile_lsb = ppuRead(i * 0x1000 + nOffset + row + 0);
-					/*unsigned 8bit*/ int tile_msb = ppuRead(i * 0x1000 + nOffset + row + 8);
+					int tile_row = getTileRow(i * 0x1000 + nOffset + row);
+					/*unsigned 8bit*/ int tile_lsb = tile_row & 0xFF;
+					/*unsigned 8bit*/ int tile_msb = (tile_row >> 8) & 0xFF;
 					
 					// Now we have a single row of the two bit planes for the character
 					// we need to iterate through the 8-bit words, combining them to give
@@ -1799,25 +2420,16 @@ public class RP2C02
 		UNUSED // 1 bit
 		*/
 		
-		int return_int;
-		
-		public int reg()
+		// The PPU keeps its loopy registers packed in an int. This is a decoded copy of
+		// one of them, for the debugger.
+		public LOOPY_REGISTER(int value)
 		{
-			return_int = COARSE_X;
-			return_int |= (COARSE_Y << 5);
-			return_int |= (NAMETABLE_X << 10);
-			return_int |= (NAMETABLE_Y << 11);
-			return_int |= (FINE_Y << 12);
-			return return_int;
+			setreg(value);
 		}
 		
-		public int significant12Bits()
+		public int reg()
 		{
-			return_int = COARSE_X;
-			return_int |= (COARSE_Y << 5);
-			return_int |= (NAMETABLE_X << 10);
-			return_int |= (NAMETABLE_Y << 11);
-			return return_int;
+			return COARSE_X | (COARSE_Y << 5) | (NAMETABLE_X << 10) | (NAMETABLE_Y << 11) | (FINE_Y << 12);
 		}
 		
 		public void setreg(int value)
@@ -1828,25 +2440,6 @@ public class RP2C02
 			NAMETABLE_Y = (value & 0b0000100000000000) >> 11;
 			FINE_Y      = (value & 0b0111000000000000) >> 12;
 		}
-		
-		public void copyReg(LOOPY_REGISTER value)
-		{
-			COARSE_X = value.COARSE_X;
-			COARSE_Y = value.COARSE_Y;
-			NAMETABLE_X = value.NAMETABLE_X;
-			NAMETABLE_Y = value.NAMETABLE_Y;
-			FINE_Y = value.FINE_Y;
-		}
-		
-		public void invertNAMETABLE_X()
-		{
-			NAMETABLE_X = (~NAMETABLE_X) & 0x01;
-		}
-		
-		public void invertNAMETABLE_Y()
-		{
-			NAMETABLE_Y = (~NAMETABLE_Y) & 0x01;
-		}
 	}
 	
 	public void populateOAM()
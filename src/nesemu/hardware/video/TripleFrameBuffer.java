@@ -0,0 +1,95 @@
+package nesemu.hardware.video;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nesemu.hardware.video.RP2C02.Frame;
+
+/*
+ * Passes frames from the PPU on the emulation thread to one presenter thread through three buffers, without either side
+ * ever taking a lock or waiting for the other. At any time the PPU owns one buffer, which it draws into, and the
+ * presenter owns one, which it shows. The third is the newest complete frame. When the PPU finishes a frame it swaps
+ * its buffer for the third one, and when the presenter wants a frame it swaps its buffer for the third one if that has
+ * been drawn since it last looked. Both swaps are a single atomic exchange, which also publishes the pixels.
+ */
+public class TripleFrameBuffer implements FrameSink
+{
+	// Set in the exchanged index when the buffer it names holds a frame the presenter has not taken yet.
+	private static final int FRESH = 4;
+
+	private Frame[] frames = new Frame[3];
+
+	// The buffer the PPU draws into, and whether the frame in it is drawn at all. Only used by the PPU.
+	private int drawing_index = 0;
+	private boolean drawing_wanted = true;
+	// The buffer the presenter shows. Only used by the presenter.
+	private int showing_index = 1;
+	// The third buffer, with FRESH when it holds a frame the presenter has not taken yet.
+	private AtomicInteger ready_index = new AtomicInteger(2);
+
+	// Only every frame_interval-th frame is drawn, e.g. when running faster than the presenter shows frames.
+	private volatile int frame_interval = 1;
+
+	public TripleFrameBuffer()
+	{
+		for (int n=0; n < frames.length; n++)
+		{
+			frames[n] = new Frame();
+			frames[n].frame = new BufferedImage(256, 240, BufferedImage.TYPE_INT_RGB);
+			frames[n].screen_data = ((DataBufferInt)frames[n].frame.getRaster().getDataBuffer()).getData();
+			frames[n].frame_number = -1;
+			Arrays.fill(frames[n].screen_data, RP2C02.NES_GRAY);
+		}
+	}
+
+	// PPU only.
+	public int[] getDrawBuffer()
+	{
+		return frames[drawing_index].screen_data;
+	}
+
+	// PPU only.
+	public boolean wantsFrame(int frame_number)
+	{
+		drawing_wanted = frame_number % frame_interval == 0;
+		return drawing_wanted;
+	}
+
+	// PPU only. Makes the frame just drawn the newest one, dropping the previous newest one if the presenter has not
+	// taken it. A frame that was not drawn is not passed on, and the PPU keeps the same buffer.
+	public int[] frameCompleted(int[] screen_data, int frame_number)
+	{
+		if (!drawing_wanted)
+		{
+			return screen_data;
+		}
+		frames[drawing_index].frame_number = frame_number;
+		drawing_index = ready_index.getAndSet(drawing_index | FRESH) & ~FRESH;
+		return frames[drawing_index].screen_data;
+	}
+
+	// Presenter only. Returns the newest complete frame, which is the same one as the last time if the PPU has not
+	// completed a frame since. The frame stays the presenter's until the next call.
+	public Frame getNewestFrame()
+	{
+		if ((ready_index.get() & FRESH) != 0)
+		{
+			showing_index = ready_index.getAndSet(showing_index) & ~FRESH;
+		}
+		return frames[showing_index];
+	}
+
+	// Makes the PPU draw only every interval-th frame and skip the pixels of the others, which the presenter would
+	// drop anyway. 1 draws every frame.
+	public void setFrameInterval(int interval)
+	{
+		frame_interval = Math.max(1, interval);
+	}
+
+	public int getFrameInterval()
+	{
+		return frame_interval;
+	}
+}